@@ -0,0 +1,82 @@
+package client;
+
+import message.Draw;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+/**
+ *
+ * CanvasBench to measure how long the Canvas takes to render its drawings, without a screen.
+ *
+ * The canvas is one tile (128 px) in size and holds the given number of drawings, all crossing that tile:
+ * lines, rectangles, circles, triangles, pen strokes of 40 points and texts, in turn.
+ * Each frame first zooms in and out again, which drops the tile, so the frame renders every drawing.
+ * Prints the time of the fastest frame and the bytes allocated while rendering it.
+ *
+ * Usage, after mvn -Pbench test-compile (java.awt.headless is set by the benchmark):
+ * java -cp target/classes:target/test-classes:<json-simple jar> client.CanvasBench [drawings] [frames]
+ *
+ * @author liching
+ *
+ */
+public class CanvasBench {
+
+    private static final int SIZE = 128;
+    private static final String[] DRAW_TYPES = {"line", "rectangle", "circle", "triangle", "pen", "text"};
+
+    public static void main(String[] args){
+        System.setProperty("java.awt.headless", "true");
+        int drawings = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int frames = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+
+        Canvas canvas = new Canvas();
+        canvas.setSize(SIZE, SIZE);
+        // Same drawings on every run
+        Random random = new Random(1);
+        for (int i = 0; i < drawings; i++){
+            String drawType = DRAW_TYPES[i % DRAW_TYPES.length];
+            int x = random.nextInt(SIZE);
+            int y = random.nextInt(SIZE);
+            Draw draw = new Draw("bench", "draw", drawType, x, y,
+                    x + random.nextInt(80) - 40, y + random.nextInt(80) - 40, new Color(random.nextInt(0xffffff)));
+            if (drawType.equals("pen")){
+                int[] points = new int[80];
+                for (int k = 0; k < points.length; k += 2){
+                    points[k] = x + k / 2 + random.nextInt(3);
+                    points[k + 1] = y + (int) (20 * Math.sin(k / 10.0));
+                }
+                draw = draw.withPoints(points);
+            } else if (drawType.equals("text")){
+                draw = draw.withTextData("hello world");
+            }
+            canvas.addDrawObject(draw);
+        }
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        BufferedImage screen = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_RGB);
+        Graphics g = screen.getGraphics();
+        long bestTime = Long.MAX_VALUE;
+        long bestAllocated = Long.MAX_VALUE;
+        for (int frame = 0; frame < frames; frame++){
+            canvas.zoom(1.1, 0, 0);
+            canvas.zoom(1 / 1.1, 0, 0);
+            long allocated = threads.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            canvas.paint(g);
+            long elapsed = System.nanoTime() - start;
+            allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+            bestTime = Math.min(bestTime, elapsed);
+            bestAllocated = Math.min(bestAllocated, allocated);
+        }
+        g.dispose();
+
+        System.out.printf("%d drawings: frame %.1f ms, allocated %d KB (%d B per drawing)%n",
+                drawings, bestTime / 1e6, bestAllocated / 1024, bestAllocated / drawings);
+    }
+
+}
@@ -0,0 +1,104 @@
+package server;
+
+import message.Draw;
+import message.Frame;
+import message.WireCodec;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+/**
+ *
+ * RelayBench to compare the work a client's reader thread does for each draw object received before
+ * handing it to the board (see Server.handleClientMessage):
+ *
+ * 1. decode: the draw object is decoded and wrapped with its bytes for the relay, as done before.
+ * 2. peek: only its category and username are read from the start of the payload.
+ *
+ * Prints the time and bytes allocated per draw object for line, pen and text drawings of both codecs.
+ * The time spent there bounds how many draw objects one reader thread, or one NioWorker for all its
+ * connections, can hand to the boards per second.
+ *
+ * Usage, after mvn -Pbench test-compile:
+ * java -cp target/classes:target/test-classes:<json-simple jar> server.RelayBench [draws]
+ *
+ * Each measurement is run a few times, the first run warms up the JIT and is not printed.
+ *
+ * @author liching
+ *
+ */
+public class RelayBench {
+
+    private static final int ROUNDS = 4;
+
+    public static void main(String[] args) throws IOException, ParseException {
+        int draws = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+
+        int[] points = new int[400];
+        for (int i = 0; i < points.length; i += 2){
+            points[i] = 100 + i;
+            points[i + 1] = 200 + (i % 7);
+        }
+        Draw[] samples = {
+                new Draw("alice", "draw", "line", 10, 20, 300, 400, Color.RED),
+                new Draw("alice", "draw", "pen", 0, 0, 0, 0, Color.BLUE).withPoints(points),
+                new Draw("alice", "draw", "text", 50, 60, 50, 60, Color.BLACK).withTextData("hello whiteboard"),
+        };
+
+        for (int round = 0; round < ROUNDS; round++){
+            for (Draw sample : samples){
+                for (String codec : new String[] {WireCodec.BINARY, WireCodec.JSON}){
+                    byte[] payload = WireCodec.encode(sample, codec);
+                    String decode = decode(payload, draws);
+                    String peek = peek(payload, draws);
+                    if (round > 0){
+                        System.out.println(sample.drawType + " " + codec + ", " + payload.length + " bytes: decode "
+                                + decode + " | peek " + peek);
+                    }
+                }
+            }
+        }
+    }
+
+    private static String decode(byte[] payload, int draws) throws IOException, ParseException {
+        JSONParser parser = new JSONParser();
+        long start = allocated();
+        long time = System.nanoTime();
+        long sum = 0;
+        for (int i = 0; i < draws; i++){
+            if ("draw".equals(WireCodec.peekCategory(payload))){
+                Frame frame = Frame.relay(WireCodec.decodeDraw(payload, parser), payload);
+                sum += ((Draw) frame.getMessage()).username.length();
+            }
+        }
+        return result(draws, sum, System.nanoTime() - time, allocated() - start);
+    }
+
+    private static String peek(byte[] payload, int draws){
+        long start = allocated();
+        long time = System.nanoTime();
+        long sum = 0;
+        for (int i = 0; i < draws; i++){
+            if ("draw".equals(WireCodec.peekCategory(payload))){
+                sum += WireCodec.peekUsername(payload).length();
+            }
+        }
+        return result(draws, sum, System.nanoTime() - time, allocated() - start);
+    }
+
+    private static String result(int draws, long sum, long elapsed, long allocated){
+        if (sum != 5L * draws){
+            System.out.println("Draw objects not read");
+        }
+        return String.format("%.0f ns %.0f B/draw", elapsed / (double) draws, allocated / (double) draws);
+    }
+
+    private static long allocated(){
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+}
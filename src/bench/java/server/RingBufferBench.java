@@ -0,0 +1,204 @@
+package server;
+
+import message.LaneQueue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ *
+ * RingBufferBench to compare the RingBuffer a board's drawings wait in (see MessageWarehouse) with the
+ * LaneQueue bulk lane they waited in before.
+ *
+ * 1. queue: cost of adding and taking one message on one thread, in ns and bytes allocated per message.
+ * 2. handoff: producer threads add messages at a given rate and one consumer thread takes them, woken up
+ *    the way a MessageWarehouse is scheduled. Prints throughput and the latency from add to take.
+ *
+ * Usage, after mvn -Pbench test-compile:
+ * java -cp target/classes:target/test-classes:<json-simple jar> server.RingBufferBench queue [messages]
+ * java -cp ... server.RingBufferBench handoff [producers] [messages] [messages/sec, 0 for as fast as possible]
+ *
+ * Each measurement is run a few times, the first run warms up the JIT and is not printed.
+ *
+ * @author liching
+ *
+ */
+public class RingBufferBench {
+
+    private static final int CAPACITY = 16384;
+    private static final int ROUNDS = 4;
+    private static final long FULL_PARK_NANOS = 100_000;
+
+    // Message as queued by the MessageWarehouse: a slot reused by the ring, a new object for the LaneQueue
+    private static class Slot {
+        private int id;
+    }
+
+    // The two queues behind one interface, so both runs share the same code
+    private interface Handoff {
+        boolean offer(int id);
+        // Id of the next message, -1 if none is waiting
+        int poll();
+    }
+
+    private static class LaneQueueHandoff implements Handoff {
+        private LaneQueue<Slot> queue = new LaneQueue<>(1000, CAPACITY);
+
+        public boolean offer(int id){
+            Slot slot = new Slot();
+            slot.id = id;
+            return queue.offer(slot, LaneQueue.BULK);
+        }
+
+        public int poll(){
+            Slot slot = queue.poll();
+            return slot != null ? slot.id : -1;
+        }
+    }
+
+    private static class RingHandoff implements Handoff {
+        private RingBuffer<Slot> ring = new RingBuffer<>(CAPACITY, Slot::new);
+
+        public boolean offer(int id){
+            long sequence = ring.claim();
+            if (sequence < 0){
+                return false;
+            }
+            ring.get(sequence).id = id;
+            ring.publish(sequence);
+            return true;
+        }
+
+        public int poll(){
+            Slot slot = ring.peek();
+            if (slot == null){
+                return -1;
+            }
+            int id = slot.id;
+            ring.release();
+            return id;
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        String mode = args.length > 0 ? args[0] : "queue";
+        if (mode.equals("queue")){
+            int messages = args.length > 1 ? Integer.parseInt(args[1]) : 5_000_000;
+            for (int round = 0; round < ROUNDS; round++){
+                String laneQueue = queue(new LaneQueueHandoff(), messages);
+                String ring = queue(new RingHandoff(), messages);
+                if (round > 0){
+                    System.out.println("queue, " + messages + " messages: LaneQueue " + laneQueue + " | RingBuffer " + ring);
+                }
+            }
+        } else if (mode.equals("handoff")){
+            int producers = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+            int messages = args.length > 2 ? Integer.parseInt(args[2]) : 500_000;
+            int rate = args.length > 3 ? Integer.parseInt(args[3]) : 50_000;
+            for (int round = 0; round < ROUNDS; round++){
+                String laneQueue = handoff(new LaneQueueHandoff(), producers, messages, rate);
+                String ring = handoff(new RingHandoff(), producers, messages, rate);
+                if (round > 0){
+                    System.out.println("handoff, " + producers + " producers, " + (rate > 0 ? rate + " msgs/s" : "max rate")
+                            + ": LaneQueue " + laneQueue + " | RingBuffer " + ring);
+                }
+            }
+        } else {
+            System.out.println("Usage: RingBufferBench queue [messages] | handoff [producers] [messages] [messages/sec]");
+        }
+    }
+
+    private static String queue(Handoff handoff, int messages){
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long allocated = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        long sum = 0;
+        for (int i = 0; i < messages; i++){
+            handoff.offer(i);
+            sum += handoff.poll();
+        }
+        long elapsed = System.nanoTime() - start;
+        allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+        if (sum < 0){
+            System.out.println("Messages lost");
+        }
+        return String.format("%.1f ns %.1f B/msg", elapsed / (double) messages, allocated / (double) messages);
+    }
+
+    private static String handoff(Handoff handoff, int producers, int messages, int rate) throws InterruptedException {
+        long[] addedAt = new long[messages];
+        long[] takenAt = new long[messages];
+        AtomicInteger next = new AtomicInteger();
+        AtomicBoolean sleeping = new AtomicBoolean();
+
+        Thread consumer = new Thread(() -> {
+            int taken = 0;
+            while (taken < messages){
+                int id = handoff.poll();
+                if (id < 0){
+                    // Woken up by the next producer, like a MessageWarehouse being scheduled.
+                    // A message added just before sleeping was set did not wake it up, so look once more.
+                    sleeping.set(true);
+                    id = handoff.poll();
+                    if (id < 0){
+                        LockSupport.park();
+                        continue;
+                    }
+                    sleeping.set(false);
+                }
+                takenAt[id] = System.nanoTime();
+                taken++;
+            }
+        });
+
+        long interval = rate > 0 ? 1_000_000_000L * producers / rate : 0;
+        Thread[] threads = new Thread[producers];
+        long start = System.nanoTime();
+        consumer.start();
+        for (int p = 0; p < producers; p++){
+            threads[p] = new Thread(() -> {
+                long due = System.nanoTime();
+                int id;
+                while ((id = next.getAndIncrement()) < messages){
+                    if (interval > 0){
+                        due += interval;
+                        while (System.nanoTime() < due){
+                            Thread.onSpinWait();
+                        }
+                    }
+                    addedAt[id] = System.nanoTime();
+                    // Full queue: wait for the consumer, as the client threads do
+                    while (!handoff.offer(id)){
+                        LockSupport.parkNanos(FULL_PARK_NANOS);
+                    }
+                    if (sleeping.compareAndSet(true, false)){
+                        LockSupport.unpark(consumer);
+                    }
+                }
+            });
+            threads[p].start();
+        }
+        for (Thread thread : threads){
+            thread.join();
+        }
+        // Consumer may have gone to sleep after the last wake up
+        while (consumer.isAlive()){
+            LockSupport.unpark(consumer);
+            consumer.join(1);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        long[] latency = new long[messages];
+        for (int i = 0; i < messages; i++){
+            latency[i] = takenAt[i] - addedAt[i];
+        }
+        Arrays.sort(latency);
+        return String.format("%.0fk msgs/s, p50 %.1f us, p99 %.1f us",
+                messages / (elapsed / 1e9) / 1e3, latency[messages / 2] / 1e3, latency[messages * 99 / 100] / 1e3);
+    }
+
+}
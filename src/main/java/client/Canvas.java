@@ -1,39 +1,110 @@
 package client;
 
 import message.Draw;
-import org.json.simple.JSONArray;
+import message.Message;
+import message.Stroke;
 
 import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
-import java.awt.BasicStroke;
+import java.awt.GraphicsConfiguration;
 import java.awt.Font;
+import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionListener;
+import java.awt.event.MouseWheelEvent;
+import java.awt.event.MouseWheelListener;
 import java.util.ArrayList;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  *
  * Canvas class to manage displays and actions on the whiteboard's canvas
  *
  * Section 1: Initialization of Canvas
- * Section 2: Method to render all draw objects from ArrayList<Draw> to canvas
+ * Section 2: Methods to render draw objects to tiles and the tiles to canvas, zoom and pan
  * Section 3: Methods to update certain attributes from WhiteboardGUI input
  * Section 4: Other helper methods
  *
+ * The canvas has no edges: the mouse wheel zooms in and out around the pointer, and dragging
+ * with the right (or middle) button pans. Drawings are compiled once into the shapes Java2D
+ * paints (see CompiledDraw) and kept in a QuadTree by their bounds, so painting only looks
+ * at the drawings in view and does not create objects for them.
+ *
+ * The view is split into tiles, each keeping an image of the drawings crossing it, and
+ * repaints only copy the images of the tiles in the repainted area to the screen.
+ * A new drawing only repaints its own area and is only rendered into the tiles it crosses.
+ * Tiles stay valid while panning, they are rendered again when the canvas is cleared or zoomed.
+ *
+ * Pen strokes being drawn, the own one and those streamed by other users (see Stroke), are
+ * painted over the tiles until the finished stroke is added as a draw object. The points of
+ * the own stroke are sent every strokeStreamMillis while it is drawn.
+ *
  * @author liching
  *
  */
-public class Canvas extends JPanel implements MouseListener, MouseMotionListener {
+public class Canvas extends JPanel implements MouseListener, MouseMotionListener, MouseWheelListener {
+
+    // Size of the tiles the view is split into, in screen pixels
+    private static final int TILE_SIZE = 128;
+    // Added around the outline of each drawing for the line width,
+    // up to the miter of a sharp corner (half the width 3 times the miter limit 10)
+    private static final int LINE_MARGIN = 16;
+
+    // Zoom limits and the zoom change of one mouse wheel step
+    private static final double MIN_ZOOM = 0.05;
+    private static final double MAX_ZOOM = 20;
+    private static final double ZOOM_STEP = 1.1;
 
-    // All drawings created/received and shown on canvas
+    // All drawings created/received and shown on canvas, guarded by itself
     private ArrayList<Draw> drawObjects;
-    // New drawings created and to be sent to server
-    private LinkedBlockingDeque<Draw> sendDrawObjects;
+
+    // drawObjects by their painted bounds, guarded by drawObjects
+    private QuadTree drawIndex;
+
+    // Font of texts and the font it is derived from, guarded by drawObjects
+    private Font textFont;
+    private Font textBaseFont;
+
+    // View: a point of the canvas is shown at (point * zoom - view), in whole pixels so tiles line up
+    private double zoom;
+    private int viewX;
+    private int viewY;
+
+    // Tiles by column and row (see tileKey) of the zoomed canvas, least recently shown first.
+    // Guarded by drawObjects, only the tiles around the view are kept.
+    private LinkedHashMap<Long, Tile> tiles;
+    private int maxTiles;
+    private double tileScaleX;
+    private double tileScaleY;
+
+    // Pointer position of a pan in progress, -1 if not panning
+    private int panX;
+    private int panY;
+
+    // Pen strokes being drawn by other users, by username, and the own one (null if none).
+    // Guarded by drawObjects.
+    private HashMap<String, LiveStroke> liveStrokes;
+    private LiveStroke ownStroke;
+
+    // New drawings created and pen strokes being drawn are added here as outgoing, to be sent to server
+    private ClientEvents events;
+
+    // Sends the points of the own pen stroke added since the last streamedCount, null if strokes are not streamed
+    private Timer strokeTimer;
+    private int streamedCount;
 
     // Attributes that can be updated from GUI
     private String toolSelected;
@@ -46,25 +117,47 @@ public class Canvas extends JPanel implements MouseListener, MouseMotionListener
     private int yStart;
     private int xEnd;
     private int yEnd;
-    private JSONArray lineDataX;
-    private JSONArray lineDataY;
+    // Points of the pen stroke being drawn, and how it is simplified in screen pixels (see ClientConfig)
+    private PenStroke penStroke;
+    private double strokeMinDistance;
+    private double strokeTolerance;
 
     /*
      * Section 1: Initialization of Canvas
      */
     public Canvas(){
-        lineDataX = new JSONArray();
-        lineDataY = new JSONArray();
+        this(new ClientEvents(), ClientConfig.fromSystemProperties());
+    }
+
+    public Canvas(ClientEvents events, ClientConfig config){
+        this.events = events;
+        penStroke = new PenStroke();
+        strokeMinDistance = config.strokeMinDistance;
+        strokeTolerance = config.strokeTolerance;
+        if (config.strokeStreamMillis > 0) {
+            strokeTimer = new Timer(config.strokeStreamMillis, e -> streamStroke());
+        }
+        liveStrokes = new HashMap<>();
         drawObjects = new ArrayList<Draw>();
-        sendDrawObjects = new LinkedBlockingDeque<Draw>();
+        drawIndex = new QuadTree();
+        zoom = 1;
+        panX = -1;
+        maxTiles = 64;
+        tiles = new LinkedHashMap<Long, Tile>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Tile> eldest) {
+                return size() > maxTiles;
+            }
+        };
         this.setBackground(Color.decode("#EDF2F5"));
         this.setPreferredSize(new Dimension(400,400));
         this.addMouseListener(this);
         this.addMouseMotionListener(this);
+        this.addMouseWheelListener(this);
     }
 
     /*
-     * Section 2: Method to render all draw objects from ArrayList<Draw> to canvas
+     * Section 2: Methods to render draw objects to tiles and the tiles to canvas, zoom and pan
      */
     @Override
     public void paintComponent(Graphics g) {
@@ -72,65 +165,185 @@ public class Canvas extends JPanel implements MouseListener, MouseMotionListener
         super.paintComponent(g);
         Graphics2D g2 = (Graphics2D)g;
 
-        for (Draw drawObject : drawObjects) {
-
-            String drawType = drawObject.drawType;
-            Integer x1 = drawObject.x1;
-            Integer y1 = drawObject.y1;
-            Integer x2 = drawObject.x2;
-            Integer y2 = drawObject.y2;
-
-            Integer xMin = Math.min(x1,x2);
-            Integer yMin = Math.min(y1,y2);
-            Integer xDiff = Math.abs(x1-x2);
-            Integer yDiff = Math.abs(y1-y2);
-
-            Color savedColor = drawObject.getColor();
-
-            g2.setColor(savedColor);
-            g2.setStroke(new BasicStroke(3)); // default line thickness
-
-            switch (drawType) {
-                case "line":
-                    g2.drawLine(x1, y1, x2, y2);
-                    break;
-                case "circle":
-                    int r = (int) (Math.sqrt(xDiff*xDiff+yDiff*yDiff));
-                    x1 = (int) (x1-(r/2));
-                    y1 = (int) (y1-(r/2));
-                    g2.drawOval(x1, y1, r, r);
-                    break;
-                case "triangle":
-                    g2.drawPolygon(new int[] {xMin-xDiff,xMin,xMin+xDiff}, new int[] {yMin+yDiff,yMin,yMin+yDiff}, 3);
-                    break;
-                case "rectangle":
-                    g2.drawRect(xMin, yMin, xDiff, yDiff);
-                    break;
-                case "pen":
-                    JSONArray savedLineDataX = drawObject.lineDataX;
-                    JSONArray savedLineDataY = drawObject.lineDataY;
-                    for (int i = 0; i < savedLineDataX.size()-1; i++){
-                        g2.drawLine(Integer.valueOf(savedLineDataX.get(i).toString()),
-                                Integer.valueOf(savedLineDataY.get(i).toString()),
-                                Integer.valueOf(savedLineDataX.get(i+1).toString()),
-                                Integer.valueOf(savedLineDataY.get(i+1).toString()));
-                    }
-                    break;
-                case "text":
-                    String savedTextData = drawObject.textData;
-                    if (savedTextData != null){
-                        Font currentFont = g2.getFont();
-                        Font newFont = currentFont.deriveFont(currentFont.getSize() * 1.25F);
-                        g2.setFont(newFont);
-                        g2.drawString(savedTextData, x1, y1);
-                    }
-                    break;
-                default:
-                    break;
+        // Tile images in device pixels, so they are copied 1:1 on scaled (HiDPI) screens
+        AffineTransform transform = g2.getTransform();
+        double scaleX = transform.getScaleX();
+        double scaleY = transform.getScaleY();
+
+        Rectangle clip = g2.getClipBounds();
+        if (clip == null) {
+            clip = new Rectangle(0, 0, getWidth(), getHeight());
+        }
+
+        synchronized (drawObjects) {
+            if (tileScaleX != scaleX || tileScaleY != scaleY) {
+                tiles.clear();
+                tileScaleX = scaleX;
+                tileScaleY = scaleY;
+            }
+            // Tiles in view and about as many again around it, for panning
+            int columns = getWidth() / TILE_SIZE + 2;
+            int rows = getHeight() / TILE_SIZE + 2;
+            maxTiles = Math.max(64, 2 * columns * rows);
+
+            // Only the tiles in the repainted area
+            int firstColumn = Math.floorDiv(clip.x + viewX, TILE_SIZE);
+            int lastColumn = Math.floorDiv(clip.x + clip.width - 1 + viewX, TILE_SIZE);
+            int firstRow = Math.floorDiv(clip.y + viewY, TILE_SIZE);
+            int lastRow = Math.floorDiv(clip.y + clip.height - 1 + viewY, TILE_SIZE);
+            for (int row = firstRow; row <= lastRow; row++) {
+                for (int column = firstColumn; column <= lastColumn; column++) {
+                    Tile tile = getTile(column, row);
+                    renderTile(tile);
+                    g2.drawImage(tile.image, column * TILE_SIZE - viewX, row * TILE_SIZE - viewY,
+                            TILE_SIZE, TILE_SIZE, null);
+                }
+            }
+
+            if (ownStroke != null || !liveStrokes.isEmpty()) {
+                Graphics2D strokeGraphics = (Graphics2D) g2.create();
+                strokeGraphics.translate(-viewX, -viewY);
+                strokeGraphics.scale(zoom, zoom);
+                strokeGraphics.setStroke(CompiledDraw.STROKE);
+                for (LiveStroke stroke : liveStrokes.values()) {
+                    stroke.paint(strokeGraphics);
+                }
+                if (ownStroke != null) {
+                    ownStroke.paint(strokeGraphics);
+                }
+                strokeGraphics.dispose();
             }
         }
     }
 
+    private static long tileKey(int column, int row) {
+        return ((long) column << 32) | (row & 0xffffffffL);
+    }
+
+    // Tile at column and row of the zoomed canvas, rendered with the drawings it shows if it is not kept
+    private Tile getTile(int column, int row) {
+        long key = tileKey(column, row);
+        Tile tile = tiles.get(key);
+        if (tile == null) {
+            tile = new Tile(column, row);
+            tile.drawObjects.addAll(drawIndex.query(toCanvasArea(column * TILE_SIZE, row * TILE_SIZE,
+                    TILE_SIZE, TILE_SIZE)));
+            tiles.put(key, tile);
+        }
+        return tile;
+    }
+
+    // Area of the canvas shown in an area of the zoomed canvas, rounded outwards
+    private Rectangle toCanvasArea(int x, int y, int width, int height) {
+        int left = (int) Math.floor(x / zoom);
+        int top = (int) Math.floor(y / zoom);
+        int right = (int) Math.ceil((x + width) / zoom);
+        int bottom = (int) Math.ceil((y + height) / zoom);
+        return new Rectangle(left, top, right - left, bottom - top);
+    }
+
+    // Area of the zoomed canvas showing an area of the canvas, rounded outwards
+    private Rectangle toZoomedArea(Rectangle area) {
+        long left = (long) Math.floor(area.x * zoom);
+        long top = (long) Math.floor(area.y * zoom);
+        long right = (long) Math.ceil(((long) area.x + area.width) * zoom);
+        long bottom = (long) Math.ceil(((long) area.y + area.height) * zoom);
+        return new Rectangle((int) clamp(left), (int) clamp(top),
+                (int) clamp(right - left), (int) clamp(bottom - top));
+    }
+
+    private static long clamp(long value) {
+        return Math.max(Integer.MIN_VALUE / 2, Math.min(Integer.MAX_VALUE / 2, value));
+    }
+
+    // Add a drawing to the index and to the kept tiles it crosses. Returns the area it covers on screen.
+    private Rectangle addToTiles(Draw drawObject) {
+        CompiledDraw compiled = compile(drawObject);
+        if (compiled.isBlank()) {
+            return new Rectangle();
+        }
+        // Including the line width
+        Rectangle area = new Rectangle(compiled.bounds);
+        area.grow(LINE_MARGIN, LINE_MARGIN);
+        drawIndex.insert(compiled, area);
+
+        Rectangle zoomed = toZoomedArea(area);
+        for (Tile tile : tiles.values()) {
+            if (zoomed.intersects(tile.column * TILE_SIZE, tile.row * TILE_SIZE, TILE_SIZE, TILE_SIZE)) {
+                tile.drawObjects.add(compiled);
+            }
+        }
+        zoomed.translate(-viewX, -viewY);
+        return zoomed;
+    }
+
+    private CompiledDraw compile(Draw drawObject) {
+        Font font = getFont();
+        if (font != textBaseFont) {
+            textBaseFont = font;
+            textFont = font.deriveFont(font.getSize() * CompiledDraw.TEXT_SCALE);
+        }
+        return CompiledDraw.compile(drawObject, textFont, getFontMetrics(textFont).getFontRenderContext());
+    }
+
+    // Render the drawings added to a tile since it was last shown
+    private void renderTile(Tile tile) {
+        if (tile.image == null) {
+            int width = (int) Math.ceil(TILE_SIZE * tileScaleX);
+            int height = (int) Math.ceil(TILE_SIZE * tileScaleY);
+            tile.image = createTileImage(width, height);
+            Graphics2D imageGraphics = tile.image.createGraphics();
+            imageGraphics.setColor(getBackground());
+            imageGraphics.fillRect(0, 0, width, height);
+            imageGraphics.dispose();
+        }
+
+        if (tile.renderedCount < tile.drawObjects.size()) {
+            Graphics2D imageGraphics = tile.image.createGraphics();
+            imageGraphics.scale(tileScaleX, tileScaleY);
+            imageGraphics.translate(-tile.column * TILE_SIZE, -tile.row * TILE_SIZE);
+            imageGraphics.scale(zoom, zoom);
+            imageGraphics.setStroke(CompiledDraw.STROKE);
+            for (int i = tile.renderedCount; i < tile.drawObjects.size(); i++) {
+                tile.drawObjects.get(i).paint(imageGraphics);
+            }
+            imageGraphics.dispose();
+            tile.renderedCount = tile.drawObjects.size();
+        }
+    }
+
+    // Add points to a pen stroke being drawn. Returns the area of the new part on screen.
+    private Rectangle addToStroke(LiveStroke stroke, int[] points) {
+        Rectangle area = stroke.add(points);
+        if (area == null) {
+            return new Rectangle();
+        }
+        area.grow(LINE_MARGIN, LINE_MARGIN);
+        Rectangle zoomed = toZoomedArea(area);
+        zoomed.translate(-viewX, -viewY);
+        return zoomed;
+    }
+
+    // Area of a whole pen stroke being drawn on screen
+    private Rectangle getStrokeArea(LiveStroke stroke) {
+        if (stroke == null || stroke.bounds == null) {
+            return new Rectangle();
+        }
+        Rectangle area = new Rectangle(stroke.bounds);
+        area.grow(LINE_MARGIN, LINE_MARGIN);
+        Rectangle zoomed = toZoomedArea(area);
+        zoomed.translate(-viewX, -viewY);
+        return zoomed;
+    }
+
+    private BufferedImage createTileImage(int width, int height) {
+        GraphicsConfiguration configuration = getGraphicsConfiguration();
+        if (configuration != null) {
+            return configuration.createCompatibleImage(width, height, Transparency.OPAQUE);
+        }
+        return new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    }
+
     /*
      * Section 3: Methods to update certain attributes from WhiteboardGUI input
      */
@@ -151,19 +364,126 @@ public class Canvas extends JPanel implements MouseListener, MouseMotionListener
      * Section 4: Other helper methods
      */
     // Add new draw object received from server
+    // Only the area of the drawing is repainted. A pen stroke replaces the one its user was drawing.
     public void addDrawObject(Draw drawObject){
+        Rectangle area;
+        synchronized (drawObjects) {
+            area = add(drawObject);
+        }
+        this.repaint(area);
+    }
+
+    // Add part of a pen stroke another user is drawing
+    public void addStroke(Stroke stroke){
+        Rectangle area;
+        synchronized (drawObjects) {
+            area = add(stroke);
+        }
+        this.repaint(area);
+    }
+
+    // Add draw objects and pen stroke parts received from server in one go, in order,
+    // and repaint the area they changed once
+    public void addMessages(List<? extends Message> messages){
+        Rectangle area = new Rectangle();
+        synchronized (drawObjects) {
+            for (Message message : messages) {
+                if (message instanceof Draw) {
+                    area = union(area, add((Draw) message));
+                } else if (message instanceof Stroke) {
+                    area = union(area, add((Stroke) message));
+                }
+            }
+        }
+        this.repaint(area);
+    }
+
+    // Area changed by a new draw object. Guarded by drawObjects.
+    private Rectangle add(Draw drawObject){
         drawObjects.add(drawObject);
+        Rectangle area = addToTiles(drawObject);
+        if ("pen".equals(drawObject.drawType) && drawObject.username != null) {
+            area = union(area, getStrokeArea(liveStrokes.remove(drawObject.username)));
+        }
+        return area;
+    }
+
+    // Area changed by a pen stroke part. Guarded by drawObjects.
+    private Rectangle add(Stroke stroke){
+        if (Stroke.END.equals(stroke.phase)) {
+            return add(stroke.toDraw());
+        }
+        LiveStroke liveStroke = liveStrokes.get(stroke.username);
+        if (Stroke.BEGIN.equals(stroke.phase)) {
+            liveStroke = new LiveStroke(stroke.getColor());
+            liveStrokes.put(stroke.username, liveStroke);
+        } else if (liveStroke == null) {
+            // Begin was missed (joined mid-stroke) or the user has left, which may arrive first.
+            // The finished stroke still arrives as a draw object.
+            return new Rectangle();
+        }
+        return addToStroke(liveStroke, stroke.points);
+    }
+
+    // Smallest area containing both, ignoring empty areas
+    private static Rectangle union(Rectangle area, Rectangle other){
+        if (other.isEmpty()) {
+            return area;
+        }
+        return area.isEmpty() ? other : area.union(other);
+    }
+
+    // Remove the pen stroke a user was drawing, eg. when the user left
+    public void removeStroke(String username){
+        Rectangle area;
+        synchronized (drawObjects) {
+            area = getStrokeArea(liveStrokes.remove(username));
+        }
+        this.repaint(area);
+    }
+
+    // Zoom by factor, keeping the canvas point under (x, y) on screen where it is
+    public void zoom(double factor, int x, int y){
+        synchronized (drawObjects) {
+            double newZoom = Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, zoom * factor));
+            if (newZoom == zoom) {
+                return;
+            }
+            double canvasX = (x + viewX) / zoom;
+            double canvasY = (y + viewY) / zoom;
+            zoom = newZoom;
+            viewX = (int) Math.round(canvasX * zoom - x);
+            viewY = (int) Math.round(canvasY * zoom - y);
+            tiles.clear();
+        }
+        this.repaint();
+    }
+
+    // Move the view by (dx, dy) screen pixels, kept tiles are reused
+    public void pan(int dx, int dy){
+        synchronized (drawObjects) {
+            viewX -= dx;
+            viewY -= dy;
+        }
         this.repaint();
     }
 
-    // Send newly drawn object to the server
-    public LinkedBlockingDeque<Draw> getSendDrawObjects(){
-        return sendDrawObjects;
+    // Canvas point shown at a screen point
+    private int toCanvasX(int x){
+        return (int) Math.floor((x + viewX) / zoom);
+    }
+    private int toCanvasY(int y){
+        return (int) Math.floor((y + viewY) / zoom);
     }
 
     // Clear canvas
     public void clearCanvas(){
-        drawObjects.clear();
+        synchronized (drawObjects) {
+            drawObjects.clear();
+            drawIndex = new QuadTree();
+            tiles.clear();
+            liveStrokes.clear();
+        }
         this.repaint();
     }
 
@@ -173,54 +493,114 @@ public class Canvas extends JPanel implements MouseListener, MouseMotionListener
     }
 
     public void addToSendDrawObjects(Draw draw){
-        sendDrawObjects.add(draw);
+        events.addOutgoing(draw);
     }
 
-    // Mouse information collection
+    // Mouse information collection. Drawing uses the left button, the other buttons pan the view.
     @Override
     public void mousePressed(MouseEvent e) {
-        xStart = e.getX();
-        yStart = e.getY();
-        lineDataX.add(xStart);
-        lineDataY.add(yStart);
+        if (!SwingUtilities.isLeftMouseButton(e)) {
+            panX = e.getX();
+            panY = e.getY();
+            return;
+        }
+        xStart = toCanvasX(e.getX());
+        yStart = toCanvasY(e.getY());
+        penStroke.clear();
+        penStroke.add(xStart, yStart, 0);
+
+        if ("pen".equals(toolSelected)) {
+            int[] start = {xStart, yStart};
+            Rectangle area;
+            synchronized (drawObjects) {
+                ownStroke = new LiveStroke(colorSelected);
+                area = addToStroke(ownStroke, start);
+            }
+            this.repaint(area);
+            if (strokeTimer != null) {
+                events.addOutgoing(new Stroke(username, Stroke.BEGIN, colorSelected, start));
+                streamedCount = 1;
+                strokeTimer.start();
+            }
+        }
+    }
+
+    // Send the points of the own pen stroke added since the last time, at most once per strokeStreamMillis
+    private void streamStroke(){
+        if (ownStroke != null && penStroke.getPointCount() > streamedCount) {
+            events.addOutgoing(new Stroke(username, Stroke.APPEND, colorSelected, penStroke.getPoints(streamedCount)));
+            streamedCount = penStroke.getPointCount();
+        }
     }
 
     @Override
     public void mouseReleased(MouseEvent e) {
-        xEnd = e.getX();
-        yEnd = e.getY();
+        if (panX >= 0) {
+            if (!SwingUtilities.isLeftMouseButton(e)) {
+                panX = -1;
+            }
+            return;
+        }
+        xEnd = toCanvasX(e.getX());
+        yEnd = toCanvasY(e.getY());
 
         if (toolSelected != null){
             Draw draw = new Draw(username, "draw", toolSelected,
                     xStart, yStart, xEnd, yEnd, colorSelected);
             if (toolSelected.equals("pen")){
-
-                JSONArray savedLineDataX = new JSONArray();
-                JSONArray savedLineDataY = new JSONArray();
-                savedLineDataX.addAll(lineDataX);
-                savedLineDataY.addAll(lineDataY);
-                draw.setLineDataX(savedLineDataX);
-                draw.setLineDataY(savedLineDataY);
+                draw = draw.withPoints(penStroke.finish(strokeTolerance / zoom));
             } else if (toolSelected.equals("text")){
-                draw.setTextData(textInput);
+                draw = draw.withTextData(textInput);
                 toolSelected = null;
             }
-            drawObjects.add(draw);
-            sendDrawObjects.add(draw);
-            lineDataX.clear();
-            lineDataY.clear();
+            // A streamed pen stroke is ended with the finished stroke
+            if (ownStroke != null && strokeTimer != null){
+                events.addOutgoing(Stroke.end(draw));
+            } else {
+                events.addOutgoing(draw);
+            }
             textInput = "";
-            this.repaint();
-        } else {
-            lineDataX.clear();
-            lineDataY.clear();
+            addDrawObject(draw);
         }
+        penStroke.clear();
+        endOwnStroke();
     }
 
     @Override
     public void mouseDragged(MouseEvent e) {
-        lineDataX.add(e.getX());
-        lineDataY.add(e.getY());
+        if (panX >= 0) {
+            pan(e.getX() - panX, e.getY() - panY);
+            panX = e.getX();
+            panY = e.getY();
+            return;
+        }
+        int x = toCanvasX(e.getX());
+        int y = toCanvasY(e.getY());
+        if (penStroke.add(x, y, strokeMinDistance / zoom) && ownStroke != null) {
+            Rectangle area;
+            synchronized (drawObjects) {
+                area = addToStroke(ownStroke, new int[] {x, y});
+            }
+            this.repaint(area);
+        }
+    }
+
+    // The own pen stroke is finished, it is shown as a draw object from now on
+    private void endOwnStroke(){
+        if (strokeTimer != null) {
+            strokeTimer.stop();
+        }
+        Rectangle area;
+        synchronized (drawObjects) {
+            area = getStrokeArea(ownStroke);
+            ownStroke = null;
+        }
+        this.repaint(area);
+    }
+
+    @Override
+    public void mouseWheelMoved(MouseWheelEvent e) {
+        zoom(Math.pow(ZOOM_STEP, -e.getPreciseWheelRotation()), e.getX(), e.getY());
     }
 
     @Override
@@ -231,4 +611,65 @@ public class Canvas extends JPanel implements MouseListener, MouseMotionListener
     public void mouseExited(MouseEvent e) {}
     @Override
     public void mouseMoved(MouseEvent e) {}
+
+    // Pen stroke being drawn, its points as x0, y0, x1, y1, ...
+    private static class LiveStroke {
+        private final Color color;
+        private int[] points;
+        private int size;
+        // Area of the canvas covered by the points, null while there are none
+        private Rectangle bounds;
+
+        private LiveStroke(Color color) {
+            this.color = color != null ? color : Color.BLACK;
+            this.points = new int[64];
+        }
+
+        // Returns the area of the canvas covering the new points and the line to them, null if none
+        private Rectangle add(int[] newPoints) {
+            if (newPoints.length < 2) {
+                return null;
+            }
+            Rectangle area = size > 0
+                    ? new Rectangle(points[size - 2], points[size - 1], 0, 0)
+                    : new Rectangle(newPoints[0], newPoints[1], 0, 0);
+            if (size + newPoints.length > points.length) {
+                points = Arrays.copyOf(points, Math.max(2 * points.length, size + newPoints.length));
+            }
+            for (int i = 0; i + 1 < newPoints.length; i += 2) {
+                points[size++] = newPoints[i];
+                points[size++] = newPoints[i + 1];
+                area.add(newPoints[i], newPoints[i + 1]);
+            }
+            if (bounds == null) {
+                bounds = new Rectangle(area);
+            } else {
+                bounds.add(area);
+            }
+            return area;
+        }
+
+        private void paint(Graphics2D g2) {
+            g2.setColor(color);
+            for (int i = 0; i + 3 < size; i += 2) {
+                g2.drawLine(points[i], points[i + 1], points[i + 2], points[i + 3]);
+            }
+        }
+    }
+
+    // Part of the zoomed canvas with the drawings crossing it, in the order they were added
+    private static class Tile {
+        private final int column;
+        private final int row;
+        private final ArrayList<CompiledDraw> drawObjects;
+        // Image of the first renderedCount drawObjects, null until the tile is first shown
+        private BufferedImage image;
+        private int renderedCount;
+
+        private Tile(int column, int row) {
+            this.column = column;
+            this.row = row;
+            this.drawObjects = new ArrayList<>();
+        }
+    }
 }
@@ -0,0 +1,111 @@
+package client;
+
+import common.SystemSettings;
+import common.ThreadFactories;
+import message.Compression;
+import message.Framing;
+import message.WireCodec;
+
+/**
+ *
+ * ClientConfig to hold tunable settings for the client.
+ * Values are read from system properties (eg. -Dwhiteboard.client.threadMode=virtual)
+ * and fall back to defaults when not provided.
+ *
+ * @author liching
+ *
+ */
+public class ClientConfig {
+
+    private static final String PREFIX = "whiteboard.client.";
+
+    // "platform" or "virtual" threads for WhiteboardApplication and ConnectionEngine
+    public String threadMode;
+
+    // Board to create (manager) or join (user) on the server
+    public String board;
+
+    // Wire codec requested from the server ("binary" or "json", see WireCodec)
+    public String codec;
+
+    // Framing requested from the server ("len32" or "utf") and its limits (see Framing)
+    public String framing;
+    public int maxFrameSize;
+    public int maxMessageSize;
+
+    // Compression requested from the server ("deflate" or "none", see Compression), eg. for slow links
+    public String compression;
+
+    // Pen strokes drop mouse samples closer than strokeMinDistance to the last point kept, and points
+    // closer than strokeTolerance to the simplified stroke (see PenStroke). In screen pixels, 0 keeps them.
+    public double strokeMinDistance;
+    public double strokeTolerance;
+
+    // Pen strokes are streamed to other users while drawn, points are sent at most once per interval.
+    // 0 sends each stroke only when finished (see Stroke)
+    public int strokeStreamMillis;
+
+    // Messages received are applied to the GUI together at most once per interval, one repaint each
+    // (see FrameUpdates). 0 applies them as soon as the Swing event thread gets to them
+    public int frameMillis;
+
+    // Bound of the control and the bulk lane of the messages waiting to be sent (see LaneQueue).
+    // Drawings wait for space once the bulk lane is full, eg. when a large file is opened
+    public int controlLaneCapacity;
+    public int outgoingQueueCapacity;
+
+    // Times the client connects again to resume its session once the connection to the server is lost,
+    // waiting reconnectMillis longer before each attempt. 0 leaves the board at once (see Connection)
+    public int reconnectAttempts;
+    public long reconnectMillis;
+
+    // Connection to the server is taken as lost once nothing was received for this long. Only used with
+    // servers that send heartbeats (see Connection), 0 waits forever
+    public int readTimeoutMillis;
+
+    // Print connection details to the console: compression ratios and board snapshots received
+    public boolean verbose;
+
+    public ClientConfig(){
+        threadMode = ThreadFactories.PLATFORM;
+        board = "default";
+        codec = WireCodec.BINARY;
+        framing = Framing.LENGTH32;
+        maxFrameSize = 64 * 1024;
+        maxMessageSize = 64 * 1024 * 1024;
+        compression = Compression.NONE;
+        strokeMinDistance = 2;
+        strokeTolerance = 0.75;
+        strokeStreamMillis = 16;
+        frameMillis = 16;
+        controlLaneCapacity = 1000;
+        outgoingQueueCapacity = 10000;
+        reconnectAttempts = 5;
+        reconnectMillis = 1000;
+        readTimeoutMillis = 30000;
+        verbose = false;
+    }
+
+    public static ClientConfig fromSystemProperties(){
+        ClientConfig config = new ClientConfig();
+        config.threadMode = SystemSettings.getString(PREFIX + "threadMode", config.threadMode);
+        config.board = SystemSettings.getString(PREFIX + "board", config.board);
+        config.codec = SystemSettings.getString(PREFIX + "codec", config.codec);
+        config.framing = SystemSettings.getString(PREFIX + "framing", config.framing);
+        config.maxFrameSize = SystemSettings.getInt(PREFIX + "maxFrameSize", config.maxFrameSize);
+        config.maxMessageSize = SystemSettings.getInt(PREFIX + "maxMessageSize", config.maxMessageSize);
+        config.compression = SystemSettings.getString(PREFIX + "compression", config.compression);
+        config.strokeMinDistance = SystemSettings.getDouble(PREFIX + "strokeMinDistance", config.strokeMinDistance);
+        config.strokeTolerance = SystemSettings.getDouble(PREFIX + "strokeTolerance", config.strokeTolerance);
+        config.strokeStreamMillis = SystemSettings.getInt(PREFIX + "strokeStreamMillis", config.strokeStreamMillis);
+        config.frameMillis = SystemSettings.getInt(PREFIX + "frameMillis", config.frameMillis);
+        config.controlLaneCapacity = SystemSettings.getInt(PREFIX + "controlLaneCapacity", config.controlLaneCapacity);
+        config.outgoingQueueCapacity = SystemSettings.getInt(PREFIX + "outgoingQueueCapacity", config.outgoingQueueCapacity);
+        config.reconnectAttempts = SystemSettings.getInt(PREFIX + "reconnectAttempts", config.reconnectAttempts);
+        config.reconnectMillis = SystemSettings.getLong(PREFIX + "reconnectMillis", config.reconnectMillis);
+        config.readTimeoutMillis = SystemSettings.getInt(PREFIX + "readTimeoutMillis", config.readTimeoutMillis);
+        config.verbose = SystemSettings.getBoolean(PREFIX + "verbose", config.verbose);
+        return config;
+    }
+
+}
@@ -0,0 +1,70 @@
+package client;
+
+import message.Connection;
+import message.Message;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * ClientEvents to hold everything WhiteboardApplication acts on in one queue, in the order it happened:
+ *
+ * 1. connection: Connect/Disconnect button clicked in WhiteboardGUI, or time to reconnect after the
+ *    connection was lost (see WhiteboardApplication)
+ * 2. incoming: message received from server by a ConnectionEngine
+ * 3. outgoing: draw object, pen stroke or chat message from WhiteboardGUI (incl. Canvas) to send to server
+ *
+ * WhiteboardApplication waits on take(), so it only runs when there is something to do.
+ *
+ * @author liching
+ *
+ */
+public class ClientEvents {
+
+    public static final String CONNECTION = "connection";
+    public static final String INCOMING = "incoming";
+    public static final String OUTGOING = "outgoing";
+
+    public static class Event {
+        public final String type;
+        public final Message message;
+        // ConnectionEngine an incoming message was received by, null for other events
+        public final ConnectionEngine source;
+
+        private Event(String type, Message message, ConnectionEngine source){
+            this.type = type;
+            this.message = message;
+            this.source = source;
+        }
+    }
+
+    private LinkedBlockingQueue<Event> events;
+
+    public ClientEvents(){
+        events = new LinkedBlockingQueue<>();
+    }
+
+    public void addConnection(Connection connection){
+        events.add(new Event(CONNECTION, connection, null));
+    }
+
+    public void addIncoming(ConnectionEngine source, Message message){
+        events.add(new Event(INCOMING, message, source));
+    }
+
+    public void addOutgoing(Message message){
+        events.add(new Event(OUTGOING, message, null));
+    }
+
+    // Next event, waiting until there is one
+    public Event take() throws InterruptedException {
+        return events.take();
+    }
+
+    // Next event, waiting at most the given time. Null if there is none.
+    public Event poll(long millis) throws InterruptedException {
+        return events.poll(millis, TimeUnit.MILLISECONDS);
+    }
+
+}
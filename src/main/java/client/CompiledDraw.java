@@ -0,0 +1,135 @@
+package client;
+
+import message.Draw;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Line2D;
+
+/**
+ *
+ * CompiledDraw to hold a draw object in the form the Canvas paints it: its outline as a Shape,
+ * its Color, and the glyphs of a text. It is made once when the draw object is added to the
+ * Canvas, so painting it again does not create any objects.
+ *
+ * Pen strokes are painted as one line per pair of points, from the points of the draw object.
+ * Stroking them as one Path2D was about three times slower, as every join is computed.
+ *
+ * @author liching
+ *
+ */
+class CompiledDraw {
+
+    // Line thickness of all draw objects
+    static final BasicStroke STROKE = new BasicStroke(3);
+
+    // Text is drawn this much bigger than the canvas font
+    static final float TEXT_SCALE = 1.25F;
+
+    final Draw draw;
+    final Color color;
+    // Outline, null for pen strokes, text and draw objects with nothing to draw
+    private final Shape shape;
+    private final boolean pen;
+    // Glyphs of a text, null for other draw types
+    private final GlyphVector glyphs;
+    // Area covered on the canvas, without the line width
+    final Rectangle bounds;
+
+    private CompiledDraw(Draw draw, Shape shape, boolean pen, GlyphVector glyphs, Rectangle bounds){
+        this.draw = draw;
+        this.color = new Color(draw.rgb);
+        this.shape = shape;
+        this.pen = pen;
+        this.glyphs = glyphs;
+        this.bounds = bounds;
+    }
+
+    // Compile a draw object, texts are laid out with textFont
+    static CompiledDraw compile(Draw draw, Font textFont, FontRenderContext context){
+
+        int x1 = draw.x1;
+        int y1 = draw.y1;
+        int x2 = draw.x2;
+        int y2 = draw.y2;
+
+        int xMin = Math.min(x1,x2);
+        int yMin = Math.min(y1,y2);
+        int xDiff = Math.abs(x1-x2);
+        int yDiff = Math.abs(y1-y2);
+
+        Shape shape = null;
+        String drawType = draw.drawType != null ? draw.drawType : "";
+        switch (drawType) {
+            case "line":
+                shape = new Line2D.Float(x1, y1, x2, y2);
+                break;
+            case "circle":
+                int r = (int) (Math.sqrt(xDiff*xDiff+yDiff*yDiff));
+                shape = new Ellipse2D.Float(x1-(r/2), y1-(r/2), r, r);
+                break;
+            case "triangle":
+                shape = new Polygon(new int[] {xMin-xDiff,xMin,xMin+xDiff}, new int[] {yMin+yDiff,yMin,yMin+yDiff}, 3);
+                break;
+            case "rectangle":
+                shape = new Rectangle(xMin, yMin, xDiff, yDiff);
+                break;
+            case "pen":
+                if (draw.getPointCount() > 1){
+                    int left = draw.getPointX(0), right = left, top = draw.getPointY(0), bottom = top;
+                    for (int i = 1; i < draw.getPointCount(); i++){
+                        left = Math.min(left, draw.getPointX(i));
+                        right = Math.max(right, draw.getPointX(i));
+                        top = Math.min(top, draw.getPointY(i));
+                        bottom = Math.max(bottom, draw.getPointY(i));
+                    }
+                    return new CompiledDraw(draw, null, true, null,
+                            new Rectangle(left, top, right - left, bottom - top));
+                }
+                break;
+            case "text":
+                if (draw.textData != null){
+                    GlyphVector glyphs = textFont.createGlyphVector(context, draw.textData);
+                    Rectangle bounds = glyphs.getLogicalBounds().getBounds();
+                    bounds.translate(x1, y1);
+                    return new CompiledDraw(draw, null, false, glyphs, bounds);
+                }
+                break;
+            default:
+                break;
+        }
+
+        Rectangle bounds = shape != null ? shape.getBounds() : new Rectangle(x1, y1, 0, 0);
+        return new CompiledDraw(draw, shape, false, null, bounds);
+    }
+
+    // Nothing is painted for this draw object (eg. a pen stroke of one point)
+    boolean isBlank(){
+        return shape == null && !pen && glyphs == null;
+    }
+
+    // Paint with the STROKE set on g2
+    void paint(Graphics2D g2){
+        if (shape != null){
+            g2.setColor(color);
+            g2.draw(shape);
+        } else if (pen){
+            g2.setColor(color);
+            for (int i = 0; i < draw.getPointCount()-1; i++){
+                g2.drawLine(draw.getPointX(i), draw.getPointY(i), draw.getPointX(i+1), draw.getPointY(i+1));
+            }
+        } else if (glyphs != null){
+            g2.setColor(color);
+            g2.drawGlyphVector(glyphs, draw.x1, draw.y1);
+        }
+    }
+
+}
@@ -1,126 +1,339 @@
 package client;
 
 import message.Chat;
+import message.Compression;
 import message.Connection;
 import message.Draw;
+import message.JsonDrawCodec;
+import message.LaneQueue;
 import message.Message;
+import message.Snapshot;
+import message.Stroke;
+import message.Framing;
+import message.WireCodec;
+import message.WireFormat;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.Socket;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
 
 /**
  *
  * ConnectionEngine class to manage incoming/outgoing messages
  * to/from the server
  *
+ * Two threads, both blocked until there is work, so an idle connection uses no CPU:
+ * 1. run(): reader, waits on the socket and adds messages received to ClientEvents as incoming
+ * 2. writer: waits on the outgoing queue and writes messages once the handshake is complete
+ *
+ * The outgoing queue is a LaneQueue: chat, kicks and approvals are sent before drawings still waiting.
+ * Messages not written yet when the connection is lost are kept for the next one (see takeUnsent).
+ *
+ * Board operations received carry their sequence number. One the client already has, eg. sent again
+ * when the session is resumed, is dropped. The last number is kept to resume from (see getLastSequence).
+ *
+ * With servers sending heartbeats, pings are answered by the reader and the connection is taken as
+ * lost once nothing was received for readTimeoutMillis, eg. when the network went away.
+ *
  * @author liching
  *
  */
-public class ConnectionEngine extends Thread {
+public class ConnectionEngine implements Runnable {
 
     private Connection identity;
-    private LinkedBlockingDeque<Message> incomingActions;
-    private LinkedBlockingDeque<Message> outgoingActions;
+    private ClientEvents events;
+    private LaneQueue<Message> outgoingActions;
     private Socket socket;
+    private ThreadFactory threadFactory;
+    private Thread thread;
+    private volatile Thread writerThread;
+    private ClientConfig config;
+
+    // Wire format for outgoing messages, legacy until the server accepts another one
+    private volatile WireFormat format;
+    private Framing framing;
+    private Compression compression;
+    // Nothing else is sent until the server has answered the connection request. Guarded by this.
+    private boolean handshakeComplete;
+    // Set once the connection is closed on purpose, so the reader stops without reporting an error
+    private volatile boolean closing;
+    // Next snapshot part expected from the server, to detect missing parts
+    private int nextSnapshotPart;
+    // Set once a snapshot part is missing. The board is left, so nothing more is taken from the server.
+    private boolean joinFailed;
+    // Sequence number of the last board operation received, or of the one the session resumes from
+    private volatile long lastSequence;
+    // Messages of each lane not written when the connection was lost
+    private volatile List<Message> unsentControl;
+    private volatile List<Message> unsentBulk;
 
-    public ConnectionEngine(){
-        incomingActions = new LinkedBlockingDeque<>();
-        outgoingActions = new LinkedBlockingDeque<>();
+    public ConnectionEngine(ClientConfig config, ThreadFactory threadFactory, ClientEvents events){
+        this.events = events;
+        outgoingActions = new LaneQueue<>(config.controlLaneCapacity, config.outgoingQueueCapacity);
+        this.config = config;
+        this.threadFactory = threadFactory;
+        this.format = WireFormat.LEGACY;
+        this.framing = new Framing(config.maxMessageSize);
+        this.compression = new Compression(config.maxMessageSize);
+    }
+
+    public void start(){
+        thread = threadFactory.newThread(this);
+        thread.start();
+    }
+
+    public void interrupt(){
+        closing = true;
+        outgoingActions.close();
+        closeSocket();
+        if (thread != null){
+            thread.interrupt();
+        }
+        if (writerThread != null){
+            writerThread.interrupt();
+        }
     }
 
+    // Reader: blocks on the socket until a message arrives or the connection is closed
     @Override
     public void run(){
 
-        while (!isInterrupted()) {
-            try {
-                if (socket != null) {
-                    System.out.println("Connected to server");
+        try {
+            System.out.println("Connected to server");
 
-                    JSONParser parser = new JSONParser();
-                    DataInputStream input = new DataInputStream(socket.getInputStream());
-                    DataOutputStream output = new DataOutputStream((socket.getOutputStream()));
+            JSONParser parser = new JSONParser();
+            DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
 
-                    // First message to server for introduction
-                    output.writeUTF(identity.toString());
-                    output.flush();
-                    System.out.println("Outgoing: " + identity.toString());
-
-                    while (!socket.isClosed()) {
-                        if (input.available() > 0) {
-                            takeIncomingMessages(input, parser);
-                        }
-                        if (!outgoingActions.isEmpty()) {
-                            processOutgoingMessages(output, outgoingActions.take());
-                        }
-                    }
-                }
-            } catch (IOException | ParseException | InterruptedException e){
+            // First message to server for introduction, always sent in the legacy format
+            identity.setBoard(config.board);
+            identity.setCodec(config.codec);
+            identity.setFraming(config.framing);
+            identity.setCompression(config.compression);
+            identity.setSnapshot(Snapshot.FORMAT);
+            if (config.strokeStreamMillis > 0){
+                identity.setStrokes(Stroke.FORMAT);
+            }
+            if (config.reconnectAttempts > 0){
+                identity.setResume(Connection.RESUME);
+            }
+            if (config.readTimeoutMillis > 0){
+                identity.setHeartbeat(Connection.HEARTBEAT);
+            }
+            writeMessage(output, identity);
+            output.flush();
+
+            writerThread = threadFactory.newThread(() -> write(output));
+            writerThread.start();
+
+            while (!closing) {
+                takeIncomingMessages(input, parser);
+            }
+        } catch (IOException | ParseException | RuntimeException e){
+            // A malformed message, eg. one without a category, fails as a RuntimeException
+            if (!closing){
                 System.out.println("Error has occurred with connection to server");
+                logCompression();
+                unsentControl = outgoingActions.drain(LaneQueue.CONTROL);
+                unsentBulk = outgoingActions.drain(LaneQueue.BULK);
                 Chat server = new Chat("Bot", "","serverDisconnected",
                         "Connection error with server","");
-                incomingActions.add(server);
+                events.addIncoming(this, server);
                 interrupt();
             }
         }
     }
 
+    // Writer: blocks until the handshake is complete, then on the outgoing queue.
+    // Flushes once no more messages are waiting, so a burst goes out in few packets.
+    private void write(DataOutputStream output){
+        try {
+            synchronized (this){
+                while (!handshakeComplete){
+                    wait();
+                }
+            }
+            Message message;
+            while ((message = outgoingActions.take()) != null){
+                processOutgoingMessages(output, message);
+                if (outgoingActions.isEmpty() && !closing){
+                    output.flush();
+                }
+            }
+        } catch (InterruptedException e){
+            // Connection closed
+        } catch (IOException | RuntimeException e){
+            // Closing the socket makes the reader report the error
+            closeSocket();
+        }
+    }
+
+    private synchronized void completeHandshake(){
+        handshakeComplete = true;
+        notifyAll();
+    }
+
+    private void closeSocket(){
+        try {
+            if (socket != null){
+                socket.close();
+            }
+        } catch (IOException e){
+            e.printStackTrace();
+        }
+    }
+
     private void processOutgoingMessages(DataOutputStream output, Message sendMessage) throws IOException {
-        System.out.println("Outgoing: " + sendMessage);
+        // Servers not streaming strokes only get the finished stroke, as a draw object
+        if (sendMessage instanceof Stroke && !format.strokes){
+            Stroke stroke = (Stroke) sendMessage;
+            if (!Stroke.END.equals(stroke.phase)){
+                return;
+            }
+            sendMessage = stroke.toDraw();
+        }
         if (sendMessage.getClass().getName() == Draw.class.getName()){
             Draw sendDraw = (Draw) sendMessage;
-            output.writeUTF(sendDraw.toString());
-            output.flush();
+            writeMessage(output, sendDraw);
+        } else if (sendMessage.getClass().getName() == Stroke.class.getName()){
+            writeMessage(output, sendMessage);
         } else if (sendMessage.getClass().getName() == Chat.class.getName()){
             Chat sendChat = (Chat) sendMessage;
 
             // If quit message is from whiteboard gui or received from manager and forwarded here
             if (sendChat.category.equals("quit")){
+                // A server keeping the place of clients that lose their connection is told they leave
+                if (format.resume){
+                    writeMessage(output, sendChat);
+                }
+                logCompression();
+                output.flush();
                 interrupt();
-                socket.close();
 
             // All other messages, send through.
             } else {
-                output.writeUTF(sendChat.toString());
-                output.flush();
+                writeMessage(output, sendChat);
             }
 
         }
     }
 
+    private void writeMessage(DataOutputStream output, Message message) throws IOException {
+        byte[] payload = WireCodec.encode(message, format.codec);
+        if (format.isCompressed()){
+            payload = compression.compress(payload);
+        }
+        Framing.write(output, payload, format.framing, config.maxFrameSize);
+    }
+
     private void takeIncomingMessages(DataInputStream input, JSONParser parser) throws IOException, ParseException {
-        JSONObject receivedMsg = (JSONObject) parser.parse(input.readUTF());
-        System.out.println("Incoming: " + receivedMsg);
+        byte[] payload = framing.read(input);
+        if (format.isCompressed()){
+            payload = compression.decompress(payload);
+        }
+        JSONObject receivedMsg = WireCodec.decode(payload, parser);
+        if (joinFailed){
+            return;
+        }
+
+        // Board state for a user who just joined
+        if ("snapshot".equals(receivedMsg.get("category"))){
+            takeSnapshot(new Snapshot(receivedMsg), parser);
+            return;
+        }
+
+        // First answer from server completes the handshake. Older servers do not send "accept".
+        if (receivedMsg.get("category").equals("accept")) {
+            Connection accept = new Connection(receivedMsg);
+            String codec = accept.codec != null ? accept.codec : WireCodec.JSON;
+            String acceptedFraming = accept.framing != null ? accept.framing : Framing.UTF;
+            String acceptedCompression = accept.compression != null ? accept.compression : Compression.NONE;
+            format = new WireFormat(codec, acceptedFraming, acceptedCompression,
+                    Snapshot.FORMAT.equals(accept.snapshot), Stroke.FORMAT.equals(accept.strokes),
+                    Connection.RESUME.equals(accept.resume), Connection.HEARTBEAT.equals(accept.heartbeat));
+            framing.setFraming(acceptedFraming);
+            // Server pings at a regular interval, so a silent connection is a lost one
+            if (format.heartbeat){
+                socket.setSoTimeout(config.readTimeoutMillis);
+            }
+            completeHandshake();
+            return;
+        }
+        completeHandshake();
+
+        Object sequence = receivedMsg.get(WireCodec.SEQUENCE);
+        if (sequence instanceof Number){
+            if (((Number) sequence).longValue() <= lastSequence){
+                return;
+            }
+            lastSequence = ((Number) sequence).longValue();
+        }
+
         if (receivedMsg.get("category").equals("draw")) {
-            incomingActions.add(new Draw(receivedMsg));
+            events.addIncoming(this, JsonDrawCodec.decode(receivedMsg));
+        } else if (receivedMsg.get("category").equals("stroke")){
+            events.addIncoming(this, new Stroke(receivedMsg));
         } else if (receivedMsg.get("category").equals("chat")){
-            incomingActions.add(new Chat(receivedMsg));
+            events.addIncoming(this, new Chat(receivedMsg));
         } else if (receivedMsg.get("category").equals("userlist")){
-            incomingActions.add(new Chat(receivedMsg));
+            events.addIncoming(this, new Chat(receivedMsg));
         } else if (receivedMsg.get("category").equals("join")){
-            incomingActions.add(new Chat(receivedMsg));
+            events.addIncoming(this, new Chat(receivedMsg));
         } else if (receivedMsg.get("category").equals("approve")){
-            incomingActions.add(new Chat(receivedMsg));
+            events.addIncoming(this, new Chat(receivedMsg));
         } else if (receivedMsg.get("category").equals("deny")){
-            incomingActions.add(new Chat(receivedMsg));
+            events.addIncoming(this, new Chat(receivedMsg));
         } else if (receivedMsg.get("category").equals("quit")){
-            incomingActions.add(new Chat(receivedMsg));
+            events.addIncoming(this, new Chat(receivedMsg));
         } else if (receivedMsg.get("category").equals("kick")){
-            incomingActions.add(new Chat(receivedMsg));
+            events.addIncoming(this, new Chat(receivedMsg));
         } else if (receivedMsg.get("category").equals("new")){
-            incomingActions.add(new Chat(receivedMsg));
+            events.addIncoming(this, new Chat(receivedMsg));
+        } else if (receivedMsg.get("category").equals("session")){
+            events.addIncoming(this, new Chat(receivedMsg));
+        } else if (receivedMsg.get("category").equals("seq")){
+            Chat seq = new Chat(receivedMsg);
+            lastSequence = Math.max(lastSequence, Long.parseLong(seq.chatMessage));
+        } else if (receivedMsg.get("category").equals("ping")){
+            Chat pong = new Chat(identity.username, identity.userAccess, "pong", "", "Server");
+            outgoingActions.offer(pong, LaneQueue.CONTROL);
+        }
+    }
+
+    // State of the board as of the snapshot's version. Live updates follow the last part.
+    // Without one of the parts the board cannot be shown as it is, so joining it failed.
+    private void takeSnapshot(Snapshot snapshot, JSONParser parser) throws IOException, ParseException {
+        if (snapshot.part != nextSnapshotPart){
+            log("Snapshot part " + snapshot.part + " received, expected " + nextSnapshotPart);
+            joinFailed = true;
+            Chat failed = new Chat("Bot", "", "joinFailed",
+                    "Board received from server is incomplete, please connect again.", "");
+            events.addIncoming(this, failed);
+            return;
+        }
+        for (Draw draw : snapshot.getDraws(parser)){
+            events.addIncoming(this, draw);
+        }
+        nextSnapshotPart = snapshot.part + 1 < snapshot.parts ? snapshot.part + 1 : 0;
+        if (nextSnapshotPart == 0){
+            log("Board state received, version " + snapshot.version);
         }
     }
 
     public boolean establishConnection(Connection connection){
 
         this.identity = connection;
+        this.lastSequence = connection.sequence != null ? connection.sequence : 0;
 
         String ipAddress = connection.ipAddress;
         String port = connection.port;
@@ -135,12 +348,58 @@ public class ConnectionEngine extends Thread {
         return true;
     }
 
-    public void addOutgoingAction(Message action){
-        this.outgoingActions.add(action);
+    // Sequence number of the last board operation received, for the events already added
+    public long getLastSequence(){
+        return lastSequence;
+    }
+
+    // Put the messages not written when the connection was lost before the given ones, made after them
+    public void takeUnsent(ArrayDeque<Message> control, ArrayDeque<Message> bulk){
+        addFirst(unsentControl, control);
+        addFirst(unsentBulk, bulk);
+    }
+
+    private static void addFirst(List<Message> unsent, ArrayDeque<Message> pending){
+        if (unsent == null){
+            return;
+        }
+        for (int i = unsent.size() - 1; i >= 0; i--){
+            pending.addFirst(unsent.get(i));
+        }
     }
 
-    public LinkedBlockingDeque<Message> getIncomingActions(){
-        return this.incomingActions;
+    // Returns false if the lane of the message is full, see canAddOutgoingAction
+    public boolean addOutgoingAction(Message action){
+        return outgoingActions.offer(action, laneOf(action));
+    }
+
+    public boolean canAddOutgoingAction(Message action){
+        return !outgoingActions.isFull(laneOf(action));
+    }
+
+    // Quit closes the connection, so it goes after the drawings before it
+    static String laneOf(Message action){
+        String category = action.getCategory();
+        return "quit".equals(category) ? LaneQueue.BULK : LaneQueue.laneOf(category);
+    }
+
+    // Close the connection without sending what is still queued
+    public void close(){
+        logCompression();
+        interrupt();
+    }
+
+    private void logCompression(){
+        if (compression.isUsed()){
+            log("Compression: " + compression);
+        }
+    }
+
+    // Connection details, printed only with verbose set
+    private void log(String message){
+        if (config.verbose){
+            System.out.println(message);
+        }
     }
 
 }
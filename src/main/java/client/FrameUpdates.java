@@ -0,0 +1,85 @@
+package client;
+
+import message.Message;
+
+import javax.swing.Timer;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayList;
+
+/**
+ *
+ * FrameUpdates to hand changes to the GUI from other threads (eg. messages received, handled by
+ * WhiteboardApplication) to the Swing event thread, which is the only thread using Swing components
+ * and the draw objects of Canvas.
+ *
+ * Updates are collected and applied together at most once per frame, in the order they were added.
+ * Draw objects and pen stroke parts that follow each other go to Canvas in one go, so a burst of
+ * drawings is repainted once per frame instead of once per drawing. The first update after a quiet
+ * period is applied right away.
+ *
+ * @author liching
+ *
+ */
+class FrameUpdates implements ActionListener {
+
+    private Canvas canvas;
+    private Timer timer;
+
+    // Updates for the next frame. Guarded by this.
+    private ArrayList<Runnable> pending;
+    // Drawings of the last update in pending, null if the last update is not drawings
+    private ArrayList<Message> drawings;
+    private boolean running;
+
+    FrameUpdates(Canvas canvas, int frameMillis){
+        this.canvas = canvas;
+        this.pending = new ArrayList<>();
+        this.timer = new Timer(frameMillis, this);
+        this.timer.setInitialDelay(0);
+    }
+
+    synchronized void add(Runnable update){
+        pending.add(update);
+        drawings = null;
+        start();
+    }
+
+    // Draw object or pen stroke part received, for Canvas
+    synchronized void addDrawing(Message drawing){
+        if (drawings == null){
+            ArrayList<Message> batch = new ArrayList<>();
+            pending.add(() -> canvas.addMessages(batch));
+            drawings = batch;
+        }
+        drawings.add(drawing);
+        start();
+    }
+
+    private void start(){
+        if (!running){
+            running = true;
+            timer.start();
+        }
+    }
+
+    // Apply the updates of one frame, on the Swing event thread. Stops once a frame has none.
+    @Override
+    public void actionPerformed(ActionEvent e){
+        ArrayList<Runnable> updates;
+        synchronized (this){
+            if (pending.isEmpty()){
+                running = false;
+                timer.stop();
+                return;
+            }
+            updates = pending;
+            pending = new ArrayList<>();
+            drawings = null;
+        }
+        for (Runnable update : updates){
+            update.run();
+        }
+    }
+
+}
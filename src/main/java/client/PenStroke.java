@@ -0,0 +1,145 @@
+package client;
+
+import java.util.Arrays;
+
+/**
+ *
+ * PenStroke to collect the points of a pen stroke while it is drawn, in one int array
+ * (x0, y0, x1, y1, ...) instead of a list of boxed numbers.
+ *
+ * Mouse samples closer than a minimum distance to the last point kept are dropped, and
+ * the finished stroke is simplified with Ramer-Douglas-Peucker: points closer than a
+ * tolerance to the line between the points kept around them are removed. Both are given
+ * in canvas units, so a stroke drawn zoomed in keeps its detail.
+ *
+ * @author liching
+ *
+ */
+class PenStroke {
+
+    private int[] points;
+    private int size;
+
+    // Last sample, kept at the end of the stroke even if it was too close to be added
+    private int lastX;
+    private int lastY;
+    private boolean lastDropped;
+
+    PenStroke(){
+        points = new int[256];
+    }
+
+    // Add a mouse sample, unless it is closer than minDistance to the last point. Returns whether it was added.
+    boolean add(int x, int y, double minDistance){
+        lastX = x;
+        lastY = y;
+        if (size > 0){
+            long dx = x - points[size - 2];
+            long dy = y - points[size - 1];
+            if (dx * dx + dy * dy < minDistance * minDistance || (dx == 0 && dy == 0)){
+                lastDropped = true;
+                return false;
+            }
+        }
+        append(x, y);
+        lastDropped = false;
+        return true;
+    }
+
+    int getPointCount(){
+        return size / 2;
+    }
+
+    // Points added from index first on, before the stroke is finished
+    int[] getPoints(int first){
+        return Arrays.copyOfRange(points, 2 * first, size);
+    }
+
+    // Points of the stroke, simplified with tolerance (0 keeps every point added)
+    int[] finish(double tolerance){
+        if (lastDropped){
+            append(lastX, lastY);
+            lastDropped = false;
+        }
+        int count = size / 2;
+        if (count < 3 || tolerance <= 0){
+            return Arrays.copyOf(points, size);
+        }
+
+        boolean[] keep = new boolean[count];
+        keep[0] = true;
+        keep[count - 1] = true;
+
+        // Ranges (first, last) still to simplify, as a stack instead of recursion
+        int[] ranges = new int[2 * count];
+        int top = 0;
+        ranges[top++] = 0;
+        ranges[top++] = count - 1;
+        double toleranceSquared = tolerance * tolerance;
+
+        while (top > 0){
+            int last = ranges[--top];
+            int first = ranges[--top];
+
+            int farthest = -1;
+            double farthestDistance = toleranceSquared;
+            for (int i = first + 1; i < last; i++){
+                double distance = distanceSquared(i, first, last);
+                if (distance > farthestDistance){
+                    farthest = i;
+                    farthestDistance = distance;
+                }
+            }
+            if (farthest >= 0){
+                keep[farthest] = true;
+                ranges[top++] = first;
+                ranges[top++] = farthest;
+                ranges[top++] = farthest;
+                ranges[top++] = last;
+            }
+        }
+
+        int kept = 0;
+        for (boolean k : keep){
+            if (k){
+                kept++;
+            }
+        }
+        int[] simplified = new int[2 * kept];
+        int j = 0;
+        for (int i = 0; i < count; i++){
+            if (keep[i]){
+                simplified[j++] = points[2 * i];
+                simplified[j++] = points[2 * i + 1];
+            }
+        }
+        return simplified;
+    }
+
+    void clear(){
+        size = 0;
+        lastDropped = false;
+    }
+
+    private void append(int x, int y){
+        if (size + 2 > points.length){
+            points = Arrays.copyOf(points, 2 * points.length);
+        }
+        points[size++] = x;
+        points[size++] = y;
+    }
+
+    // Squared distance of point from the line segment between points first and last
+    private double distanceSquared(int point, int first, int last){
+        double x = points[2 * point], y = points[2 * point + 1];
+        double x1 = points[2 * first], y1 = points[2 * first + 1];
+        double x2 = points[2 * last], y2 = points[2 * last + 1];
+        double dx = x2 - x1, dy = y2 - y1;
+        double lengthSquared = dx * dx + dy * dy;
+        double t = lengthSquared == 0 ? 0 : ((x - x1) * dx + (y - y1) * dy) / lengthSquared;
+        t = Math.max(0, Math.min(1, t));
+        double px = x1 + t * dx - x, py = y1 + t * dy - y;
+        return px * px + py * py;
+    }
+
+}
@@ -0,0 +1,184 @@
+package client;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ *
+ * QuadTree to find the (compiled) draw objects in an area of the canvas without looking at all of them.
+ *
+ * Each node covers a square of the canvas and holds the objects whose bounds fit in it but
+ * not in one of its quarters. The canvas has no edges: the root grows whenever an object
+ * falls outside it. Objects are found in the order they were added, which is the order
+ * they are painted in.
+ *
+ * @author liching
+ *
+ */
+class QuadTree {
+
+    // Objects held by a node before it is split into quarters
+    private static final int MAX_ENTRIES = 16;
+    // Nodes this small are not split any more
+    private static final long MIN_SIZE = 64;
+    private static final long INITIAL_SIZE = 1024;
+
+    private static final Comparator<Entry> BY_SEQUENCE = Comparator.comparingLong(entry -> entry.sequence);
+
+    private static class Entry {
+        private final CompiledDraw draw;
+        private final Rectangle bounds;
+        private final long sequence;
+
+        private Entry(CompiledDraw draw, Rectangle bounds, long sequence){
+            this.draw = draw;
+            this.bounds = bounds;
+            this.sequence = sequence;
+        }
+    }
+
+    private static class Node {
+        private final long x;
+        private final long y;
+        private final long size;
+        private ArrayList<Entry> entries;
+        // Quarters (top left, top right, bottom left, bottom right), null until split
+        private Node[] children;
+
+        private Node(long x, long y, long size){
+            this.x = x;
+            this.y = y;
+            this.size = size;
+            this.entries = new ArrayList<>();
+        }
+
+        private boolean contains(Rectangle bounds){
+            return bounds.x >= x && bounds.y >= y
+                    && (long) bounds.x + bounds.width <= x + size && (long) bounds.y + bounds.height <= y + size;
+        }
+
+        private boolean intersects(Rectangle area){
+            return area.x < x + size && (long) area.x + area.width > x
+                    && area.y < y + size && (long) area.y + area.height > y;
+        }
+    }
+
+    private Node root;
+
+    private long nextSequence;
+
+    private int size;
+
+    QuadTree(){
+        root = new Node(0, 0, INITIAL_SIZE);
+    }
+
+    void insert(CompiledDraw draw, Rectangle bounds){
+        Entry entry = new Entry(draw, bounds, nextSequence++);
+        while (!root.contains(bounds)){
+            grow(bounds);
+        }
+
+        Node node = root;
+        while (node.children != null){
+            Node child = childContaining(node, bounds);
+            if (child == null){
+                break;
+            }
+            node = child;
+        }
+        node.entries.add(entry);
+        size++;
+
+        if (node.children == null && node.entries.size() > MAX_ENTRIES && node.size > MIN_SIZE){
+            split(node);
+        }
+    }
+
+    // Objects whose bounds intersect area, in the order they were added
+    List<CompiledDraw> query(Rectangle area){
+        ArrayList<Entry> found = new ArrayList<>();
+        collect(root, area, found);
+        found.sort(BY_SEQUENCE);
+
+        ArrayList<CompiledDraw> draws = new ArrayList<>(found.size());
+        for (Entry entry : found){
+            draws.add(entry.draw);
+        }
+        return draws;
+    }
+
+    int size(){
+        return size;
+    }
+
+    private void collect(Node node, Rectangle area, List<Entry> found){
+        if (!node.intersects(area)){
+            return;
+        }
+        for (Entry entry : node.entries){
+            if (entry.bounds.intersects(area)){
+                found.add(entry);
+            }
+        }
+        if (node.children != null){
+            for (Node child : node.children){
+                collect(child, area, found);
+            }
+        }
+    }
+
+    // Double the root towards bounds, the old root becomes one of its quarters
+    private void grow(Rectangle bounds){
+        long size = root.size;
+        long x = bounds.x < root.x ? root.x - size : root.x;
+        long y = bounds.y < root.y ? root.y - size : root.y;
+
+        Node grown = new Node(x, y, 2 * size);
+        grown.children = new Node[4];
+        for (int i = 0; i < 4; i++){
+            long childX = x + (i % 2) * size;
+            long childY = y + (i / 2) * size;
+            grown.children[i] = childX == root.x && childY == root.y ? root : new Node(childX, childY, size);
+        }
+        root = grown;
+    }
+
+    // Move the objects that fit in a quarter down into it
+    private void split(Node node){
+        long half = node.size / 2;
+        node.children = new Node[4];
+        for (int i = 0; i < 4; i++){
+            node.children[i] = new Node(node.x + (i % 2) * half, node.y + (i / 2) * half, half);
+        }
+
+        ArrayList<Entry> kept = new ArrayList<>();
+        for (Entry entry : node.entries){
+            Node child = childContaining(node, entry.bounds);
+            if (child != null){
+                child.entries.add(entry);
+            } else {
+                kept.add(entry);
+            }
+        }
+        node.entries = kept;
+
+        for (Node child : node.children){
+            if (child.entries.size() > MAX_ENTRIES && child.size > MIN_SIZE){
+                split(child);
+            }
+        }
+    }
+
+    private static Node childContaining(Node node, Rectangle bounds){
+        for (Node child : node.children){
+            if (child.contains(bounds)){
+                return child;
+            }
+        }
+        return null;
+    }
+
+}
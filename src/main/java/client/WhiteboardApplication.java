@@ -1,62 +1,119 @@
 package client;
 
+import common.ThreadFactories;
 import message.Chat;
 import message.Connection;
 import message.Draw;
+import message.LaneQueue;
 import message.Message;
+import message.Stroke;
 
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.ArrayDeque;
+import java.util.concurrent.ThreadFactory;
 
 /**
  *
  * WhiteboardApplication to manage the interaction between
  * WhiteboardGUI (incl. Canvas) and ConnectionEngine.
  *
+ * Waits on ClientEvents and handles one event at a time, in the order they happened.
+ * Changes to the GUI are handed to WhiteboardGUI, which applies them on the Swing event thread
+ * once per frame (see FrameUpdates).
+ *
+ * When the connection to the server is lost, the session is resumed on a new connection if the
+ * server gave one (see Connection): the canvas is kept and only the drawings missed are received.
+ * Messages sent meanwhile wait and go out once connected again.
+ *
  * @author liching
  *
  */
-public class WhiteboardApplication extends Thread {
+public class WhiteboardApplication implements Runnable {
+
+    // How often messages waiting for space in the connection engine are retried
+    private static final long PENDING_WAIT_MILLIS = 10;
 
     private WhiteboardGUI whiteboardGUI;
     private ConnectionEngine connectionEngine;
     private String userAccess;
     private boolean connectResponse;
     private boolean triggerConnectButton;
+    private ClientConfig config;
+    private ThreadFactory threadFactory;
+    private ClientEvents events;
+    // Outgoing messages not handed to the connection engine yet: from before it exists, or while
+    // its lane is full (eg. a large file is opened). Control messages do not wait behind drawings.
+    private ArrayDeque<Message> pendingControl;
+    private ArrayDeque<Message> pendingBulk;
+    // Session to resume once the connection is lost, null if there is none, and the sequence number
+    // of the last board operation received when it was lost
+    private String session;
+    private long lastSequence;
+    // Connection request the session was started with, and reconnect attempts since the connection was lost
+    private Connection sessionRequest;
+    private int reconnectAttempts;
 
     public WhiteboardApplication(String userAccess, WhiteboardGUI whiteboardGUI, boolean triggerConnectButton){
         this.userAccess = userAccess;
         this.whiteboardGUI = whiteboardGUI;
         this.triggerConnectButton = triggerConnectButton;
         this.connectResponse = true;
+        this.config = ClientConfig.fromSystemProperties();
+        this.threadFactory = ThreadFactories.create(config.threadMode, "whiteboard-");
+        this.events = whiteboardGUI.getEvents();
+        this.pendingControl = new ArrayDeque<>();
+        this.pendingBulk = new ArrayDeque<>();
+    }
+
+    public void start(){
+        threadFactory.newThread(this).start();
     }
 
     @Override
     public void run(){
-        while(!isInterrupted()){
+
+        // If arguments were given upon launch
+        if (triggerConnectButton) {
+            whiteboardGUI.handleConnectButton();
+            triggerConnectButton = false;
+        }
+
+        while(!Thread.currentThread().isInterrupted()){
 
             try {
 
-                // If arguments were given upon launch
-                if (triggerConnectButton) {
-                    whiteboardGUI.handleConnectButton();
-                    triggerConnectButton = false;
+                // While messages wait for space in the connection engine, check for space every few ms
+                ClientEvents.Event event;
+                if (connectionEngine != null && (!pendingControl.isEmpty() || !pendingBulk.isEmpty())){
+                    event = events.poll(PENDING_WAIT_MILLIS);
+                    sendPending();
+                    if (event == null){
+                        continue;
+                    }
+                } else {
+                    event = events.take();
                 }
 
                 /*
                  * 1. To receive connection info from WhiteboardGUI when Connect/Disconnect button is clicked
                  */
-                LinkedBlockingDeque<Connection> connectionInfo = whiteboardGUI.getConnectionInfo();
+                if (event.type.equals(ClientEvents.CONNECTION)){
 
-                if (!connectionInfo.isEmpty()){
-
-                    Connection connection = connectionInfo.take();
+                    Connection connection = (Connection) event.message;
                     String category = connection.category;
 
+                    // Connection lost a while ago, try to resume the session unless it was left meanwhile
+                    if (category.equals("connect") && connection.session != null){
+                        if (session != null && connectionEngine == null){
+                            handleReconnection(connection);
+                        }
+                    }
+
                     // Connect button clicked
-                    if (category.equals("connect")){
+                    else if (category.equals("connect")){
 
                         if (connectResponse) {
                             connectResponse = false;
+                            session = null;
                             handleConnection(connection);
                         } else {
                             Chat wait = new Chat("Bot", "bot",
@@ -74,99 +131,147 @@ public class WhiteboardApplication extends Thread {
                 }
 
                 /*
-                 * 2. To receive incoming messages from server through connection engine
+                 * 2. To receive incoming messages from server through connection engine.
+                 * Messages still arriving from an engine that has been replaced are dropped.
                  */
-                if (connectionEngine != null) {
-
-                    LinkedBlockingDeque<Message> incomingActions = connectionEngine.getIncomingActions();
-
-                    if (!incomingActions.isEmpty()){
-                        Message receiveMessage = incomingActions.take();
-
-                        if (receiveMessage.getClass().getName() == Chat.class.getName()){
-                            Chat receivedChat = (Chat) receiveMessage;
-
-                            if (receivedChat.category.equals("chat")){
-                                whiteboardGUI.addToChatArea(receivedChat);
+                else if (event.type.equals(ClientEvents.INCOMING)){
 
-                            } else if (receivedChat.category.equals("userlist")) {
-                                whiteboardGUI.setUserList(receivedChat.chatMessage);
+                    if (connectionEngine == null || event.source != connectionEngine){
+                        continue;
+                    }
+                    Message receiveMessage = event.message;
 
-                            } else if (receivedChat.category.equals("join") & this.userAccess.equals("manager")) {
-                                whiteboardGUI.promptJoinRequest(receivedChat.chatMessage);
+                    if (receiveMessage.getClass().getName() == Chat.class.getName()){
+                        Chat receivedChat = (Chat) receiveMessage;
 
-                            } else if (receivedChat.category.equals("approve") & this.userAccess.equals("user")) {
-                                whiteboardGUI.addToChatArea(receivedChat);
-                                whiteboardGUI.setConnectionStatus(true);
-                                connectResponse = true;
+                        if (receivedChat.category.equals("chat")){
+                            whiteboardGUI.addToChatArea(receivedChat);
 
-                            } else if (receivedChat.category.equals("deny") & this.userAccess.equals("user")) {
-                                whiteboardGUI.addToChatArea(receivedChat);
-                                connectionEngine = null;
-                                connectResponse = true;
+                        } else if (receivedChat.category.equals("userlist")) {
+                            whiteboardGUI.setUserList(receivedChat.chatMessage);
 
-                            } else if (receivedChat.category.equals("deny") & this.userAccess.equals("manager")) {
-                                whiteboardGUI.addToChatArea(receivedChat);
-                                whiteboardGUI.setConnectionStatus(false);
-                                connectionEngine = null;
-                                connectResponse = true;
+                        } else if (receivedChat.category.equals("join") & this.userAccess.equals("manager")) {
+                            whiteboardGUI.promptJoinRequest(receivedChat.chatMessage);
 
-                            // Receive message that manager has quit
-                            } else if (receivedChat.category.equals("quit") & receivedChat.userAccess.equals("manager")) {
-                                whiteboardGUI.addToChatArea(receivedChat);
+                        } else if (receivedChat.category.equals("approve") & this.userAccess.equals("user")) {
+                            whiteboardGUI.addToChatArea(receivedChat);
+                            whiteboardGUI.setConnectionStatus(true);
+                            connectResponse = true;
 
-                                // Just shutdown connection engine and update GUI
-                                // No further message will be sent to server
+                        } else if (receivedChat.category.equals("deny") & this.userAccess.equals("user")) {
+                            whiteboardGUI.addToChatArea(receivedChat);
+                            // Session could not be resumed
+                            if (session != null){
                                 whiteboardGUI.setConnectionStatus(false);
-                                connectionEngine.addOutgoingAction(receivedChat);
-
-                            } else if (receivedChat.category.equals("quit") & receivedChat.userAccess.equals("user")) {
-                                whiteboardGUI.addToChatArea(receivedChat);
-
-                            } else if (receivedChat.category.equals("kick") & receivedChat.recipient.equals(whiteboardGUI.getUsername())) {
-                                whiteboardGUI.addToChatArea(receivedChat);
                                 whiteboardGUI.setUserList("");
-                                whiteboardGUI.setConnectionStatus(false);
+                                leaveSession();
+                            }
+                            connectionEngine = null;
+                            connectResponse = true;
+
+                        } else if (receivedChat.category.equals("deny") & this.userAccess.equals("manager")) {
+                            whiteboardGUI.addToChatArea(receivedChat);
+                            whiteboardGUI.setConnectionStatus(false);
+                            if (session != null){
+                                leaveSession();
+                            }
+                            connectionEngine = null;
+                            connectResponse = true;
+
+                        // Receive message that manager has quit
+                        } else if (receivedChat.category.equals("quit") & receivedChat.userAccess.equals("manager")) {
+                            whiteboardGUI.addToChatArea(receivedChat);
+
+                            // Just shutdown connection engine and update GUI
+                            // No further message will be sent to server
+                            whiteboardGUI.setConnectionStatus(false);
+                            connectionEngine.close();
+                            // Drawings the server still sends after the quit are not shown
+                            connectionEngine = null;
+                            session = null;
+                            pendingControl.clear();
+                            pendingBulk.clear();
+
+                        } else if (receivedChat.category.equals("quit") & receivedChat.userAccess.equals("user")) {
+                            whiteboardGUI.addToChatArea(receivedChat);
+                            whiteboardGUI.removeStroke(receivedChat.username);
+
+                        } else if (receivedChat.category.equals("kick") & receivedChat.recipient.equals(whiteboardGUI.getUsername())) {
+                            whiteboardGUI.addToChatArea(receivedChat);
+                            whiteboardGUI.setUserList("");
+                            whiteboardGUI.setConnectionStatus(false);
+                            connectionEngine = null;
+                            session = null;
+
+                        } else if (receivedChat.category.equals("kick")) {
+                            whiteboardGUI.addToChatArea(receivedChat);
+                            whiteboardGUI.removeStroke(receivedChat.recipient);
+
+                        } else if (receivedChat.category.equals("new")) {
+                            whiteboardGUI.addToChatArea(receivedChat);
+                            whiteboardGUI.clearCanvas();
+                        // Board state received is incomplete, leave the board instead of showing part of it
+                        } else if (receivedChat.category.equals("joinFailed")){
+                            whiteboardGUI.addToChatArea(receivedChat);
+                            whiteboardGUI.setConnectionStatus(false);
+                            whiteboardGUI.setUserList("");
+                            whiteboardGUI.clearCanvas();
+                            leaveSession();
+                            String username = whiteboardGUI.getUsername();
+                            Chat quit = new Chat(username, userAccess, "quit",
+                                    "*" + username + " left*", "Server");
+                            send(quit);
+                            connectResponse = true;
+
+                        } else if (receivedChat.category.equals("serverDisconnected")){
+                            // Operations received before are all handled, they came first
+                            lastSequence = connectionEngine.getLastSequence();
+                            if (session != null && reconnectAttempts < config.reconnectAttempts){
+                                // Canvas is kept. Messages not sent yet, and those sent meanwhile, wait for the new connection.
+                                connectionEngine.takeUnsent(pendingControl, pendingBulk);
                                 connectionEngine = null;
-
-                            } else if (receivedChat.category.equals("kick")) {
-                                whiteboardGUI.addToChatArea(receivedChat);
-
-                            } else if (receivedChat.category.equals("new")) {
-                                whiteboardGUI.addToChatArea(receivedChat);
-                                whiteboardGUI.clearCanvas();
-                            } else if (receivedChat.category.equals("serverDisconnected")){
+                                Chat reconnecting = new Chat("Bot", "", "chat",
+                                        "Connection to server lost, reconnecting..", "");
+                                whiteboardGUI.addToChatArea(reconnecting);
+                                scheduleReconnection();
+                            } else {
                                 whiteboardGUI.setConnectionStatus(false);
                                 whiteboardGUI.setUserList("");
                                 whiteboardGUI.addToChatArea(receivedChat);
+                                if (session != null){
+                                    leaveSession();
+                                }
                                 connectResponse = true;
                             }
 
-                        } else if (receiveMessage.getClass().getName() == Draw.class.getName()) {
-                            whiteboardGUI.addDrawObject((Draw) receiveMessage);
+                        // Session started or resumed
+                        } else if (receivedChat.category.equals("session")){
+                            if (session != null && reconnectAttempts > 0){
+                                Chat reconnected = new Chat("Bot", "", "chat", "Reconnected to server.", "");
+                                whiteboardGUI.addToChatArea(reconnected);
+                            }
+                            session = receivedChat.chatMessage;
+                            reconnectAttempts = 0;
                         }
 
+                    } else if (receiveMessage.getClass().getName() == Draw.class.getName()) {
+                        whiteboardGUI.addDrawObject((Draw) receiveMessage);
+                    } else if (receiveMessage.getClass().getName() == Stroke.class.getName()) {
+                        whiteboardGUI.addStroke((Stroke) receiveMessage);
                     }
 
-                    /*
-                     * 3. To send outgoing messages from Canvas when draw object is created
-                     */
-                    LinkedBlockingDeque<Draw> outgoingActions = whiteboardGUI.getSendDrawObjects();
-                    if (!outgoingActions.isEmpty()){
-                        connectionEngine.addOutgoingAction(outgoingActions.take());
-                    }
+                }
 
-                    /*
-                     * 4. To send outgoing chat messages from WhiteboardGUI to server
-                     */
-                    LinkedBlockingDeque<Chat> outgoingMessages =  whiteboardGUI.getChatMessages();
-                    if (!outgoingMessages.isEmpty()){
-                        connectionEngine.addOutgoingAction(outgoingMessages.take());
-                    }
+                /*
+                 * 3. To send outgoing draw objects, pen strokes and chat messages from WhiteboardGUI (incl. Canvas) to server
+                 */
+                else if (event.type.equals(ClientEvents.OUTGOING)){
+                    send(event.message);
                 }
 
             } catch (InterruptedException e){
                 System.out.println("Error occurred with Whiteboard Application");
+                Thread.currentThread().interrupt();
             }
 
         }
@@ -176,13 +281,17 @@ public class WhiteboardApplication extends Thread {
     // Helper method to process connection request
     private void handleConnection(Connection connection){
 
-        connectionEngine = new ConnectionEngine();
-        connectionEngine.start();
+        sessionRequest = connection;
+        lastSequence = 0;
+        reconnectAttempts = 0;
+        connectionEngine = new ConnectionEngine(config, threadFactory, events);
 
         // Establish connection
         boolean connected = connectionEngine.establishConnection(connection);
 
         if (connected){
+            connectionEngine.start();
+            sendPending();
             if (this.userAccess.equals("manager")){
                 // Update GUI directly once connected for manager. No approval required.
                 whiteboardGUI.setConnectionStatus(true);
@@ -196,6 +305,56 @@ public class WhiteboardApplication extends Thread {
         }
     }
 
+    // Connect again with the session token and the last sequence number received. The server answers
+    // with the board operations missed, or denies the request if the session has expired.
+    private void handleReconnection(Connection connection){
+
+        // Token and sequence number as of now, not as of when the attempt was scheduled
+        connection.setSession(session, lastSequence);
+        connectionEngine = new ConnectionEngine(config, threadFactory, events);
+
+        if (connectionEngine.establishConnection(connection)){
+            connectionEngine.start();
+            sendPending();
+        } else if (reconnectAttempts < config.reconnectAttempts){
+            connectionEngine = null;
+            scheduleReconnection();
+        } else {
+            connectionEngine = null;
+            Chat reconnectFailed = new Chat("Bot", "", "chat", "Unable to reconnect to server.", "");
+            whiteboardGUI.setConnectionStatus(false);
+            whiteboardGUI.setUserList("");
+            whiteboardGUI.addToChatArea(reconnectFailed);
+            leaveSession();
+            connectResponse = true;
+        }
+    }
+
+    // Post a connect request carrying the session, waiting longer after each attempt
+    private void scheduleReconnection(){
+        reconnectAttempts++;
+        long delay = config.reconnectMillis * reconnectAttempts;
+        Connection reconnect = new Connection(sessionRequest.username, "connect",
+                sessionRequest.ipAddress, sessionRequest.port, userAccess);
+        reconnect.setSession(session, lastSequence);
+        threadFactory.newThread(() -> {
+            try {
+                Thread.sleep(delay);
+                events.addConnection(reconnect);
+            } catch (InterruptedException e){
+                // Not reconnecting
+            }
+        }).start();
+    }
+
+    // Session cannot be resumed. Messages waiting for it are dropped with the board they were made on.
+    private void leaveSession(){
+        session = null;
+        reconnectAttempts = 0;
+        pendingControl.clear();
+        pendingBulk.clear();
+    }
+
     // Helper method to process disconnection request
     private void handleDisconnection(Connection connection){
         // Update GUI
@@ -209,12 +368,43 @@ public class WhiteboardApplication extends Thread {
 
         String username = connection.username;
 
+        // Left while reconnecting, the server lets the user leave once the session expires
+        if (connectionEngine == null && session != null){
+            leaveSession();
+            return;
+        }
+        session = null;
+
         // Send message saying leave
         Chat quit = new Chat(username, userAccess, "quit",
                 "*" + username
                         + " left*","Server");
-        connectionEngine.addOutgoingAction(quit);
+        send(quit);
+
+    }
+
+    private void send(Message message){
+        if (LaneQueue.CONTROL.equals(ConnectionEngine.laneOf(message))){
+            pendingControl.add(message);
+        } else {
+            pendingBulk.add(message);
+        }
+        sendPending();
+    }
 
+    // Hand waiting messages to the connection engine, as far as its lanes have space
+    private void sendPending(){
+        if (connectionEngine == null){
+            return;
+        }
+        sendPending(pendingControl);
+        sendPending(pendingBulk);
+    }
+
+    private void sendPending(ArrayDeque<Message> pending){
+        while (!pending.isEmpty() && connectionEngine.canAddOutgoingAction(pending.peek())){
+            connectionEngine.addOutgoingAction(pending.poll());
+        }
     }
 
 }
\ No newline at end of file
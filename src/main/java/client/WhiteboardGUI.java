@@ -3,6 +3,8 @@ package client;
 import message.Chat;
 import message.Connection;
 import message.Draw;
+import message.JsonDrawCodec;
+import message.Stroke;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
@@ -19,6 +21,7 @@ import javax.swing.JTextField;
 import javax.swing.JLabel;
 import javax.swing.JTextArea;
 import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
 import javax.swing.JScrollPane;
 import javax.swing.JOptionPane;
 import javax.swing.JColorChooser;
@@ -41,7 +44,6 @@ import java.io.FileWriter;
 import java.sql.Timestamp;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.concurrent.LinkedBlockingDeque;
 
 /**
  *
@@ -66,9 +68,10 @@ import java.util.concurrent.LinkedBlockingDeque;
  */
 public class WhiteboardGUI extends JFrame {
 
-    // Queues
-    private LinkedBlockingDeque<Connection> connectionInfo;
-    private LinkedBlockingDeque<Chat> chatMessages;
+    // Connect/Disconnect clicks and outgoing messages, for WhiteboardApplication
+    private ClientEvents events;
+    // Changes to the GUI from WhiteboardApplication, applied on the Swing event thread
+    private FrameUpdates frameUpdates;
 
     // GUI main components
     private Canvas canvas;
@@ -111,7 +114,7 @@ public class WhiteboardGUI extends JFrame {
     private JTextField ipAddressTextField;
     private JTextField portTextField;
     private JLabel connectionStatusLabel;
-    private String username;
+    private volatile String username;
 
     // Right panel display
     private JTextArea userList;
@@ -135,8 +138,7 @@ public class WhiteboardGUI extends JFrame {
         this.ipAddressTextField = new JTextField(serverIPAddress);
         this.portTextField = new JTextField(serverPort);
 
-        connectionInfo = new LinkedBlockingDeque<>();
-        chatMessages = new LinkedBlockingDeque<>();
+        events = new ClientEvents();
 
         String displayAccess = userAccess.substring(0,1).toUpperCase()
                 + userAccess.substring(1);
@@ -147,7 +149,9 @@ public class WhiteboardGUI extends JFrame {
         this.setLocationRelativeTo(null);
 
         // Canvas
-        canvas = new Canvas();
+        ClientConfig config = ClientConfig.fromSystemProperties();
+        canvas = new Canvas(events, config);
+        frameUpdates = new FrameUpdates(canvas, config.frameMillis);
         this.add(canvas, BorderLayout.CENTER);
 
         // Panel on the left
@@ -462,11 +466,15 @@ public class WhiteboardGUI extends JFrame {
      * Section 2: Management of Interactivity with GUI
      * Subsection 1: Methods for updates relating to connection status
      */
-    public LinkedBlockingDeque<Connection> getConnectionInfo(){
-        return connectionInfo;
+    public ClientEvents getEvents(){
+        return events;
     }
 
     public void setConnectionStatus(boolean connected){
+        frameUpdates.add(() -> showConnectionStatus(connected));
+    }
+
+    private void showConnectionStatus(boolean connected){
         if (connected){
             this.username = usernameTextField.getText();
             String displayAccess = userAccess.substring(0,1).toUpperCase()
@@ -512,13 +520,19 @@ public class WhiteboardGUI extends JFrame {
      * Section 2: Management of Interactivity with GUI
      * Subsection 2: Methods for updates relating to message movements
      */
+    // Methods below can be called from any thread, the GUI is updated on the Swing event thread
+
     // Update userList in GUI
     public void setUserList(String message){
-        userList.setText(message);
+        frameUpdates.add(() -> userList.setText(message));
     }
 
     // Update chatArea in GUI
     public void addToChatArea(Chat message){
+        frameUpdates.add(() -> showInChatArea(message));
+    }
+
+    private void showInChatArea(Chat message){
         String displayMessage;
         if (message.category.equals("quit") & message.userAccess.equals("user")) {
             displayMessage = message.chatMessage;
@@ -532,25 +546,30 @@ public class WhiteboardGUI extends JFrame {
     }
 
     // Methods to receive/send draw objects or messages
-    public LinkedBlockingDeque<Draw> getSendDrawObjects(){
-        return canvas.getSendDrawObjects();
+    public void addDrawObject(Draw draw){
+        frameUpdates.addDrawing(draw);
     }
-    public LinkedBlockingDeque<Chat> getChatMessages(){
-        return chatMessages;
+    public void addStroke(Stroke stroke){
+        frameUpdates.addDrawing(stroke);
     }
-    public void addDrawObject(Draw draw){
-        canvas.addDrawObject(draw);
+    public void removeStroke(String username){
+        frameUpdates.add(() -> canvas.removeStroke(username));
     }
 
     public String getUsername() {
         return username;
     }
     public void clearCanvas(){
-        canvas.clearCanvas();
+        frameUpdates.add(() -> canvas.clearCanvas());
     }
 
-    // Prompt for manager to approve join request
+    // Prompt for manager to approve join request. The dialog waits for the manager,
+    // so it is shown after the frame's other updates instead of holding them up.
     public void promptJoinRequest(String message){
+        frameUpdates.add(() -> SwingUtilities.invokeLater(() -> showJoinRequest(message)));
+    }
+
+    private void showJoinRequest(String message){
         int response = JOptionPane.showConfirmDialog(this, message + "\n" + "Approve?",
                 "Join Request", JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE);
 
@@ -560,15 +579,15 @@ public class WhiteboardGUI extends JFrame {
         if (response == JOptionPane.NO_OPTION) {
             joinReply = new Chat(username, userAccess, "deny",
                     "Your request to connect has been denied.",userRequesting);
-            chatMessages.add(joinReply);
+            events.addOutgoing(joinReply);
         } else if (response == JOptionPane.YES_OPTION) {
             joinReply = new Chat(username, userAccess, "approve",
                     "Connected! Welcome!",userRequesting);
-            chatMessages.add(joinReply);
+            events.addOutgoing(joinReply);
         } else if (response == JOptionPane.CLOSED_OPTION) {
             joinReply = new Chat(username, userAccess, "deny",
                     "Your request to connect has been denied.",userRequesting);
-            chatMessages.add(joinReply);
+            events.addOutgoing(joinReply);
         }
 
     }
@@ -584,7 +603,7 @@ public class WhiteboardGUI extends JFrame {
                 ipAddressTextField.getText(),
                 portTextField.getText(),
                 userAccess);
-        connectionInfo.add(connection);
+        events.addConnection(connection);
         currentFile = null;
     }
 
@@ -599,10 +618,10 @@ public class WhiteboardGUI extends JFrame {
 
         if (userAccess.equals("manager")){
             if (promptToSave()){
-                connectionInfo.add(connection);
+                events.addConnection(connection);
             }
         } else {
-            connectionInfo.add(connection);
+            events.addConnection(connection);
         }
 
     }
@@ -633,7 +652,7 @@ public class WhiteboardGUI extends JFrame {
         if (!inputText.equals("")){
             Chat chatMessage = new Chat(username, userAccess, "chat",inputText,"all");
             addToChatArea(chatMessage);
-            chatMessages.add(chatMessage);
+            events.addOutgoing(chatMessage);
             chatBox.setText("");
         }
         if (inputText.startsWith("@kick @") & userAccess.equals("manager")){
@@ -642,7 +661,7 @@ public class WhiteboardGUI extends JFrame {
 
             Chat kickCommand = new Chat(username, userAccess, "kick",
                     userKicked + " has been kicked!", userKicked);
-            chatMessages.add(kickCommand);
+            events.addOutgoing(kickCommand);
 
         }
 
@@ -659,7 +678,7 @@ public class WhiteboardGUI extends JFrame {
             currentFile = null;
             Chat newCanvas = new Chat(username, userAccess, "new",
                     "A new canvas has been created.", "all");
-            chatMessages.add(newCanvas);
+            events.addOutgoing(newCanvas);
             addToChatArea(newCanvas);
 
             JOptionPane.showMessageDialog(this, "New canvas created!");
@@ -687,23 +706,16 @@ public class WhiteboardGUI extends JFrame {
 
                     // Start opening file
                     fileSelected = fileChooser.getSelectedFile();
-                    FileReader readerToRender = new FileReader(fileSelected.getAbsolutePath());
-                    FileReader readerToSend = new FileReader(fileSelected.getAbsolutePath());
+                    FileReader reader = new FileReader(fileSelected.getAbsolutePath());
 
                     JSONParser parser = new JSONParser();
-                    JSONArray fileDataToRender = (JSONArray) parser.parse(readerToRender);
-                    JSONArray fileDataSend = (JSONArray) parser.parse(readerToSend);
-                    readerToRender.close();
-                    readerToSend.close();
+                    JSONArray fileData = (JSONArray) parser.parse(reader);
+                    reader.close();
 
-                    // Check if file contents are okay and put into different arrays
+                    // Check if file contents are okay. Draw objects are immutable, so they are shared by canvas and server.
                     ArrayList<Draw> toRender = new ArrayList<>();
-                    for (Object drawObjData : fileDataToRender) {
-                        toRender.add(new Draw((JSONObject) drawObjData));
-                    }
-                    ArrayList<Draw> toSend = new ArrayList<>();
-                    for (Object drawObjData : fileDataSend) {
-                        toSend.add(new Draw((JSONObject) drawObjData));
+                    for (Object drawObjData : fileData) {
+                        toRender.add(JsonDrawCodec.decode((JSONObject) drawObjData));
                     }
 
                     // Wipe out everything before loading existing file
@@ -711,15 +723,12 @@ public class WhiteboardGUI extends JFrame {
                     Chat newCanvas = new Chat(username, userAccess, "new",
                             "A new canvas has been opened.", "all");
                     addToChatArea(newCanvas);
-                    chatMessages.add(newCanvas);
+                    events.addOutgoing(newCanvas);
 
-                    for (Draw drawObjData : toRender) {
-                        canvas.addDrawObject(drawObjData);
-                    }
+                    canvas.addMessages(toRender);
 
-                    for (Draw drawObjData : toSend) {
-                        drawObjData.setUsername(username);
-                        canvas.addToSendDrawObjects(drawObjData);
+                    for (Draw drawObjData : toRender) {
+                        canvas.addToSendDrawObjects(drawObjData.withUsername(username));
                     }
 
                     // File processed successfully: update current file.
@@ -827,7 +836,7 @@ public class WhiteboardGUI extends JFrame {
         ArrayList<Draw> currentLocalState = canvas.getDrawObjects();
         JSONArray JSONLocalState = new JSONArray();
         for (Draw drawObject : currentLocalState) {
-            JSONLocalState.add(drawObject.draw);
+            JSONLocalState.add(JsonDrawCodec.encode(drawObject));
 
         }
 
@@ -855,7 +864,7 @@ public class WhiteboardGUI extends JFrame {
                 ArrayList<Draw> currentLocalState = canvas.getDrawObjects();
                 JSONArray JSONLocalState = new JSONArray();
                 for (Draw drawObject : currentLocalState) {
-                    JSONLocalState.add(drawObject.draw);
+                    JSONLocalState.add(JsonDrawCodec.encode(drawObject));
 
                 }
 
@@ -0,0 +1,55 @@
+package common;
+
+/**
+ *
+ * SystemSettings to read optional settings from system properties,
+ * falling back to the default value when a property is missing or invalid.
+ *
+ * @author liching
+ *
+ */
+public class SystemSettings {
+
+    public static String getString(String key, String defaultValue){
+        return System.getProperty(key, defaultValue);
+    }
+
+    public static int getInt(String key, int defaultValue){
+        return (int) getLong(key, defaultValue);
+    }
+
+    public static long getLong(String key, long defaultValue){
+        String value = System.getProperty(key);
+        if (value == null){
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            System.out.println("\"" + value + "\" is not a valid number for " + key + ". Using default.");
+            return defaultValue;
+        }
+    }
+
+    public static double getDouble(String key, double defaultValue){
+        String value = System.getProperty(key);
+        if (value == null){
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            System.out.println("\"" + value + "\" is not a valid number for " + key + ". Using default.");
+            return defaultValue;
+        }
+    }
+
+    public static boolean getBoolean(String key, boolean defaultValue){
+        String value = System.getProperty(key);
+        if (value == null){
+            return defaultValue;
+        }
+        return Boolean.parseBoolean(value.trim());
+    }
+
+}
@@ -0,0 +1,50 @@
+package common;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ * ThreadFactories to create the threads used by server and client loops,
+ * either as platform threads or as virtual threads.
+ *
+ * @author liching
+ *
+ */
+public class ThreadFactories {
+
+    public static final String PLATFORM = "platform";
+    public static final String VIRTUAL = "virtual";
+
+    // Thread factory for the given mode ("platform" or "virtual")
+    public static ThreadFactory create(String mode, String namePrefix){
+        if (VIRTUAL.equalsIgnoreCase(mode)){
+            return Thread.ofVirtual().name(namePrefix, 0).factory();
+        }
+        return createPlatform(namePrefix);
+    }
+
+    // Executor starting one new thread per task, eg. one per client connection
+    public static Executor newThreadPerTaskExecutor(String mode, String namePrefix){
+        ThreadFactory factory = create(mode, namePrefix);
+        return task -> factory.newThread(task).start();
+    }
+
+    // Executor for short tasks: a pool of the given number of platform threads, or a new virtual thread
+    // per task, as virtual threads are cheap to create and are not meant to be pooled
+    public static ExecutorService newTaskExecutor(String mode, String namePrefix, int platformThreads){
+        if (VIRTUAL.equalsIgnoreCase(mode)){
+            return Executors.newThreadPerTaskExecutor(create(mode, namePrefix));
+        }
+        return Executors.newFixedThreadPool(platformThreads, create(mode, namePrefix));
+    }
+
+    private static ThreadFactory createPlatform(String namePrefix){
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> new Thread(runnable, namePrefix + counter.getAndIncrement());
+    }
+
+}
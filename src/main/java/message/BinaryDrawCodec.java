@@ -0,0 +1,291 @@
+package message;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ *
+ * Compact binary form of draw objects, used once both sides agreed on it during the connect handshake.
+ *
+ * Layout:
+ * 1. Header: type (1 byte), draw type (1 byte), flags (1 byte)
+ *    Sequence number of the board operation (8 bytes), only when stamped by the server (see stamp)
+ * 2. Color: palette index (1 byte) or RGB (3 bytes)
+ * 3. Username as length and modified UTF-8
+ * 4. x1, y1, x2, y2 as zigzag varints
+ * 5. Pen only: point count, first point, then deltas to the previous point, all zigzag varints
+ * 6. Text only: text as length and modified UTF-8
+ *
+ * JSON payloads always start with '{', so the type byte tells both formats apart.
+ *
+ * @author liching
+ *
+ */
+public class BinaryDrawCodec {
+
+    public static final byte TYPE_DRAW = 0x01;
+
+    private static final String[] DRAW_TYPES = {"line", "circle", "triangle", "rectangle", "pen", "text"};
+
+    // Colors offered in the color chooser's first row, sent as one byte
+    private static final int[] PALETTE = {
+            0x000000, 0xffffff, 0xff0000, 0x00ff00, 0x0000ff, 0xffff00, 0x00ffff, 0xff00ff,
+            0xffc800, 0xffafaf, 0x808080, 0x404040, 0xc0c0c0
+    };
+
+    private static final int FLAG_PALETTE = 1;
+    private static final int FLAG_TEXT = 1 << 1;
+    private static final int FLAG_NULL_TEXT = 1 << 2;
+    private static final int FLAG_SEQUENCE = 1 << 3;
+
+    private static final int HEADER_SIZE = 3;
+    private static final int SEQUENCE_SIZE = 8;
+
+    // Draw types without a binary form are sent as JSON
+    public static boolean canEncode(Draw draw){
+        return "draw".equals(draw.category) && drawTypeIndex(draw.drawType) >= 0;
+    }
+
+    public static byte[] encode(Draw draw) throws IOException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream output = new DataOutputStream(bytes);
+
+        int rgb = draw.rgb;
+        int paletteIndex = paletteIndex(rgb);
+        boolean isText = draw.drawType.equals("text");
+
+        int flags = 0;
+        if (paletteIndex >= 0){
+            flags |= FLAG_PALETTE;
+        }
+        if (isText && draw.textData != null){
+            flags |= FLAG_TEXT;
+        } else if (isText){
+            flags |= FLAG_NULL_TEXT;
+        }
+
+        // Header
+        output.writeByte(TYPE_DRAW);
+        output.writeByte(drawTypeIndex(draw.drawType));
+        output.writeByte(flags);
+
+        // Color
+        if (paletteIndex >= 0){
+            output.writeByte(paletteIndex);
+        } else {
+            output.writeByte(rgb >> 16);
+            output.writeByte(rgb >> 8);
+            output.writeByte(rgb);
+        }
+
+        writeText(output, draw.username);
+        writeVarInt(output, draw.x1);
+        writeVarInt(output, draw.y1);
+        writeVarInt(output, draw.x2);
+        writeVarInt(output, draw.y2);
+
+        if (draw.drawType.equals("pen")){
+            int count = draw.getPointCount();
+            writeVarInt(output, count);
+            int previousX = 0;
+            int previousY = 0;
+            for (int i = 0; i < count; i++){
+                int x = draw.getPointX(i);
+                int y = draw.getPointY(i);
+                writeVarInt(output, x - previousX);
+                writeVarInt(output, y - previousY);
+                previousX = x;
+                previousY = y;
+            }
+        }
+
+        if ((flags & FLAG_TEXT) != 0){
+            writeText(output, draw.textData);
+        }
+
+        output.flush();
+        return bytes.toByteArray();
+    }
+
+    public static Draw decode(byte[] payload) throws IOException {
+
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(payload));
+
+        // Header
+        if (input.readByte() != TYPE_DRAW){
+            throw new IOException("Not a binary draw payload");
+        }
+        int drawTypeIndex = input.readUnsignedByte();
+        if (drawTypeIndex >= DRAW_TYPES.length){
+            throw new IOException("Unknown draw type " + drawTypeIndex);
+        }
+        String drawType = DRAW_TYPES[drawTypeIndex];
+        int flags = input.readUnsignedByte();
+        if ((flags & FLAG_SEQUENCE) != 0){
+            input.readLong();
+        }
+
+        // Color
+        int rgb;
+        if ((flags & FLAG_PALETTE) != 0){
+            rgb = PALETTE[input.readUnsignedByte() % PALETTE.length];
+        } else {
+            rgb = (input.readUnsignedByte() << 16) | (input.readUnsignedByte() << 8) | input.readUnsignedByte();
+        }
+
+        String username = readText(input);
+        int x1 = readVarInt(input);
+        int y1 = readVarInt(input);
+        int x2 = readVarInt(input);
+        int y2 = readVarInt(input);
+
+        int[] points = new int[0];
+        if (drawType.equals("pen")){
+            int count = readVarInt(input);
+            // Every point takes at least two bytes
+            if (count < 0 || count > input.available() / 2){
+                throw new IOException("Malformed point count " + count);
+            }
+            points = new int[2 * count];
+            int x = 0;
+            int y = 0;
+            for (int i = 0; i < count; i++){
+                x += readVarInt(input);
+                y += readVarInt(input);
+                points[2 * i] = x;
+                points[2 * i + 1] = y;
+            }
+        }
+
+        String textData = Draw.NO_TEXT;
+        if ((flags & FLAG_TEXT) != 0){
+            textData = readText(input);
+        } else if ((flags & FLAG_NULL_TEXT) != 0){
+            textData = null;
+        }
+
+        Draw draw = new Draw(username, "draw", drawType, x1, y1, x2, y2, rgb, points, textData);
+        return draw;
+    }
+
+    // Username of a payload without decoding the rest of it, null if the start of the payload is malformed
+    public static String peekUsername(byte[] payload){
+        if (payload.length < 4 || payload[0] != TYPE_DRAW){
+            return null;
+        }
+        // After the header, the sequence number and the color
+        int position = HEADER_SIZE + ((payload[2] & FLAG_SEQUENCE) != 0 ? SEQUENCE_SIZE : 0)
+                + ((payload[2] & FLAG_PALETTE) != 0 ? 1 : 3);
+        int zigzag = 0;
+        for (int shift = 0; ; shift += 7){
+            if (position >= payload.length || shift >= 35){
+                return null;
+            }
+            int b = payload[position++] & 0xff;
+            zigzag |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0){
+                break;
+            }
+        }
+        int length = (zigzag >>> 1) ^ -(zigzag & 1);
+        if (length < 0 || length > payload.length - position){
+            return null;
+        }
+        try {
+            return WireCodec.decodeText(payload, position, length);
+        } catch (IOException e){
+            return null;
+        }
+    }
+
+    // Payload with the sequence number of the board operation after its header. The payload given
+    // is not modified and must not be stamped already.
+    public static byte[] stamp(byte[] payload, long sequence){
+        byte[] stamped = new byte[payload.length + SEQUENCE_SIZE];
+        System.arraycopy(payload, 0, stamped, 0, HEADER_SIZE);
+        stamped[2] |= FLAG_SEQUENCE;
+        for (int i = 0; i < SEQUENCE_SIZE; i++){
+            stamped[HEADER_SIZE + i] = (byte) (sequence >>> (56 - 8 * i));
+        }
+        System.arraycopy(payload, HEADER_SIZE, stamped, HEADER_SIZE + SEQUENCE_SIZE, payload.length - HEADER_SIZE);
+        return stamped;
+    }
+
+    // Sequence number stamped on the payload, -1 if there is none
+    public static long peekSequence(byte[] payload){
+        if (payload.length < HEADER_SIZE + SEQUENCE_SIZE || payload[0] != TYPE_DRAW
+                || (payload[2] & FLAG_SEQUENCE) == 0){
+            return -1;
+        }
+        long sequence = 0;
+        for (int i = 0; i < SEQUENCE_SIZE; i++){
+            sequence = (sequence << 8) | (payload[HEADER_SIZE + i] & 0xff);
+        }
+        return sequence;
+    }
+
+    private static int drawTypeIndex(String drawType){
+        for (int i = 0; i < DRAW_TYPES.length; i++){
+            if (DRAW_TYPES[i].equals(drawType)){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int paletteIndex(int rgb){
+        for (int i = 0; i < PALETTE.length; i++){
+            if (PALETTE[i] == rgb){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void writeText(DataOutputStream output, String text) throws IOException {
+        byte[] bytes = WireCodec.encodeText(text);
+        writeVarInt(output, bytes.length);
+        output.write(bytes);
+    }
+
+    private static String readText(DataInputStream input) throws IOException {
+        int length = readVarInt(input);
+        if (length < 0 || length > input.available()){
+            throw new IOException("Malformed text length " + length);
+        }
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return WireCodec.decodeText(bytes);
+    }
+
+    // Zigzag varint: small positive and negative numbers take a single byte
+    public static void writeVarInt(DataOutputStream output, int value) throws IOException {
+        int zigzag = (value << 1) ^ (value >> 31);
+        while ((zigzag & ~0x7f) != 0){
+            output.writeByte((zigzag & 0x7f) | 0x80);
+            zigzag >>>= 7;
+        }
+        output.writeByte(zigzag);
+    }
+
+    public static int readVarInt(DataInputStream input) throws IOException {
+        int zigzag = 0;
+        for (int shift = 0; shift < 35; shift += 7){
+            int b = input.read();
+            if (b < 0){
+                throw new EOFException();
+            }
+            zigzag |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0){
+                return (zigzag >>> 1) ^ -(zigzag & 1);
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+}
@@ -51,6 +51,11 @@ public class Chat extends Message {
 
     }
 
+    @Override
+    public String getCategory() {
+        return category;
+    }
+
     @Override
     public String toString() {
         return chat.toString();
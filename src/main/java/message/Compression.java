@@ -0,0 +1,154 @@
+package message;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ *
+ * Compression of the payloads on one connection, agreed in the connect handshake.
+ *
+ * With deflate, both directions are one continuous deflate stream. Each payload is
+ * flushed with SYNC_FLUSH, so it can be inflated as soon as its frame arrives while
+ * later payloads still benefit from what was sent before (eg. repeated JSON keys).
+ *
+ * compress() is used by the writer of a connection and decompress() by its reader.
+ * A payload that is compressed must reach the other side, so compression is only used
+ * with framing that has no size limit (len32). Byte counts are kept for both directions
+ * to show the effect.
+ *
+ * @author liching
+ *
+ */
+public class Compression {
+
+    public static final String NONE = "none";
+    public static final String DEFLATE = "deflate";
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private Deflater deflater;
+    private Inflater inflater;
+    private int maxMessageSize;
+    private byte[] buffer;
+    private final Object deflateLock = new Object();
+    private final Object inflateLock = new Object();
+    private volatile boolean ended;
+
+    private AtomicLong rawBytesOut = new AtomicLong();
+    private AtomicLong compressedBytesOut = new AtomicLong();
+    private AtomicLong rawBytesIn = new AtomicLong();
+    private AtomicLong compressedBytesIn = new AtomicLong();
+
+    public Compression(int maxMessageSize){
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    public byte[] compress(byte[] payload) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(64, payload.length / 4));
+        synchronized (deflateLock){
+            if (ended){
+                throw new IOException("Compression ended");
+            }
+            if (deflater == null){
+                deflater = new Deflater();
+                buffer = new byte[BUFFER_SIZE];
+            }
+
+            deflater.setInput(payload);
+            int length;
+            do {
+                length = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                compressed.write(buffer, 0, length);
+            } while (length == buffer.length);
+        }
+
+        byte[] result = compressed.toByteArray();
+        rawBytesOut.addAndGet(payload.length);
+        compressedBytesOut.addAndGet(result.length);
+        return result;
+    }
+
+    public byte[] decompress(byte[] payload) throws IOException {
+        ByteArrayOutputStream raw = new ByteArrayOutputStream(payload.length * 4);
+        byte[] output = new byte[BUFFER_SIZE];
+        synchronized (inflateLock){
+            if (ended){
+                throw new IOException("Compression ended");
+            }
+            if (inflater == null){
+                inflater = new Inflater();
+            }
+
+            inflater.setInput(payload);
+            try {
+                int length;
+                do {
+                    length = inflater.inflate(output);
+                    if (length == 0 && (inflater.finished() || inflater.needsDictionary())){
+                        break;
+                    }
+                    if (raw.size() + length > maxMessageSize){
+                        throw new IOException("Message exceeds the maximum of " + maxMessageSize + " bytes");
+                    }
+                    raw.write(output, 0, length);
+                // A full output buffer may leave more output behind even when all input was read
+                } while (length == output.length || !inflater.needsInput());
+            } catch (DataFormatException e){
+                throw new IOException("Malformed compressed payload", e);
+            }
+        }
+
+        byte[] result = raw.toByteArray();
+        compressedBytesIn.addAndGet(payload.length);
+        rawBytesIn.addAndGet(result.length);
+        return result;
+    }
+
+    // Release the native deflate state once the connection is closed
+    public void end(){
+        synchronized (deflateLock){
+            synchronized (inflateLock){
+                if (ended){
+                    return;
+                }
+                ended = true;
+                if (deflater != null){
+                    deflater.end();
+                }
+                if (inflater != null){
+                    inflater.end();
+                }
+            }
+        }
+    }
+
+    // True once some payload was compressed or decompressed
+    public boolean isUsed(){
+        return compressedBytesOut.get() > 0 || compressedBytesIn.get() > 0;
+    }
+
+    // Raw bytes per compressed byte, for payloads sent and received
+    public double getRatioOut(){
+        return ratio(rawBytesOut.get(), compressedBytesOut.get());
+    }
+
+    public double getRatioIn(){
+        return ratio(rawBytesIn.get(), compressedBytesIn.get());
+    }
+
+    private static double ratio(long raw, long compressed){
+        return compressed == 0 ? 1.0 : (double) raw / compressed;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("sent %d -> %d bytes (%.1fx), received %d -> %d bytes (%.1fx)",
+                rawBytesOut.get(), compressedBytesOut.get(), getRatioOut(),
+                compressedBytesIn.get(), rawBytesIn.get(), getRatioIn());
+    }
+
+}
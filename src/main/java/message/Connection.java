@@ -6,17 +6,50 @@ import org.json.simple.JSONObject;
  *
  * Child class of Message to hold connection and disconnection requests information.
  *
+ * Clients asking for it ("resume":"1") get a session token once they are on the board ("session").
+ * Every board operation carries its sequence number (see WireCodec.stamp), and a client whose own
+ * operations were sequenced gets the number of the last one after them ("seq"). When the connection
+ * is lost, the client connects again with its token and the last sequence number it has ("session"
+ * and "sequence") and only gets the operations after it, without the manager's approval.
+ *
+ * Clients asking for heartbeats ("heartbeat":"1") get a "ping" at a regular interval and answer it
+ * with a "pong", so either side notices when the other stopped answering.
+ *
  * @author liching
  *
  */
 public class Connection extends Message {
 
+    // Resume format understood by this version, sent in the connect request
+    public static final String RESUME = "1";
+    // Heartbeat format understood by this version, sent in the connect request
+    public static final String HEARTBEAT = "1";
+
     public JSONObject connection;
     public String username;
     public String category;
     public String ipAddress;
     public String port;
     public String userAccess;
+    // Board to create or join, null for older clients (default board)
+    public String board;
+    // Wire codec requested by the client or accepted by the server, null for older clients
+    public String codec;
+    // Framing requested by the client or accepted by the server, null for older clients
+    public String framing;
+    // Compression requested by the client or accepted by the server, null for older clients
+    public String compression;
+    // Snapshot format requested by the client or accepted by the server, null for older clients
+    public String snapshot;
+    // Stroke format requested by the client or accepted by the server, null for older clients
+    public String strokes;
+    // Resume format requested by the client or accepted by the server, null for older clients
+    public String resume;
+    // Heartbeat format requested by the client or accepted by the server, null for older clients
+    public String heartbeat;
+    // Session to resume and the sequence number of the last board operation the client has, null for a new session
+    public String session;
+    public Long sequence;
 
     public Connection(){
     }
@@ -50,7 +83,80 @@ public class Connection extends Message {
         this.ipAddress = (String) connectRequest.get("ipAddress");
         this.port = (String) connectRequest.get("port");
         this.userAccess = (String) connectRequest.get("userAccess");
+        this.board = (String) connectRequest.get("board");
+        this.codec = (String) connectRequest.get("codec");
+        this.framing = (String) connectRequest.get("framing");
+        this.compression = (String) connectRequest.get("compression");
+        this.snapshot = (String) connectRequest.get("snapshot");
+        this.strokes = (String) connectRequest.get("strokes");
+        this.resume = (String) connectRequest.get("resume");
+        this.heartbeat = (String) connectRequest.get("heartbeat");
+        this.session = (String) connectRequest.get("session");
+        Number sequence = (Number) connectRequest.get("sequence");
+        this.sequence = sequence != null ? sequence.longValue() : null;
+
+    }
+
+    public void setBoard(String board){
+        connection.remove("board");
+        connection.put("board", board);
+        this.board = board;
+    }
+
+    public void setCodec(String codec){
+        connection.remove("codec");
+        connection.put("codec", codec);
+        this.codec = codec;
+    }
+
+    public void setFraming(String framing){
+        connection.remove("framing");
+        connection.put("framing", framing);
+        this.framing = framing;
+    }
+
+    public void setSnapshot(String snapshot){
+        connection.remove("snapshot");
+        connection.put("snapshot", snapshot);
+        this.snapshot = snapshot;
+    }
+
+    public void setStrokes(String strokes){
+        connection.remove("strokes");
+        connection.put("strokes", strokes);
+        this.strokes = strokes;
+    }
+
+    public void setResume(String resume){
+        connection.remove("resume");
+        connection.put("resume", resume);
+        this.resume = resume;
+    }
+
+    public void setHeartbeat(String heartbeat){
+        connection.remove("heartbeat");
+        connection.put("heartbeat", heartbeat);
+        this.heartbeat = heartbeat;
+    }
+
+    public void setSession(String session, long sequence){
+        connection.remove("session");
+        connection.remove("sequence");
+        connection.put("session", session);
+        connection.put("sequence", sequence);
+        this.session = session;
+        this.sequence = sequence;
+    }
 
+    public void setCompression(String compression){
+        connection.remove("compression");
+        connection.put("compression", compression);
+        this.compression = compression;
+    }
+
+    @Override
+    public String getCategory() {
+        return category;
     }
 
     @Override
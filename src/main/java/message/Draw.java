@@ -1,133 +1,114 @@
 package message;
 
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
-
 import java.awt.Color;
+import java.util.Arrays;
 
 /**
  *
  * Child class of Message to represent draw objects on Canvas.
  *
+ * Draw objects are immutable and kept in primitive form: coordinates as ints, pen points
+ * packed in one int array and the color as RGB. Usernames and types are interned, so the
+ * many objects of a board share them. Wire forms are created by the codecs
+ * (see JsonDrawCodec and BinaryDrawCodec).
+ *
  * @author liching
  *
  */
-public class Draw extends Message {
-
-    public JSONObject draw;
-    public String username;
-    public String category;
-    public String drawType;
-    public Integer x1;
-    public Integer y1;
-    public Integer x2;
-    public Integer y2;
-    public String color;
-    public JSONArray lineDataX;
-    public JSONArray lineDataY;
-    public String textData;
-
-    public Draw(){
+public final class Draw extends Message {
+
+    // Text of draw objects other than text
+    public static final String NO_TEXT = "na";
+
+    private static final int[] NO_POINTS = new int[0];
+
+    public final String username;
+    public final String category;
+    public final String drawType;
+    public final int x1;
+    public final int y1;
+    public final int x2;
+    public final int y2;
+    // Color as 0xRRGGBB
+    public final int rgb;
+    // Pen points as x0, y0, x1, y1, ..., empty for other draw types
+    private final int[] points;
+    public final String textData;
+
+    // Create a draw object with given attributes
+    public Draw(String username, String category, String drawType,
+                int x1, int y1,
+                int x2, int y2, Color color){
+        this(username, category, drawType, x1, y1, x2, y2,
+                color != null ? color.getRGB() & 0xffffff : 0, NO_POINTS, NO_TEXT);
     }
 
-    // Create a draw object with given string attributes
-    public Draw(String username, String category, String drawType,
-                Integer x1, Integer y1,
-                Integer x2, Integer y2, Color color){
-
-        draw = new JSONObject();
-        draw.put("username", username);
-        draw.put("category",category);
-        draw.put("drawType", drawType);
-        draw.put("x1", x1);
-        draw.put("y1", y1);
-        draw.put("x2", x2);
-        draw.put("y2", y2);
-        draw.put("color", "#000000");
-        draw.put("lineDataX",new JSONArray());
-        draw.put("lineDataY",new JSONArray());
-        draw.put("textData", "na");
-
-        this.username = username;
-        this.category = category;
-        this.drawType = drawType;
+    // Takes ownership of points, which must not be modified afterwards
+    Draw(String username, String category, String drawType,
+         int x1, int y1, int x2, int y2,
+         int rgb, int[] points, String textData){
+        this.username = intern(username);
+        this.category = intern(category);
+        this.drawType = intern(drawType);
         this.x1 = x1;
         this.y1 = y1;
         this.x2 = x2;
         this.y2 = y2;
-        if (color != null){
-            draw.remove("color");
-            this.color = convertColorToHex(color);
-            draw.put("color",this.color);
-        } else {
-            this.color = "#000000";
-        }
-
+        this.rgb = rgb & 0xffffff;
+        this.points = points.length == 0 ? NO_POINTS : points;
+        this.textData = NO_TEXT.equals(textData) ? NO_TEXT : textData;
     }
 
-    // Create a draw object with given JSONObject
-    public Draw(JSONObject draw){
-
-        this.draw = draw;
-
-        this.username = (String) draw.get("username");
-        this.category = (String) draw.get("category");
-        this.drawType = (String) draw.get("drawType");
-        this.x1 = (int) (long) draw.get("x1");
-        this.y1 = (int) (long) draw.get("y1");
-        this.x2 = (int) (long) draw.get("x2");
-        this.y2 = (int) (long) draw.get("y2");
-        this.color = (String) draw.get("color");
-        this.lineDataX = (JSONArray) draw.get("lineDataX");
-        this.lineDataY = (JSONArray) draw.get("lineDataY");
-        this.textData = (String) draw.get("textData");
+    /*
+     * Copies with one attribute changed
+     */
+    public Draw withUsername(String username){
+        return new Draw(username, category, drawType, x1, y1, x2, y2, rgb, points, textData);
+    }
 
+    // Pen points given as x0, y0, x1, y1, ...
+    public Draw withPoints(int[] points){
+        return new Draw(username, category, drawType, x1, y1, x2, y2, rgb,
+                Arrays.copyOf(points, points.length & ~1), textData);
     }
 
-    public void setUsername(String username){
-        draw.remove("username");
-        draw.put("username", username);
-        this.username = username;
+    public Draw withTextData(String textData){
+        return new Draw(username, category, drawType, x1, y1, x2, y2, rgb, points, textData);
     }
-    public void setLineDataX(JSONArray lineDataX){
-        draw.remove("lineDataX");
-        draw.put("lineDataX", lineDataX);
-        this.lineDataX = lineDataX;
+
+    public int getPointCount(){
+        return points.length / 2;
     }
 
-    public void setLineDataY(JSONArray lineDataY){
-        draw.remove("lineDataY");
-        draw.put("lineDataY", lineDataY);
-        this.lineDataY = lineDataY;
+    public int getPointX(int index){
+        return points[2 * index];
     }
 
-    public void setTextData(String textData){
-        draw.remove("textData");
-        draw.put("textData", textData);
-        this.textData = textData;
+    public int getPointY(int index){
+        return points[2 * index + 1];
     }
 
     public Color getColor(){
-        return convertHexToColor(color);
+        return new Color(rgb);
+    }
+
+    // Color as "#rrggbb"
+    public String getColorHex(){
+        return "#" + Integer.toHexString(rgb | 0x1000000).substring(1);
     }
 
-    private String convertColorToHex(Color color){
-        String hex = "#" + Integer.toHexString((color.getRGB() & 0xffffff) | 0x1000000).substring(1);
-        return hex;
+    private static String intern(String value){
+        return value != null ? value.intern() : null;
     }
 
-    private Color convertHexToColor(String hex){
-        Color color = Color.decode(hex);
-        return color;
+    @Override
+    public String getCategory() {
+        return category;
     }
 
     @Override
     public String toString() {
-        return draw.toString();
+        return JsonDrawCodec.encode(this).toString();
     }
 
 }
-
-
-
-
@@ -0,0 +1,98 @@
+package message;
+
+import java.io.IOException;
+
+/**
+ *
+ * Frame to hold a message already encoded for the wire.
+ * A message is encoded once per codec and the same immutable bytes are written
+ * to every recipient using that codec, however many there are.
+ *
+ * Draw objects received from a client are relayed with the bytes they arrived in, only stamped,
+ * so they are only encoded again for recipients using the other codec.
+ *
+ * Board operations are stamped with their sequence number (see WireCodec.stamp), in every codec.
+ *
+ * Only the payload is held, the connection adds the header of its framing (see Framing).
+ *
+ * @author liching
+ *
+ */
+public final class Frame {
+
+    private final Message message;
+    private final String category;
+    private final String codec;
+    private final byte[] payload;
+    // Sequence number stamped on the payload, -1 if it is not a board operation
+    private final long sequence;
+
+    // Same message encoded with the other codec, created on first use
+    private volatile Frame otherFrame;
+
+    private Frame(Message message, String category, String codec, byte[] payload, long sequence){
+        this.message = message;
+        this.category = category;
+        this.codec = codec;
+        this.payload = payload;
+        this.sequence = sequence;
+    }
+
+    public static Frame encode(Message message){
+        return new Frame(message, message.getCategory(), WireCodec.JSON, WireCodec.encodeText(message.toString()), -1);
+    }
+
+    // Draw object as received, payload is kept as it is and must not be modified
+    public static Frame relay(Draw draw, byte[] payload){
+        String codec = WireCodec.isBinary(payload) ? WireCodec.BINARY : WireCodec.JSON;
+        return new Frame(draw, draw.getCategory(), codec, payload, -1);
+    }
+
+    // This board operation stamped with its sequence number
+    public Frame withSequence(long sequence){
+        return new Frame(message, category, codec, WireCodec.stamp(payload, sequence), sequence);
+    }
+
+    // This frame in the given codec. Messages without a binary form share the json bytes.
+    public Frame forCodec(String codec){
+        if (this.codec.equals(codec) || (!WireCodec.BINARY.equals(codec) && !WireCodec.JSON.equals(codec))){
+            return this;
+        }
+        Frame frame = otherFrame;
+        if (frame == null){
+            try {
+                byte[] otherPayload = WireCodec.encode(message, codec);
+                if (!WireCodec.isBinary(otherPayload) && !WireCodec.JSON.equals(codec)){
+                    frame = this;
+                } else if (sequence >= 0){
+                    frame = new Frame(message, category, codec, WireCodec.stamp(otherPayload, sequence), sequence);
+                } else {
+                    frame = new Frame(message, category, codec, otherPayload, -1);
+                }
+            } catch (IOException e){
+                frame = this;
+            }
+            otherFrame = frame;
+        }
+        return frame;
+    }
+
+    public Message getMessage(){
+        return message;
+    }
+
+    public String getCategory(){
+        return category;
+    }
+
+    // Shared payload of this frame, must not be modified
+    public byte[] getPayload(){
+        return payload;
+    }
+
+    @Override
+    public String toString() {
+        return message.toLogString();
+    }
+
+}
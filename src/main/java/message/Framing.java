@@ -0,0 +1,225 @@
+package message;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ *
+ * Framing to split the byte stream of a connection into payloads.
+ *
+ * 1. utf: 2 byte length followed by the payload, same as DataOutputStream.writeUTF.
+ *    Understood by every client but limited to 65,535 bytes.
+ * 2. len32: chunks with a 4 byte header followed by the chunk bytes.
+ *    The header holds the chunk length, its highest bit is set when more chunks of
+ *    the same payload follow. Payloads are sent in chunks of up to maxFrameSize bytes
+ *    and payloads up to maxMessageSize are accepted when reading.
+ *
+ * Writing is stateless and slices the payload without copying it.
+ * Reading keeps state, so each connection needs its own Framing.
+ *
+ * @author liching
+ *
+ */
+public class Framing {
+
+    public static final String UTF = "utf";
+    public static final String LENGTH32 = "len32";
+
+    public static final int MAX_UTF_PAYLOAD = 0xffff;
+
+    private static final int MORE_CHUNKS = 0x80000000;
+
+    public interface PayloadHandler {
+        void handle(byte[] payload) throws IOException;
+    }
+
+    private String framing;
+    private int maxMessageSize;
+
+    // State of feed() between calls
+    private ByteBuffer header;
+    private byte[] chunk;
+    private int chunkFilled;
+    private boolean moreChunks;
+    private ByteArrayOutputStream assembled;
+
+    public Framing(int maxMessageSize){
+        this.framing = UTF;
+        this.maxMessageSize = maxMessageSize;
+        this.header = ByteBuffer.allocate(2);
+    }
+
+    public void setFraming(String framing){
+        this.framing = framing;
+        this.header = ByteBuffer.allocate(headerSize(framing));
+    }
+
+    public String getFraming(){
+        return framing;
+    }
+
+    public static boolean fits(byte[] payload, String framing){
+        return LENGTH32.equals(framing) || payload.length <= MAX_UTF_PAYLOAD;
+    }
+
+    private static int headerSize(String framing){
+        return LENGTH32.equals(framing) ? 4 : 2;
+    }
+
+    /*
+     * Reading from a blocking stream
+     */
+    public byte[] read(DataInputStream input) throws IOException {
+
+        if (!LENGTH32.equals(framing)){
+            byte[] payload = new byte[input.readUnsignedShort()];
+            input.readFully(payload);
+            return payload;
+        }
+
+        ByteArrayOutputStream parts = null;
+        while (true){
+            int chunkHeader = input.readInt();
+            byte[] part = new byte[checkChunkLength(chunkHeader & ~MORE_CHUNKS)];
+            input.readFully(part);
+
+            if ((chunkHeader & MORE_CHUNKS) == 0 && parts == null){
+                return part;
+            }
+            if (parts == null){
+                parts = new ByteArrayOutputStream();
+            }
+            appendChecked(parts, part, part.length);
+            if ((chunkHeader & MORE_CHUNKS) == 0){
+                return parts.toByteArray();
+            }
+        }
+    }
+
+    /*
+     * Reading from a non-blocking channel: feed whatever arrived, complete payloads are handed over.
+     * The handler may call setFraming, it applies to the next payload.
+     */
+    public void feed(ByteBuffer buffer, PayloadHandler handler) throws IOException {
+        while (buffer.hasRemaining()){
+
+            if (chunk == null){
+                while (header.hasRemaining() && buffer.hasRemaining()){
+                    header.put(buffer.get());
+                }
+                if (header.hasRemaining()){
+                    return;
+                }
+                header.flip();
+                if (LENGTH32.equals(framing)){
+                    int chunkHeader = header.getInt();
+                    moreChunks = (chunkHeader & MORE_CHUNKS) != 0;
+                    chunk = new byte[checkChunkLength(chunkHeader & ~MORE_CHUNKS)];
+                } else {
+                    moreChunks = false;
+                    chunk = new byte[header.getShort() & 0xffff];
+                }
+                header.clear();
+                chunkFilled = 0;
+            }
+
+            int length = Math.min(buffer.remaining(), chunk.length - chunkFilled);
+            buffer.get(chunk, chunkFilled, length);
+            chunkFilled += length;
+
+            if (chunkFilled == chunk.length){
+                byte[] part = chunk;
+                chunk = null;
+                if (moreChunks){
+                    if (assembled == null){
+                        assembled = new ByteArrayOutputStream();
+                    }
+                    appendChecked(assembled, part, part.length);
+                } else if (assembled != null){
+                    appendChecked(assembled, part, part.length);
+                    byte[] payload = assembled.toByteArray();
+                    assembled = null;
+                    handler.handle(payload);
+                } else {
+                    handler.handle(part);
+                }
+            }
+        }
+    }
+
+    // The peer may use another chunk size, only the total size is limited
+    private int checkChunkLength(int length) throws IOException {
+        if (length > maxMessageSize){
+            throw new IOException("Frame of " + length + " bytes exceeds the maximum of " + maxMessageSize);
+        }
+        return length;
+    }
+
+    private void appendChecked(ByteArrayOutputStream parts, byte[] part, int length) throws IOException {
+        if ((long) parts.size() + length > maxMessageSize){
+            throw new IOException("Message exceeds the maximum of " + maxMessageSize + " bytes");
+        }
+        parts.write(part, 0, length);
+    }
+
+    /*
+     * Writing
+     */
+    public static void write(OutputStream output, byte[] payload, String framing, int maxFrameSize) throws IOException {
+
+        if (!LENGTH32.equals(framing)){
+            checkUtfPayload(payload);
+            output.write(payload.length >> 8);
+            output.write(payload.length);
+            output.write(payload);
+            return;
+        }
+
+        int offset = 0;
+        do {
+            int length = Math.min(maxFrameSize, payload.length - offset);
+            boolean more = offset + length < payload.length;
+            int chunkHeader = length | (more ? MORE_CHUNKS : 0);
+            output.write(chunkHeader >>> 24);
+            output.write(chunkHeader >>> 16);
+            output.write(chunkHeader >>> 8);
+            output.write(chunkHeader);
+            output.write(payload, offset, length);
+            offset += length;
+        } while (offset < payload.length);
+    }
+
+    // Headers and read-only slices of the shared payload, for gathering writes
+    public static ByteBuffer[] toBuffers(byte[] payload, String framing, int maxFrameSize) throws IOException {
+
+        if (!LENGTH32.equals(framing)){
+            checkUtfPayload(payload);
+            ByteBuffer utfHeader = ByteBuffer.allocate(2).putShort((short) payload.length);
+            utfHeader.flip();
+            return new ByteBuffer[] {utfHeader, ByteBuffer.wrap(payload).asReadOnlyBuffer()};
+        }
+
+        int chunks = Math.max(1, (payload.length + maxFrameSize - 1) / maxFrameSize);
+        ByteBuffer[] buffers = new ByteBuffer[chunks * 2];
+        for (int i = 0; i < chunks; i++){
+            int offset = i * maxFrameSize;
+            int length = Math.min(maxFrameSize, payload.length - offset);
+            boolean more = i < chunks - 1;
+            ByteBuffer chunkHeader = ByteBuffer.allocate(4).putInt(length | (more ? MORE_CHUNKS : 0));
+            chunkHeader.flip();
+            buffers[i * 2] = chunkHeader;
+            buffers[i * 2 + 1] = ByteBuffer.wrap(payload, offset, length).asReadOnlyBuffer();
+        }
+        return buffers;
+    }
+
+    private static void checkUtfPayload(byte[] payload) throws IOException {
+        if (payload.length > MAX_UTF_PAYLOAD){
+            throw new IOException("Payload of " + payload.length + " bytes is too long for utf framing");
+        }
+    }
+
+}
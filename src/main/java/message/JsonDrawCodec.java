@@ -0,0 +1,96 @@
+package message;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ParseException;
+
+import java.awt.Color;
+
+/**
+ *
+ * JSON form of draw objects, used on the wire with the json codec and in saved files.
+ *
+ * Pen points are sent as two arrays "lineDataX" and "lineDataY", the color as "#rrggbb".
+ *
+ * @author liching
+ *
+ */
+public class JsonDrawCodec {
+
+    public static JSONObject encode(Draw draw){
+
+        JSONArray lineDataX = new JSONArray();
+        JSONArray lineDataY = new JSONArray();
+        for (int i = 0; i < draw.getPointCount(); i++){
+            lineDataX.add(draw.getPointX(i));
+            lineDataY.add(draw.getPointY(i));
+        }
+
+        JSONObject json = new JSONObject();
+        json.put("username", draw.username);
+        json.put("category", draw.category);
+        json.put("drawType", draw.drawType);
+        json.put("x1", draw.x1);
+        json.put("y1", draw.y1);
+        json.put("x2", draw.x2);
+        json.put("y2", draw.y2);
+        json.put("color", draw.getColorHex());
+        json.put("lineDataX", lineDataX);
+        json.put("lineDataY", lineDataY);
+        json.put("textData", draw.textData);
+        return json;
+    }
+
+    // Draw objects missing a required attribute, or with one of the wrong type, are malformed
+    public static Draw decode(JSONObject json) throws ParseException {
+
+        Object lineDataX = json.get("lineDataX");
+        Object lineDataY = json.get("lineDataY");
+        int count = lineDataX instanceof JSONArray && lineDataY instanceof JSONArray
+                ? Math.min(((JSONArray) lineDataX).size(), ((JSONArray) lineDataY).size()) : 0;
+        int[] points = new int[2 * count];
+        for (int i = 0; i < count; i++){
+            points[2 * i] = toInt(((JSONArray) lineDataX).get(i), json);
+            points[2 * i + 1] = toInt(((JSONArray) lineDataY).get(i), json);
+        }
+
+        int rgb = 0;
+        Object color = json.get("color");
+        if (color != null){
+            try {
+                rgb = Color.decode(toString(color, json)).getRGB();
+            } catch (NumberFormatException e){
+                throw malformed(json);
+            }
+        }
+
+        Object textData = json.get("textData");
+        return new Draw(toString(json.get("username"), json),
+                toString(json.get("category"), json),
+                toString(json.get("drawType"), json),
+                toInt(json.get("x1"), json),
+                toInt(json.get("y1"), json),
+                toInt(json.get("x2"), json),
+                toInt(json.get("y2"), json),
+                rgb, points, textData != null ? toString(textData, json) : null);
+    }
+
+    private static int toInt(Object value, JSONObject json) throws ParseException {
+        if (!(value instanceof Number)){
+            throw malformed(json);
+        }
+        return ((Number) value).intValue();
+    }
+
+    private static String toString(Object value, JSONObject json) throws ParseException {
+        if (!(value instanceof String)){
+            throw malformed(json);
+        }
+        return (String) value;
+    }
+
+    private static ParseException malformed(JSONObject json){
+        return new ParseException(0, ParseException.ERROR_UNEXPECTED_TOKEN, json);
+    }
+
+}
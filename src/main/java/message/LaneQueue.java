@@ -0,0 +1,173 @@
+package message;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ * LaneQueue to hold messages in two lanes, so control messages are never stuck behind drawings:
+ *
+ * 1. control: joining, approval, kicks, quits, user lists and chat. Always taken first.
+ * 2. bulk: draw objects, pen strokes, board snapshots, "new", which clears the board, and "seq",
+ *    which tells how far the board is (see Connection). These must stay in order with the drawings around them.
+ *
+ * Messages keep their order within a lane. Each lane has its own bound and counts what went
+ * through it: messages added and dropped, the most queued at once and how long they waited.
+ *
+ * @author liching
+ *
+ */
+public class LaneQueue<T> {
+
+    public static final String CONTROL = "control";
+    public static final String BULK = "bulk";
+
+    // Lane of a message with the given category
+    public static String laneOf(String category){
+        if (category == null){
+            return BULK;
+        }
+        switch (category){
+            case "draw":
+            case "stroke":
+            case "snapshot":
+            case "new":
+            case "seq":
+                return BULK;
+            default:
+                return CONTROL;
+        }
+    }
+
+    private static class Entry<T> {
+        private final T item;
+        private final long enqueuedAt;
+
+        private Entry(T item, long enqueuedAt){
+            this.item = item;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+
+    private static class Lane<T> {
+        private final String name;
+        private final int capacity;
+        private final ArrayDeque<Entry<T>> entries;
+
+        private long added;
+        private long dropped;
+        private int maxDepth;
+        private long taken;
+        private long totalWaitNanos;
+        private long maxWaitNanos;
+
+        private Lane(String name, int capacity){
+            this.name = name;
+            this.capacity = capacity;
+            this.entries = new ArrayDeque<>();
+        }
+
+        private boolean isFull(){
+            return entries.size() >= capacity;
+        }
+
+        private void add(T item){
+            entries.add(new Entry<>(item, System.nanoTime()));
+            added++;
+            maxDepth = Math.max(maxDepth, entries.size());
+        }
+
+        private T poll(){
+            Entry<T> entry = entries.poll();
+            long wait = System.nanoTime() - entry.enqueuedAt;
+            taken++;
+            totalWaitNanos += wait;
+            maxWaitNanos = Math.max(maxWaitNanos, wait);
+            return entry.item;
+        }
+
+        @Override
+        public String toString(){
+            return String.format("%s %d queued (max %d of %d), %d added, %d dropped, wait avg %.2f ms max %.2f ms",
+                    name, entries.size(), maxDepth, capacity, added, dropped,
+                    taken > 0 ? totalWaitNanos / 1e6 / taken : 0.0, maxWaitNanos / 1e6);
+        }
+    }
+
+    private Lane<T> control;
+    private Lane<T> bulk;
+
+    private boolean closed;
+
+    public LaneQueue(int controlCapacity, int bulkCapacity){
+        this.control = new Lane<>(CONTROL, controlCapacity);
+        this.bulk = new Lane<>(BULK, bulkCapacity);
+    }
+
+    // Add without waiting. Returns false if the lane is full or the queue closed, the message is dropped then.
+    public synchronized boolean offer(T item, String lane){
+        Lane<T> target = lane(lane);
+        if (closed || target.isFull()){
+            target.dropped++;
+            return false;
+        }
+        target.add(item);
+        notifyAll();
+        return true;
+    }
+
+    // Next message, control lane first, without waiting. Null if none is queued.
+    public synchronized T poll(){
+        Lane<T> source = !control.entries.isEmpty() ? control : !bulk.entries.isEmpty() ? bulk : null;
+        return source != null ? source.poll() : null;
+    }
+
+    // Next message, control lane first, waiting until there is one. Null once closed.
+    public synchronized T take() throws InterruptedException {
+        while (!closed && isEmpty()){
+            wait();
+        }
+        return closed ? null : poll();
+    }
+
+    // Whether offer would drop a message for the lane. Never true once closed, messages are just dropped then.
+    public synchronized boolean isFull(String lane){
+        return !closed && lane(lane).isFull();
+    }
+
+    public synchronized boolean isEmpty(){
+        return control.entries.isEmpty() && bulk.entries.isEmpty();
+    }
+
+    // Remove what is queued in the lane, oldest first, eg. to send it on another connection
+    public synchronized List<T> drain(String lane){
+        Lane<T> source = lane(lane);
+        List<T> items = new ArrayList<>(source.entries.size());
+        while (!source.entries.isEmpty()){
+            items.add(source.entries.poll().item);
+        }
+        return items;
+    }
+
+    // Drop what is queued and stop accepting messages. Waiting threads return.
+    public synchronized void close(){
+        closed = true;
+        control.entries.clear();
+        bulk.entries.clear();
+        notifyAll();
+    }
+
+    public synchronized String getStats(){
+        return control + "; " + bulk;
+    }
+
+    public synchronized String getStats(String lane){
+        return lane(lane).toString();
+    }
+
+    private Lane<T> lane(String lane){
+        return CONTROL.equals(lane) ? control : bulk;
+    }
+
+}
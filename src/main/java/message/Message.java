@@ -16,6 +16,15 @@ public class Message {
     public Message(){
     }
 
+    public String getCategory(){
+        return (String) message.get("category");
+    }
+
+    // Form shown in logs, the whole message unless it is too large to be useful there
+    public String toLogString(){
+        return toString();
+    }
+
     @Override
     public String toString() {
         return message.toString();
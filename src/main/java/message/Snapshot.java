@@ -0,0 +1,120 @@
+package message;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.zip.InflaterInputStream;
+
+/**
+ *
+ * Child class of Message to send the state of a board to a user who just joined,
+ * instead of one message per draw object.
+ *
+ * The draw objects are split into parts of about the same size. Each part holds the
+ * objects one after another (length and payload in the binary codec, see WireCodec),
+ * compressed with deflate and sent as base64 "data". All parts carry the version of
+ * the board state they were taken from.
+ *
+ * Only sent to clients that asked for it in the connect handshake ("snapshot":"1").
+ *
+ * @author liching
+ *
+ */
+public class Snapshot extends Message {
+
+    // Snapshot format understood by this version, sent in the connect request
+    public static final String FORMAT = "1";
+
+    public JSONObject snapshot;
+    public String username;
+    public String category;
+    public long version;
+    public int part;
+    public int parts;
+    public int count;
+    public String data;
+
+    // Create a snapshot part with given attributes
+    public Snapshot(long version, int part, int parts, int count, byte[] compressed){
+
+        this.username = "Server";
+        this.category = "snapshot";
+        this.version = version;
+        this.part = part;
+        this.parts = parts;
+        this.count = count;
+        this.data = Base64.getEncoder().encodeToString(compressed);
+
+        snapshot = new JSONObject();
+        snapshot.put("username", username);
+        snapshot.put("category", category);
+        snapshot.put("version", version);
+        snapshot.put("part", part);
+        snapshot.put("parts", parts);
+        snapshot.put("count", count);
+        snapshot.put("data", data);
+    }
+
+    // Create a snapshot part with given JSONObject
+    public Snapshot(JSONObject snapshot){
+
+        this.snapshot = snapshot;
+
+        this.username = (String) snapshot.get("username");
+        this.category = (String) snapshot.get("category");
+        this.version = ((Number) snapshot.get("version")).longValue();
+        this.part = ((Number) snapshot.get("part")).intValue();
+        this.parts = ((Number) snapshot.get("parts")).intValue();
+        this.count = ((Number) snapshot.get("count")).intValue();
+        this.data = (String) snapshot.get("data");
+    }
+
+    // Split the state into parts of about partSize bytes before compression
+    public static List<Snapshot> create(List<Draw> state, long version, int partSize) throws IOException {
+        return new SnapshotBuilder(partSize).build(state, version);
+    }
+
+    // Draw objects held by this part, in order
+    public List<Draw> getDraws(JSONParser parser) throws IOException, ParseException {
+
+        ArrayList<Draw> draws = new ArrayList<>(count);
+        byte[] compressed = Base64.getDecoder().decode(data);
+        DataInputStream input = new DataInputStream(
+                new InflaterInputStream(new ByteArrayInputStream(compressed)));
+
+        for (int i = 0; i < count; i++){
+            int length = BinaryDrawCodec.readVarInt(input);
+            if (length < 0){
+                throw new IOException("Malformed snapshot entry length " + length);
+            }
+            byte[] payload = new byte[length];
+            input.readFully(payload);
+            draws.add(WireCodec.decodeDraw(payload, parser));
+        }
+        return draws;
+    }
+
+    @Override
+    public String getCategory() {
+        return category;
+    }
+
+    @Override
+    public String toLogString() {
+        return "{\"category\":\"snapshot\",\"version\":" + version + ",\"part\":" + part
+                + ",\"parts\":" + parts + ",\"count\":" + count + ",\"bytes\":" + data.length() + "}";
+    }
+
+    @Override
+    public String toString() {
+        return snapshot.toString();
+    }
+
+}
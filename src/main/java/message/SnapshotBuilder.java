@@ -0,0 +1,97 @@
+package message;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ *
+ * SnapshotBuilder to create the Snapshot parts of a board state that only grows,
+ * without encoding and compressing the whole state again for every user joining.
+ *
+ * Parts that are full are kept, so each build only handles the draw objects added since.
+ * The builder must be reset when the state is cleared.
+ *
+ * @author liching
+ *
+ */
+public class SnapshotBuilder {
+
+    private int partSize;
+
+    // Compressed full parts and the number of draw objects in each
+    private ArrayList<byte[]> fullParts;
+    private ArrayList<Integer> fullCounts;
+
+    // Draw objects encoded so far but not in a full part yet
+    private ByteArrayOutputStream raw;
+    private DataOutputStream output;
+    private int rawCount;
+
+    // Draw objects of the state encoded so far
+    private int encoded;
+
+    public SnapshotBuilder(int partSize){
+        this.partSize = partSize;
+        this.fullParts = new ArrayList<>();
+        this.fullCounts = new ArrayList<>();
+        this.raw = new ByteArrayOutputStream(Math.min(partSize, 1024 * 1024));
+        this.output = new DataOutputStream(raw);
+    }
+
+    // Parts of the whole state, taken at given version. The state holds what it held at the
+    // last build and possibly more after it.
+    public List<Snapshot> build(List<Draw> state, long version) throws IOException {
+
+        if (state.size() < encoded){
+            reset();
+        }
+
+        for (int i = encoded; i < state.size(); i++){
+            byte[] payload = WireCodec.encode(state.get(i), WireCodec.BINARY);
+            BinaryDrawCodec.writeVarInt(output, payload.length);
+            output.write(payload);
+            rawCount++;
+            encoded++;
+
+            if (raw.size() >= partSize){
+                fullParts.add(compress(raw.toByteArray()));
+                fullCounts.add(rawCount);
+                raw.reset();
+                rawCount = 0;
+            }
+        }
+
+        // An empty board still gets one (empty) part, so the user knows the state is complete
+        int parts = fullParts.size() + (rawCount > 0 || fullParts.isEmpty() ? 1 : 0);
+        ArrayList<Snapshot> snapshots = new ArrayList<>(parts);
+        for (int i = 0; i < fullParts.size(); i++){
+            snapshots.add(new Snapshot(version, i, parts, fullCounts.get(i), fullParts.get(i)));
+        }
+        if (snapshots.size() < parts){
+            snapshots.add(new Snapshot(version, fullParts.size(), parts, rawCount, compress(raw.toByteArray())));
+        }
+        return snapshots;
+    }
+
+    // State was cleared
+    public void reset(){
+        fullParts.clear();
+        fullCounts.clear();
+        raw.reset();
+        rawCount = 0;
+        encoded = 0;
+    }
+
+    private static byte[] compress(byte[] raw) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(64, raw.length / 4));
+        try (DeflaterOutputStream output = new DeflaterOutputStream(compressed)){
+            output.write(raw);
+        }
+        return compressed.toByteArray();
+    }
+
+}
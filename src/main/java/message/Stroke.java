@@ -0,0 +1,139 @@
+package message;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.awt.Color;
+
+/**
+ *
+ * Child class of Message to stream a pen stroke while it is drawn, so other users see it form.
+ *
+ * 1. begin: first point of a new stroke of the user
+ * 2. append: points added since the last message, sent at most once per interval
+ * 3. end: the finished (simplified) stroke as a pen draw object, which the server keeps
+ *    in the board state and relays as a normal draw object
+ *
+ * A user draws one stroke at a time, so strokes are told apart by username. Points are sent
+ * as one array "points" (x0, y0, x1, y1, ...) and the color as "#rrggbb".
+ *
+ * Only sent to and from clients that asked for it in the connect handshake ("strokes":"1").
+ *
+ * @author liching
+ *
+ */
+public class Stroke extends Message {
+
+    // Stroke format understood by this version, sent in the connect request
+    public static final String FORMAT = "1";
+
+    public static final String BEGIN = "begin";
+    public static final String APPEND = "append";
+    public static final String END = "end";
+
+    private static final int[] NO_POINTS = new int[0];
+
+    public JSONObject stroke;
+    public String username;
+    public String category;
+    public String phase;
+    // Color as 0xRRGGBB
+    public int rgb;
+    // Points as x0, y0, x1, y1, ...
+    public int[] points;
+    // End only: start and end of the pen draw object
+    public int x1;
+    public int y1;
+    public int x2;
+    public int y2;
+
+    // Create a begin or append message with given attributes
+    public Stroke(String username, String phase, Color color, int[] points){
+        this(username, phase, color != null ? color.getRGB() & 0xffffff : 0, points, 0, 0, 0, 0);
+    }
+
+    // Create the end message of a finished pen draw object
+    public static Stroke end(Draw draw){
+        int[] points = new int[2 * draw.getPointCount()];
+        for (int i = 0; i < draw.getPointCount(); i++){
+            points[2 * i] = draw.getPointX(i);
+            points[2 * i + 1] = draw.getPointY(i);
+        }
+        return new Stroke(draw.username, END, draw.rgb, points, draw.x1, draw.y1, draw.x2, draw.y2);
+    }
+
+    private Stroke(String username, String phase, int rgb, int[] points, int x1, int y1, int x2, int y2){
+
+        this.username = username;
+        this.category = "stroke";
+        this.phase = phase;
+        this.rgb = rgb;
+        this.points = points;
+        this.x1 = x1;
+        this.y1 = y1;
+        this.x2 = x2;
+        this.y2 = y2;
+
+        JSONArray pointArray = new JSONArray();
+        for (int point : points){
+            pointArray.add(point);
+        }
+        stroke = new JSONObject();
+        stroke.put("username", username);
+        stroke.put("category", category);
+        stroke.put("phase", phase);
+        stroke.put("color", "#" + Integer.toHexString(rgb | 0x1000000).substring(1));
+        stroke.put("points", pointArray);
+        if (END.equals(phase)){
+            stroke.put("x1", x1);
+            stroke.put("y1", y1);
+            stroke.put("x2", x2);
+            stroke.put("y2", y2);
+        }
+    }
+
+    // Create a stroke message with given JSONObject
+    public Stroke(JSONObject stroke){
+
+        this.stroke = stroke;
+        this.username = (String) stroke.get("username");
+        this.category = (String) stroke.get("category");
+        this.phase = (String) stroke.get("phase");
+
+        String color = (String) stroke.get("color");
+        this.rgb = color != null ? Color.decode(color).getRGB() & 0xffffff : 0;
+
+        JSONArray pointArray = (JSONArray) stroke.get("points");
+        this.points = pointArray != null ? new int[pointArray.size() & ~1] : NO_POINTS;
+        for (int i = 0; i < points.length; i++){
+            points[i] = ((Number) pointArray.get(i)).intValue();
+        }
+
+        if (END.equals(phase)){
+            this.x1 = ((Number) stroke.get("x1")).intValue();
+            this.y1 = ((Number) stroke.get("y1")).intValue();
+            this.x2 = ((Number) stroke.get("x2")).intValue();
+            this.y2 = ((Number) stroke.get("y2")).intValue();
+        }
+    }
+
+    // Pen draw object of an end message
+    public Draw toDraw(){
+        return new Draw(username, "draw", "pen", x1, y1, x2, y2, rgb, points.clone(), Draw.NO_TEXT);
+    }
+
+    public Color getColor(){
+        return new Color(rgb);
+    }
+
+    @Override
+    public String getCategory() {
+        return category;
+    }
+
+    @Override
+    public String toString() {
+        return stroke.toString();
+    }
+
+}
@@ -0,0 +1,215 @@
+package message;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ *
+ * WireCodec to turn messages into frame payloads and back.
+ *
+ * 1. json: the message's JSON text (see JsonDrawCodec for draw objects) as modified UTF-8, understood by every client.
+ * 2. binary: draw objects in the BinaryDrawCodec format, all other messages as json.
+ *
+ * The codec is agreed in the connect handshake: the client names the codec it wants
+ * in its Connection request and the server answers with an "accept" Connection.
+ * Payloads of either codec can always be decoded.
+ *
+ * The server stamps each board operation it sends (a draw object or "new") with its sequence number,
+ * decoded as the value of SEQUENCE (see stamp).
+ *
+ * @author liching
+ *
+ */
+public class WireCodec {
+
+    public static final String JSON = "json";
+    public static final String BINARY = "binary";
+
+    // Key of the sequence number stamped on a board operation
+    public static final String SEQUENCE = "seq";
+
+    private static final byte[] CATEGORY_KEY = "\"category\":\"".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] USERNAME_KEY = "\"username\":\"".getBytes(StandardCharsets.US_ASCII);
+
+    // Each byte of a binary draw object takes at most this many bytes in JSON (a one byte point delta
+    // becomes a coordinate of up to 11 digits and a comma), plus the attribute names
+    private static final int JSON_EXPANSION = 12;
+    private static final int JSON_OVERHEAD = 256;
+    // Most bytes a stamp adds to a JSON payload: the key, a long and a comma
+    private static final int MAX_STAMP_SIZE = 26;
+
+    public static byte[] encode(Message message, String codec) throws IOException {
+        if (BINARY.equals(codec) && message instanceof Draw && BinaryDrawCodec.canEncode((Draw) message)){
+            return BinaryDrawCodec.encode((Draw) message);
+        }
+        return encodeText(message.toString());
+    }
+
+    // Decode a payload of either codec into its JSON form
+    public static JSONObject decode(byte[] payload, JSONParser parser) throws IOException, ParseException {
+        if (isBinary(payload)){
+            JSONObject draw = JsonDrawCodec.encode(BinaryDrawCodec.decode(payload));
+            long sequence = BinaryDrawCodec.peekSequence(payload);
+            if (sequence >= 0){
+                draw.put(SEQUENCE, sequence);
+            }
+            return draw;
+        }
+        return parseObject(decodeText(payload), parser);
+    }
+
+    // Payload of a board operation with its sequence number, the first key of a JSON payload.
+    // The payload given is not modified and must not be stamped already.
+    public static byte[] stamp(byte[] payload, long sequence){
+        if (isBinary(payload)){
+            return BinaryDrawCodec.stamp(payload, sequence);
+        }
+        byte[] key = ("\"" + SEQUENCE + "\":" + sequence + (payload.length > 2 ? "," : ""))
+                .getBytes(StandardCharsets.US_ASCII);
+        byte[] stamped = new byte[payload.length + key.length];
+        stamped[0] = payload[0];
+        System.arraycopy(key, 0, stamped, 1, key.length);
+        System.arraycopy(payload, 1, stamped, 1 + key.length, payload.length - 1);
+        return stamped;
+    }
+
+    // Decode a draw object payload of either codec
+    public static Draw decodeDraw(byte[] payload, JSONParser parser) throws IOException, ParseException {
+        if (isBinary(payload)){
+            return BinaryDrawCodec.decode(payload);
+        }
+        return JsonDrawCodec.decode(parseObject(decodeText(payload), parser));
+    }
+
+    // Every message is a JSON object, any other valid JSON is as malformed as invalid JSON
+    private static JSONObject parseObject(String text, JSONParser parser) throws ParseException {
+        Object parsed = parser.parse(text);
+        if (!(parsed instanceof JSONObject)){
+            throw new ParseException(0, ParseException.ERROR_UNEXPECTED_TOKEN, parsed);
+        }
+        return (JSONObject) parsed;
+    }
+
+    // Whether the payload can be sent to every client, in either codec with utf framing, once stamped.
+    // Only binary draw objects large enough to possibly grow beyond it are decoded to find out.
+    public static boolean fitsEveryClient(byte[] payload) throws IOException {
+        int maxPayload = Framing.MAX_UTF_PAYLOAD - MAX_STAMP_SIZE;
+        if (!isBinary(payload)){
+            return payload.length <= maxPayload;
+        }
+        if ((long) payload.length * JSON_EXPANSION + JSON_OVERHEAD <= maxPayload){
+            return true;
+        }
+        return encodeText(BinaryDrawCodec.decode(payload).toString()).length <= maxPayload;
+    }
+
+    // Category of a payload without parsing it, null if it cannot be found this way.
+    // The JSON text of messages has no nested objects, so the first "category" key is the message's.
+    public static String peekCategory(byte[] payload){
+        if (isBinary(payload)){
+            return "draw";
+        }
+        return peekString(payload, CATEGORY_KEY);
+    }
+
+    // Username of a payload without parsing it, null if it cannot be found this way
+    // (eg. a JSON username with characters that are escaped or not ASCII)
+    public static String peekUsername(byte[] payload){
+        if (isBinary(payload)){
+            return BinaryDrawCodec.peekUsername(payload);
+        }
+        return peekString(payload, USERNAME_KEY);
+    }
+
+    // Plain ASCII string value of the first key in the JSON text. Inside strings a quote is
+    // escaped, so the key cannot match the text of another value.
+    private static String peekString(byte[] payload, byte[] key){
+        int start = indexOf(payload, key);
+        if (start < 0){
+            return null;
+        }
+        start += key.length;
+        for (int end = start; end < payload.length; end++){
+            byte b = payload[end];
+            if (b == '"'){
+                return new String(payload, start, end - start, StandardCharsets.US_ASCII);
+            }
+            if (b == '\\' || b < 0x20 || b > 0x7e){
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private static int indexOf(byte[] payload, byte[] key){
+        outer:
+        for (int i = 0; i <= payload.length - key.length; i++){
+            for (int j = 0; j < key.length; j++){
+                if (payload[i + j] != key[j]){
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    public static boolean isBinary(byte[] payload){
+        return payload.length > 0 && payload[0] == BinaryDrawCodec.TYPE_DRAW;
+    }
+
+    // Text in the modified UTF-8 form used by DataOutputStream.writeUTF, without its length limit
+    static byte[] encodeText(String text){
+        int length = 0;
+        for (int i = 0; i < text.length(); i++){
+            char c = text.charAt(i);
+            length += (c >= 0x0001 && c <= 0x007f) ? 1 : (c <= 0x07ff ? 2 : 3);
+        }
+
+        byte[] bytes = new byte[length];
+        int position = 0;
+        for (int i = 0; i < text.length(); i++){
+            char c = text.charAt(i);
+            if (c >= 0x0001 && c <= 0x007f){
+                bytes[position++] = (byte) c;
+            } else if (c <= 0x07ff){
+                bytes[position++] = (byte) (0xc0 | (c >> 6));
+                bytes[position++] = (byte) (0x80 | (c & 0x3f));
+            } else {
+                bytes[position++] = (byte) (0xe0 | (c >> 12));
+                bytes[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                bytes[position++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return bytes;
+    }
+
+    static String decodeText(byte[] payload) throws IOException {
+        return decodeText(payload, 0, payload.length);
+    }
+
+    static String decodeText(byte[] payload, int offset, int length) throws IOException {
+        StringBuilder text = new StringBuilder(length);
+        int position = offset;
+        int end = offset + length;
+        while (position < end){
+            int b = payload[position++] & 0xff;
+            if (b < 0x80){
+                text.append((char) b);
+            } else if ((b & 0xe0) == 0xc0 && position < end){
+                text.append((char) (((b & 0x1f) << 6) | (payload[position++] & 0x3f)));
+            } else if ((b & 0xf0) == 0xe0 && position + 1 < end){
+                text.append((char) (((b & 0x0f) << 12) | ((payload[position++] & 0x3f) << 6)
+                        | (payload[position++] & 0x3f)));
+            } else {
+                throw new IOException("Malformed text payload");
+            }
+        }
+        return text.toString();
+    }
+
+}
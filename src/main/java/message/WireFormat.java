@@ -0,0 +1,49 @@
+package message;
+
+/**
+ *
+ * WireFormat to describe how messages are sent on one connection:
+ * the payload codec (see WireCodec), the framing (see Framing) and the compression (see Compression),
+ * whether the board state is sent as a Snapshot, whether pen strokes are streamed (see Stroke)
+ * whether the client can resume its session after a lost connection and whether it answers heartbeats
+ * (see Connection).
+ * Agreed in the connect handshake, every connection starts with LEGACY.
+ *
+ * @author liching
+ *
+ */
+public final class WireFormat {
+
+    public static final WireFormat LEGACY = new WireFormat(WireCodec.JSON, Framing.UTF, Compression.NONE, false, false, false, false);
+
+    public final String codec;
+    public final String framing;
+    public final String compression;
+    public final boolean snapshots;
+    public final boolean strokes;
+    public final boolean resume;
+    public final boolean heartbeat;
+
+    public WireFormat(String codec, String framing, String compression, boolean snapshots, boolean strokes,
+                      boolean resume, boolean heartbeat){
+        this.codec = codec;
+        this.framing = framing;
+        this.compression = compression;
+        this.snapshots = snapshots;
+        this.strokes = strokes;
+        this.resume = resume;
+        this.heartbeat = heartbeat;
+    }
+
+    public boolean isCompressed(){
+        return Compression.DEFLATE.equals(compression);
+    }
+
+    @Override
+    public String toString() {
+        return codec + "/" + framing + "/" + compression + (snapshots ? "/snapshots" : "")
+                + (strokes ? "/strokes" : "") + (resume ? "/resume" : "")
+                + (heartbeat ? "/heartbeat" : "");
+    }
+
+}
@@ -0,0 +1,104 @@
+package server;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+/**
+ *
+ * Board to hold one whiteboard hosted by the server:
+ * its own clients (ClientManagement) and its own state and processing (MessageWarehouse).
+ * Created when a manager connects and closed when the manager leaves.
+ * Its state is kept in an EventLog if the server has a data directory, and restored when it is created again.
+ * The log is read by open() without the BoardRegistry's lock, and closed by closeLog() on the checkpoint thread,
+ * so a long replay or checkpoint only holds up the clients of this board.
+ *
+ * @author liching
+ *
+ */
+public class Board {
+
+    private String id;
+
+    private BoardRegistry boardRegistry;
+
+    private ClientManagement clientManagement;
+
+    private MessageWarehouse messageWarehouse;
+
+    // Null if the state is kept in memory only
+    private EventLog eventLog;
+
+    // Board with the same id this one replaces, which must have closed its log before this one opens it.
+    // Null once this board is open. Guarded by this.
+    private Board previous;
+    private boolean open;
+
+    // Counted down once the log is closed
+    private CountDownLatch logClosed;
+
+    public Board(String id, BoardRegistry boardRegistry, ServerGUI serverGUI, Executor executor,
+                 Board previous, ServerConfig config){
+        this.id = id;
+        this.boardRegistry = boardRegistry;
+        this.clientManagement = new ClientManagement(serverGUI);
+        this.messageWarehouse = new MessageWarehouse(this, serverGUI, executor, config);
+        this.previous = previous;
+        this.logClosed = new CountDownLatch(1);
+    }
+
+    // Restore the state from the log, once, before the board is used. Other callers wait until it is restored.
+    public synchronized void open(){
+        if (open){
+            return;
+        }
+        if (previous != null){
+            previous.awaitLogClosed();
+            previous = null;
+        }
+        eventLog = messageWarehouse.restoreState(boardRegistry.openLog(id));
+        open = true;
+    }
+
+    public String getId(){
+        return id;
+    }
+
+    public ClientManagement getClientManagement(){
+        return clientManagement;
+    }
+
+    public MessageWarehouse getMessageWarehouse(){
+        return messageWarehouse;
+    }
+
+    public void closeLog(){
+        try {
+            if (eventLog != null){
+                eventLog.close();
+            }
+        } finally {
+            logClosed.countDown();
+        }
+    }
+
+    private void awaitLogClosed(){
+        boolean interrupted = false;
+        while (true){
+            try {
+                logClosed.await();
+                break;
+            } catch (InterruptedException e){
+                interrupted = true;
+            }
+        }
+        if (interrupted){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Manager has left, the board id can be used again
+    public void close(){
+        boardRegistry.removeBoard(this);
+    }
+
+}
@@ -0,0 +1,136 @@
+package server;
+
+import common.ThreadFactories;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ *
+ * BoardRegistry to keep track of the boards hosted by one server, by board id.
+ *
+ * The MessageWarehouse of every board runs on a shared pool of board threads (or a virtual thread per run),
+ * so many boards are served by one process using all cores.
+ * Messages of one board are still processed one at a time and in order.
+ *
+ * With a data directory set, each board keeps its state in an EventLog under it,
+ * written to disk by one log sync thread and checkpointed by one checkpoint thread, shared by all boards.
+ *
+ * @author liching
+ *
+ */
+public class BoardRegistry {
+
+    // Board used by clients that do not ask for one
+    public static final String DEFAULT_BOARD = "default";
+
+    // Read without a lock for every message received, changed under the registry's lock
+    private ConcurrentHashMap<String, Board> boards;
+
+    // Boards removed whose log is still being closed, by board id
+    private ConcurrentHashMap<String, Board> closingBoards;
+
+    private ExecutorService boardExecutor;
+
+    // Null if board state is kept in memory only
+    private Path dataDir;
+    private ScheduledExecutorService logSyncExecutor;
+    private ExecutorService checkpointExecutor;
+
+    private ServerGUI serverGUI;
+
+    private ServerConfig config;
+
+    public BoardRegistry(ServerGUI serverGUI, ServerConfig config){
+        this.boards = new ConcurrentHashMap<>();
+        this.closingBoards = new ConcurrentHashMap<>();
+        this.serverGUI = serverGUI;
+        this.config = config;
+        this.boardExecutor = ThreadFactories.newTaskExecutor(config.threadMode, "board-", config.boardThreads);
+        if (config.isLogEnabled()){
+            this.dataDir = Paths.get(config.dataDir);
+            this.logSyncExecutor = Executors.newSingleThreadScheduledExecutor(
+                    ThreadFactories.create(ThreadFactories.PLATFORM, "log-sync-"));
+            this.checkpointExecutor = Executors.newSingleThreadExecutor(
+                    ThreadFactories.create(ThreadFactories.PLATFORM, "checkpoint-"));
+        }
+    }
+
+    // Board with given id, null if no manager has created it
+    public Board getBoard(String id){
+        return boards.get(id);
+    }
+
+    // Board with given id, created if it does not exist yet. Its state is restored from the log
+    // without the registry's lock, so other boards go on meanwhile.
+    public Board getOrCreateBoard(String id){
+        Board board;
+        synchronized (this){
+            board = boards.get(id);
+            if (board == null){
+                // Opens the log once a board with the same id still closing it is done
+                board = new Board(id, this, serverGUI, boardExecutor, closingBoards.get(id), config);
+                boards.put(id, board);
+                serverGUI.logMessage("(Information) Board \"" + id + "\" created. Boards hosted: " + boards.size());
+            }
+        }
+        board.open();
+        return board;
+    }
+
+    // Whether the board is the one hosted with its id, it may have been removed since it was returned
+    public boolean isHosted(Board board){
+        return boards.get(board.getId()) == board;
+    }
+
+    public void removeBoard(Board board){
+        synchronized (this){
+            // Another board may have been created with the same id in the meantime
+            if (boards.get(board.getId()) != board || !board.getClientManagement().getClientList().isEmpty()){
+                return;
+            }
+            boards.remove(board.getId());
+            closingBoards.put(board.getId(), board);
+            serverGUI.logMessage("(Information) Board \"" + board.getId() + "\" closed. Boards hosted: " + boards.size());
+        }
+        if (checkpointExecutor == null){
+            board.closeLog();
+            closingBoards.remove(board.getId(), board);
+            return;
+        }
+        // Closing waits for a checkpoint being written, which is done on the checkpoint thread,
+        // so the board thread that removed the board goes on with other boards meanwhile
+        checkpointExecutor.execute(() -> {
+            board.closeLog();
+            closingBoards.remove(board.getId(), board);
+        });
+    }
+
+    // Log of the board with given id, null if board state is kept in memory only or the log cannot be opened
+    EventLog openLog(String id){
+        if (dataDir == null){
+            return null;
+        }
+        try {
+            return new EventLog(EventLog.boardDirectory(dataDir, id), config, serverGUI::logMessage,
+                    logSyncExecutor, checkpointExecutor);
+        } catch (IOException e){
+            e.printStackTrace();
+            serverGUI.logMessage("(Error) Board \"" + id + "\" log cannot be opened, its state is kept in memory only.");
+            return null;
+        }
+    }
+
+    public static String boardId(String requested){
+        if (requested == null || requested.isEmpty()){
+            return DEFAULT_BOARD;
+        }
+        return requested;
+    }
+
+}
@@ -0,0 +1,98 @@
+package server;
+
+import message.Draw;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ * BoardState to hold the draw objects of a board in order.
+ *
+ * Draw objects are kept in chunks that are only ever appended to, and clearing the state
+ * starts new chunks instead of emptying the old ones. A view taken with view() therefore
+ * keeps showing the same draw objects while the board goes on, without copying them,
+ * and can be read by another thread (eg. to write a checkpoint, see EventLog).
+ *
+ * Changed by the MessageWarehouse of the board only.
+ *
+ * @author liching
+ *
+ */
+public class BoardState extends AbstractList<Draw> {
+
+    private static final int CHUNK_SIZE = 4096;
+
+    private ArrayList<Draw[]> chunks;
+
+    private int size;
+
+    public BoardState(){
+        this.chunks = new ArrayList<>();
+    }
+
+    @Override
+    public boolean add(Draw draw){
+        int chunk = size / CHUNK_SIZE;
+        if (chunk == chunks.size()){
+            chunks.add(new Draw[CHUNK_SIZE]);
+        }
+        chunks.get(chunk)[size % CHUNK_SIZE] = draw;
+        size++;
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public Draw get(int index){
+        if (index < 0 || index >= size){
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        }
+        return chunks.get(index / CHUNK_SIZE)[index % CHUNK_SIZE];
+    }
+
+    @Override
+    public int size(){
+        return size;
+    }
+
+    @Override
+    public void clear(){
+        // Views may still be reading the old chunks
+        chunks = new ArrayList<>();
+        size = 0;
+        modCount++;
+    }
+
+    // Draw objects held now, unchanged by later changes of this state
+    public List<Draw> view(){
+        return new View(chunks.toArray(new Draw[0][]), size);
+    }
+
+    private static class View extends AbstractList<Draw> {
+
+        private final Draw[][] chunks;
+        private final int size;
+
+        private View(Draw[][] chunks, int size){
+            this.chunks = chunks;
+            this.size = size;
+        }
+
+        @Override
+        public Draw get(int index){
+            if (index < 0 || index >= size){
+                throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+            }
+            return chunks[index / CHUNK_SIZE][index % CHUNK_SIZE];
+        }
+
+        @Override
+        public int size(){
+            return size;
+        }
+
+    }
+
+}
@@ -0,0 +1,131 @@
+package server;
+
+import message.BinaryDrawCodec;
+import message.Draw;
+import message.WireCodec;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ *
+ * Checkpoint to write the state of a board, as it was after one operation of its EventLog,
+ * to a file. The log up to that operation is then no longer needed to restore the board.
+ *
+ * The file holds a header (magic, sequence number of the operation, number of draw objects),
+ * the draw objects (length and payload in the binary codec, see WireCodec) compressed with
+ * deflate, and the CRC32C of everything before it. It is written under a temporary name and
+ * renamed when complete, so a checkpoint file is either whole or not there.
+ *
+ * @author liching
+ *
+ */
+class Checkpoint {
+
+    private static final int MAGIC = 0x57424350;
+
+    // magic + sequence + count
+    private static final int HEADER_SIZE = 16;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    static void write(Path path, long sequence, List<Draw> draws) throws IOException {
+
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        CRC32C checksum = new CRC32C();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+        try (FileOutputStream file = new FileOutputStream(temporary.toFile())){
+            DataOutputStream output = new DataOutputStream(
+                    new CheckedOutputStream(new BufferedOutputStream(file, BUFFER_SIZE), checksum));
+            output.writeInt(MAGIC);
+            output.writeLong(sequence);
+            output.writeInt(draws.size());
+
+            DeflaterOutputStream deflated = new DeflaterOutputStream(output, deflater, BUFFER_SIZE);
+            DataOutputStream entries = new DataOutputStream(deflated);
+            for (Draw draw : draws){
+                byte[] payload = WireCodec.encode(draw, WireCodec.BINARY);
+                BinaryDrawCodec.writeVarInt(entries, payload.length);
+                entries.write(payload);
+            }
+            deflated.finish();
+
+            output.writeInt((int) checksum.getValue());
+            output.flush();
+            file.getFD().sync();
+        } finally {
+            deflater.end();
+        }
+
+        Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        syncDirectory(path.getParent());
+    }
+
+    // Add the draw objects of the checkpoint to state. Returns the sequence number it was taken at.
+    static long read(Path path, List<Draw> state, JSONParser parser) throws IOException {
+
+        byte[] bytes = Files.readAllBytes(path);
+        if (bytes.length < HEADER_SIZE + 4){
+            throw new IOException("Checkpoint too short: " + path);
+        }
+
+        CRC32C checksum = new CRC32C();
+        checksum.update(bytes, 0, bytes.length - 4);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(bytes.length - 4) != (int) checksum.getValue()){
+            throw new IOException("Damaged checkpoint: " + path);
+        }
+        long sequence = buffer.getLong(4);
+        int count = buffer.getInt(12);
+
+        Inflater inflater = new Inflater();
+        try {
+            DataInputStream input = new DataInputStream(new InflaterInputStream(
+                    new ByteArrayInputStream(bytes, HEADER_SIZE, bytes.length - HEADER_SIZE - 4), inflater, BUFFER_SIZE));
+            for (int i = 0; i < count; i++){
+                int length = BinaryDrawCodec.readVarInt(input);
+                if (length < 0){
+                    throw new IOException("Malformed checkpoint entry length " + length);
+                }
+                byte[] payload = new byte[length];
+                input.readFully(payload);
+                state.add(WireCodec.decodeDraw(payload, parser));
+            }
+        } catch (ParseException e){
+            throw new IOException("Malformed draw object in checkpoint " + path, e);
+        } finally {
+            inflater.end();
+        }
+        return sequence;
+    }
+
+    // Make the rename durable, not supported on every platform
+    private static void syncDirectory(Path directory){
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)){
+            channel.force(true);
+        } catch (IOException e){
+            // Nothing more can be done here
+        }
+    }
+
+}
@@ -0,0 +1,45 @@
+package server;
+
+import message.Frame;
+import message.WireFormat;
+
+import java.io.IOException;
+
+/**
+ *
+ * ClientConnection to abstract how messages reach a connected client,
+ * so ClientManagement works the same for blocking sockets and nio channels.
+ *
+ * Messages are queued per client and written asynchronously, so a slow or
+ * failing client never holds up the MessageWarehouse or other clients.
+ *
+ * @author liching
+ *
+ */
+public interface ClientConnection {
+
+    // Queue frame for this client. Never blocks.
+    void send(Frame frame);
+
+    // Wire format used for frames queued from now on (see WireFormat)
+    void setWireFormat(WireFormat format);
+
+    WireFormat getWireFormat();
+
+    // Close after the messages already queued have been written
+    void close() throws IOException;
+
+    // Close at once, dropping what is queued, eg. the client stopped answering (see HeartbeatMonitor).
+    // The connection's reader then handles it as a lost connection.
+    void disconnect();
+
+    // Time anything was last received from the client, in milliseconds
+    long getLastReceived();
+
+    // Called by a board that had no room for a message of this client, once it has room again.
+    // The client's reader stopped reading meanwhile (see MessageWarehouse).
+    void resumeReading();
+
+    boolean isClosed();
+
+}
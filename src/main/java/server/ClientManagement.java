@@ -1,18 +1,29 @@
 package server;
 
 import message.Chat;
+import message.Frame;
 import message.Message;
 
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.net.Socket;
-import java.util.HashMap;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  *
- * Client Management to maintain list of active clients
+ * Client Management to maintain list of active clients of one board
  * and assist in directing messages to the right clients.
+ * Used by the connection threads (connect requests) and the board's MessageWarehouse.
+ *
+ * Clients that can resume (see Connection) get a session token once they are on the board.
+ * With it, a client whose connection was lost takes its place again on a new connection.
+ *
+ * Broadcasts and the connections closed by the MessageWarehouse go through its Fanout: the
+ * recipients are chosen here, the frames are queued for them on another board thread.
  *
  * @author liching
  *
@@ -21,36 +32,61 @@ public class ClientManagement {
 
     private static int counter = 0;
 
-    private Socket managerSocket;
+    private static final SecureRandom random = new SecureRandom();
+
+    private volatile ClientConnection managerConnection;
+
+    private volatile String managerUsername;
 
-    private String managerUsername;
+    private ConcurrentHashMap<String, ClientConnection> clientList;
 
-    private HashMap<String, Socket> clientList;
+    // Users waiting for the manager's approval. They get the board state once approved,
+    // so broadcasts are not sent to them before.
+    private Set<String> pendingUsers;
+
+    // Session token of each user who can resume, and the last sequence number of the users resuming
+    // until the MessageWarehouse has sent them what they missed
+    private ConcurrentHashMap<String, String> sessions;
+    private ConcurrentHashMap<String, Long> resumingUsers;
 
     private ServerGUI serverGUI;
 
+    // Last stage of the board, null until the MessageWarehouse is created
+    private Fanout fanout;
+
     public ClientManagement(ServerGUI serverGUI){
-        clientList = new HashMap<String, Socket>();
+        clientList = new ConcurrentHashMap<String, ClientConnection>();
+        pendingUsers = ConcurrentHashMap.newKeySet();
+        sessions = new ConcurrentHashMap<>();
+        resumingUsers = new ConcurrentHashMap<>();
         this.serverGUI = serverGUI;
     }
 
-    public void setManager(String managerUsername, Socket managerSocket){
+    void setFanout(Fanout fanout){
+        this.fanout = fanout;
+    }
+
+    public void setManager(String managerUsername, ClientConnection managerConnection){
         this.managerUsername = managerUsername;
-        this.managerSocket = managerSocket;
-        this.clientList.put(managerUsername, managerSocket);
+        this.managerConnection = managerConnection;
+        this.clientList.put(managerUsername, managerConnection);
     }
 
     public void resetClientManagement() throws IOException {
-        for (Map.Entry<String, Socket> client : clientList.entrySet()) {
-            Socket socket = client.getValue();
-            socket.close();
+        Fanout.Entry entry = null;
+        for (Map.Entry<String, ClientConnection> client : clientList.entrySet()) {
+            entry = queue(entry, client.getValue(), null);
         }
+        publish(entry);
         clientList.clear();
-        this.managerSocket = null;
+        pendingUsers.clear();
+        sessions.clear();
+        resumingUsers.clear();
+        this.managerConnection = null;
         this.managerUsername = null;
     }
 
-    public HashMap<String, Socket> getClientList(){
+    public Map<String, ClientConnection> getClientList(){
         return clientList;
     }
 
@@ -61,7 +97,7 @@ public class ClientManagement {
 
     public Chat getUserList(){
         String userList = managerUsername + " (manager) \n";
-        for (Map.Entry<String, Socket> client : clientList.entrySet()) {
+        for (Map.Entry<String, ClientConnection> client : clientList.entrySet()) {
 
             String username = client.getKey();
             if (!username.equals(managerUsername)){
@@ -77,16 +113,92 @@ public class ClientManagement {
         return managerUsername;
     }
 
-    public void addClientList(String username, Socket socket){
-        clientList.put(username, socket);
+    // Add a user waiting for approval
+    public void addClientList(String username, ClientConnection connection){
+        pendingUsers.add(username);
+        clientList.put(username, connection);
+    }
+
+    public void approveClient(String username){
+        if (username != null){
+            pendingUsers.remove(username);
+        }
     }
 
     public void removeClientFromList(String username) throws IOException {
-        Socket socket = clientList.get(username);
-        if (socket != null){
-            socket.close();
+        if (username == null){
+            return;
+        }
+        ClientConnection connection = clientList.get(username);
+        if (connection != null){
+            // Closed after the broadcasts queued before, eg. the kick
+            publish(queue(null, connection, null));
         }
         clientList.remove(username);
+        pendingUsers.remove(username);
+        sessions.remove(username);
+        resumingUsers.remove(username);
+    }
+
+    // Close the connection of a client, which is then removed like one that lost its connection
+    public void disconnectClient(String username){
+        ClientConnection connection = username == null ? null : clientList.get(username);
+        if (connection != null){
+            connection.disconnect();
+        }
+    }
+
+    // Whether the user is on the board with this connection, and not with a newer one
+    public boolean isConnectedWith(String username, ClientConnection connection){
+        return username != null && clientList.get(username) == connection;
+    }
+
+    // New session token for a user whose client can resume, null otherwise
+    public Chat createSession(String username){
+        ClientConnection connection = username == null ? null : clientList.get(username);
+        if (connection == null || !connection.getWireFormat().resume){
+            return null;
+        }
+        byte[] token = new byte[16];
+        random.nextBytes(token);
+        String session = Base64.getUrlEncoder().withoutPadding().encodeToString(token);
+        sessions.put(username, session);
+        return new Chat("Server", "bot", "session", session, username);
+    }
+
+    public boolean hasSession(String username){
+        return username != null && sessions.containsKey(username);
+    }
+
+    public boolean checkSession(String username, String session){
+        String expected = username == null ? null : sessions.get(username);
+        return expected != null && session != null && MessageDigest.isEqual(
+                expected.getBytes(StandardCharsets.UTF_8), session.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Give the user's place to a new connection. Like a user waiting for approval, it gets no
+    // broadcasts until the MessageWarehouse has sent it the operations after the given sequence number.
+    public void resumeClient(String username, ClientConnection connection, long sequence) throws IOException {
+        pendingUsers.add(username);
+        resumingUsers.put(username, sequence);
+        ClientConnection previous = clientList.put(username, connection);
+        if (username.equals(managerUsername)){
+            managerConnection = connection;
+        }
+        if (previous != null && previous != connection){
+            previous.close();
+        }
+    }
+
+    // Sequence number the user resumes from, null if the user is not resuming
+    public Long takeResume(String username){
+        return username == null ? null : resumingUsers.remove(username);
+    }
+
+    // Whether the user agreed to receive the board state as a Snapshot
+    public boolean supportsSnapshots(String username){
+        ClientConnection connection = username == null ? null : clientList.get(username);
+        return connection != null && connection.getWireFormat().snapshots;
     }
 
     public boolean checkIfManager(String username){
@@ -101,30 +213,108 @@ public class ClientManagement {
         return clientList.containsKey(username);
     }
 
-    public void contactManager(Message message) throws IOException {
-        sendMessage(managerSocket, message);
+    public void contactManager(Message message) {
+        sendMessage(managerConnection, Frame.encode(message));
+    }
+
+    public void contactUser(String username, Message message) {
+        contactUser(username, Frame.encode(message));
+    }
+
+    public void contactUser(String username, Frame frame) {
+        if (username == null){
+            return;
+        }
+        ClientConnection connection = clientList.get(username);
+        sendMessage(connection, frame);
+    }
+
+    public void broadcastMessage(String sender, Message message) {
+        // Encode once, the same frame is queued for every recipient
+        broadcastFrame(sender, Frame.encode(message));
+    }
+
+    public void broadcastFrame(String sender, Frame frame) {
+        Fanout.Entry entry = null;
+        int recipients = 0;
+
+        // Send to everyone except original sender and users not approved yet
+        for (Map.Entry<String, ClientConnection> client : clientList.entrySet()) {
+            if (!client.getKey().equals(sender) && !pendingUsers.contains(client.getKey())){
+                entry = queue(entry, client.getValue(), frame);
+                recipients++;
+            }
+        }
+        publish(entry);
+        serverGUI.logMessage("(Sent to " + recipients + ") " + frame);
+    }
+
+    // Sequence number of the last board operation, for users who sent some of the operations before it.
+    // Only sent to clients that can resume, after the operations queued for them.
+    public void sendSequence(Set<String> usernames, long sequence) {
+        Frame frame = Frame.encode(getSequence(sequence));
+        Fanout.Entry entry = null;
+        for (String username : usernames) {
+            ClientConnection connection = clientList.get(username);
+            if (connection != null && !pendingUsers.contains(username) && connection.getWireFormat().resume){
+                entry = queue(entry, connection, frame);
+            }
+        }
+        publish(entry);
+    }
+
+    public Chat getSequence(long sequence){
+        return new Chat("Server", "bot", "seq", Long.toString(sequence), "all");
     }
 
-    public void contactUser(String username, Message message) throws IOException {
-        Socket socket = clientList.get(username);
-        sendMessage(socket, message);
+    // Pen stroke being drawn (see Stroke), only sent to clients that asked for strokes
+    public void broadcastStroke(String sender, Frame frame) {
+        Fanout.Entry entry = null;
+        int recipients = 0;
+        for (Map.Entry<String, ClientConnection> client : clientList.entrySet()) {
+            if (!client.getKey().equals(sender) && !pendingUsers.contains(client.getKey())
+                    && client.getValue().getWireFormat().strokes){
+                entry = queue(entry, client.getValue(), frame);
+                recipients++;
+            }
+        }
+        publish(entry);
+        serverGUI.logMessage("(Sent to " + recipients + ") " + frame);
     }
 
-    public void broadcastMessage(String sender, Message message) throws IOException {
-        // Send to everyone except original sender
-        for (Map.Entry<String, Socket> client : clientList.entrySet()) {
-            if (!client.getKey().equals(sender)){
-                Socket socket = client.getValue();
-                sendMessage(socket, message);
+    // Add the connection to the Fanout entry of frame, claimed for the first recipient, or to close if frame
+    // is null. Without a Fanout, or if it is full, the frame is queued for the connection (or it is closed) at once.
+    private Fanout.Entry queue(Fanout.Entry entry, ClientConnection connection, Frame frame) {
+        if (entry == null && fanout != null){
+            entry = fanout.claim(frame);
+        }
+        if (entry != null){
+            entry.add(connection);
+        } else if (frame != null){
+            connection.send(frame);
+        } else {
+            try {
+                connection.close();
+            } catch (IOException e){
+                e.printStackTrace();
             }
         }
+        return entry;
     }
 
-    private void sendMessage(Socket socket, Message message) throws IOException {
-        DataOutputStream output = new DataOutputStream(socket.getOutputStream());
-        output.writeUTF(message.toString());
-        output.flush();
-        serverGUI.logMessage("(Sent) " + message);
+    private void publish(Fanout.Entry entry) {
+        if (entry != null){
+            fanout.publish(entry);
+        }
+    }
+
+    // Only queues the frame, the client's writer sends it
+    private void sendMessage(ClientConnection connection, Frame frame) {
+        if (connection == null){
+            return;
+        }
+        connection.send(frame);
+        serverGUI.logMessage("(Sent) " + frame);
     }
 
 
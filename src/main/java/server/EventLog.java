@@ -0,0 +1,410 @@
+package server;
+
+import message.Draw;
+import message.WireCodec;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ *
+ * EventLog to keep the operations changing the state of one board on disk,
+ * so the board state survives the manager leaving and the server restarting.
+ *
+ * Operations are appended with increasing sequence numbers to segment files
+ * (see LogSegment) in the board's directory, named after their first sequence number.
+ * When a board is opened its log is replayed to rebuild the board state.
+ *
+ * Every checkpointOps operations or checkpointMillis, the board state is written to a
+ * checkpoint file (see Checkpoint) by the checkpoint thread, from a view of the state
+ * that the board does not wait for (see BoardState). Once the checkpoint is on disk and
+ * reads back, the checkpoint before it is the oldest kept, with the segments after it.
+ * Replay reads the newest checkpoint and the operations after it, or the one before it
+ * if the newest is damaged.
+ *
+ * A log missing operations is not replayed, eg. with a damaged record in a segment that
+ * is not the last one: the board would get a different state than the one logged.
+ * A damaged record at the end of the log is cut, it was being written when the server stopped.
+ *
+ * Appends return at once. Writing to disk is done by the log sync thread at most
+ * logSyncMillis later, for all operations appended in the meantime (group commit).
+ *
+ * @author liching
+ *
+ */
+public class EventLog {
+
+    // Record types
+    public static final byte DRAW = 1;
+    public static final byte NEW = 2;
+
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+
+    // Receives each record read back from the log
+    interface RecordHandler {
+        void record(long sequence, byte type, ByteBuffer data) throws IOException;
+    }
+
+    private Path directory;
+
+    // Where replays, checkpoints and failures are reported, eg. ServerGUI.logMessage
+    private Consumer<String> log;
+
+    private int segmentSize;
+
+    private long syncMillis;
+
+    private ScheduledExecutorService syncExecutor;
+
+    private long checkpointOps;
+    private long checkpointMillis;
+    private Executor checkpointExecutor;
+
+    // Segment appended to, null until the first append to an empty log
+    private volatile LogSegment current;
+
+    private long nextSequence;
+
+    // Set while a sync is waiting on the sync thread
+    private AtomicBoolean syncScheduled;
+
+    // Set while a checkpoint is waiting for or running on the checkpoint thread
+    private AtomicBoolean checkpointRunning;
+
+    // Operations appended since the last checkpoint was started, and when it was started
+    private long appendsSinceCheckpoint;
+    private long lastCheckpointTime;
+
+    private volatile boolean closed;
+
+    // Appends and syncs since the log was opened
+    private long appends;
+    private volatile long syncs;
+
+    public EventLog(Path directory, ServerConfig config, Consumer<String> log, ScheduledExecutorService syncExecutor,
+                    Executor checkpointExecutor) throws IOException {
+        this.directory = directory;
+        this.log = log;
+        this.segmentSize = config.logSegmentSize;
+        this.syncMillis = config.logSyncMillis;
+        this.syncExecutor = syncExecutor;
+        this.checkpointOps = config.checkpointOps;
+        this.checkpointMillis = config.checkpointMillis;
+        this.checkpointExecutor = checkpointExecutor;
+        this.nextSequence = 1;
+        this.syncScheduled = new AtomicBoolean();
+        this.checkpointRunning = new AtomicBoolean();
+        this.lastCheckpointTime = System.currentTimeMillis();
+        Files.createDirectories(directory);
+    }
+
+    // Directory of a board's log. Board ids come from clients, so anything but letters, digits, '-' and '_' is escaped.
+    public static Path boardDirectory(Path dataDir, String boardId){
+        StringBuilder name = new StringBuilder();
+        for (byte b : boardId.getBytes(StandardCharsets.UTF_8)){
+            char c = (char) (b & 0xff);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '_'){
+                name.append(c);
+            } else {
+                name.append(String.format("%%%02x", b & 0xff));
+            }
+        }
+        return dataDir.resolve(name.toString());
+    }
+
+    /*
+     * Replay
+     */
+    // Rebuild the board state into an empty state. Must be called once, before the first append.
+    public void replay(List<Draw> state) throws IOException {
+
+        long start = System.currentTimeMillis();
+        JSONParser parser = new JSONParser();
+        long[] records = new long[1];
+
+        // Newest checkpoint that can be read, then the operations after it
+        long checkpointSequence = 0;
+        List<Path> checkpointPaths = listFiles(CHECKPOINT_SUFFIX);
+        for (int i = checkpointPaths.size() - 1; i >= 0; i--){
+            try {
+                checkpointSequence = Checkpoint.read(checkpointPaths.get(i), state, parser);
+                nextSequence = checkpointSequence + 1;
+                break;
+            } catch (IOException e){
+                e.printStackTrace();
+                state.clear();
+                log.accept("(Error) Checkpoint " + checkpointPaths.get(i) + " cannot be read, "
+                        + (i > 0 ? "the one before it is used" : "the log is replayed from its start"));
+            }
+        }
+        long skipTo = checkpointSequence;
+
+        RecordHandler handler = (sequence, type, data) -> {
+            if (sequence <= skipTo){
+                return;
+            }
+            records[0]++;
+            if (type == DRAW){
+                byte[] payload = new byte[data.remaining()];
+                data.get(payload);
+                try {
+                    state.add(WireCodec.decodeDraw(payload, parser));
+                } catch (ParseException e){
+                    throw new IOException("Malformed draw object in log at sequence " + sequence, e);
+                }
+            } else if (type == NEW){
+                state.clear();
+            }
+            nextSequence = sequence + 1;
+        };
+
+        List<Path> segmentPaths = listFiles(SEGMENT_SUFFIX);
+        for (int i = 0; i < segmentPaths.size(); i++){
+            Path path = segmentPaths.get(i);
+            boolean last = i == segmentPaths.size() - 1;
+            // Segments left over from a truncation that did not finish
+            if (!last && sequenceOf(segmentPaths.get(i + 1), SEGMENT_SUFFIX) <= checkpointSequence + 1){
+                continue;
+            }
+            LogSegment segment = LogSegment.open(path, sequenceOf(path, SEGMENT_SUFFIX), segmentSize);
+            boolean clean;
+            try {
+                if (segment.getFirstSequence() > nextSequence && !segment.isEmpty()){
+                    throw new IOException("Log " + directory + " is missing operations " + nextSequence
+                            + " to " + (segment.getFirstSequence() - 1));
+                }
+                clean = segment.read(handler);
+            } catch (IOException | RuntimeException e){
+                segment.close();
+                throw e;
+            }
+            if (!clean && !last){
+                segment.close();
+                throw new IOException("Log segment " + path + " has a damaged record after sequence "
+                        + (nextSequence - 1) + ", the operations after it cannot be replayed");
+            }
+            if (!clean){
+                log.accept("(Error) Log segment " + path + " ends with a damaged record, it was cut after sequence "
+                        + (nextSequence - 1));
+            }
+
+            if (last && segment.getFirstSequence() > nextSequence){
+                // Created for the operations after the last one kept, appends start a segment at the right place
+                segment.close();
+                Files.deleteIfExists(path);
+            } else if (last){
+                current = segment;
+            } else {
+                segment.close();
+            }
+        }
+
+        log.accept(String.format("(Information) Log %s: replayed %s%d operations in %d ms, %d draw objects",
+                directory, checkpointSequence > 0 ? "checkpoint at sequence " + checkpointSequence + " and " : "",
+                records[0], System.currentTimeMillis() - start, state.size()));
+    }
+
+    private List<Path> listFiles(String suffix) throws IOException {
+        ArrayList<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + suffix)){
+            for (Path path : stream){
+                paths.add(path);
+            }
+        }
+        // Names are zero padded sequence numbers
+        Collections.sort(paths);
+        return paths;
+    }
+
+    // Sequence number in the name of a segment (its first) or checkpoint (the last it holds)
+    private static long sequenceOf(Path path, String suffix) throws IOException {
+        String name = path.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring(0, name.length() - suffix.length()));
+        } catch (NumberFormatException e){
+            throw new IOException("Unexpected file in log directory: " + path);
+        }
+    }
+
+    private Path segmentPath(long firstSequence){
+        return directory.resolve(String.format("%020d", firstSequence) + SEGMENT_SUFFIX);
+    }
+
+    private Path checkpointPath(long sequence){
+        return directory.resolve(String.format("%020d", sequence) + CHECKPOINT_SUFFIX);
+    }
+
+    /*
+     * Appending
+     */
+    // A log that cannot be written is closed, the board then keeps its state in memory only.
+    // It must not go on with operations missing, replaying it would give a different state.
+    public void appendDraw(Draw draw){
+        if (closed){
+            return;
+        }
+        try {
+            append(DRAW, WireCodec.encode(draw, WireCodec.BINARY));
+        } catch (IOException e){
+            fail(e);
+        }
+    }
+
+    public void appendNew(){
+        if (closed){
+            return;
+        }
+        try {
+            append(NEW, new byte[0]);
+        } catch (IOException e){
+            fail(e);
+        }
+    }
+
+    // Operations of one board are appended one at a time, by its MessageWarehouse
+    private void append(byte type, byte[] data) throws IOException {
+
+        LogSegment segment = current;
+        if (segment == null || !segment.hasRoom(data.length)){
+            if (segment != null){
+                segment.close();
+            }
+            // A record larger than a segment gets a segment of its own
+            int size = Math.max(segmentSize, LogSegment.HEADER_SIZE + LogSegment.BODY_HEADER_SIZE + data.length);
+            segment = LogSegment.open(segmentPath(nextSequence), nextSequence, size);
+            current = segment;
+        }
+
+        segment.append(nextSequence++, type, data);
+        appends++;
+        appendsSinceCheckpoint++;
+
+        if (syncScheduled.compareAndSet(false, true)){
+            syncExecutor.schedule(this::sync, syncMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void fail(IOException e){
+        e.printStackTrace();
+        log.accept("(Error) Log " + directory + " cannot be written, board state is kept in memory only from now on.");
+        close();
+    }
+
+    // Runs on the sync thread
+    private void sync(){
+        syncScheduled.set(false);
+        LogSegment segment = current;
+        if (segment != null && segment.sync()){
+            syncs++;
+        }
+    }
+
+    /*
+     * Checkpoints
+     */
+    public boolean isCheckpointDue(){
+        if (closed || appendsSinceCheckpoint == 0 || checkpointRunning.get()){
+            return false;
+        }
+        return appendsSinceCheckpoint >= checkpointOps
+                || System.currentTimeMillis() - lastCheckpointTime >= checkpointMillis;
+    }
+
+    // Write a checkpoint of the state after the last operation appended, on the checkpoint thread.
+    // The state must not change under the view given (see BoardState.view()).
+    public void checkpoint(List<Draw> view){
+        long sequence = nextSequence - 1;
+        appendsSinceCheckpoint = 0;
+        lastCheckpointTime = System.currentTimeMillis();
+        checkpointRunning.set(true);
+        checkpointExecutor.execute(() -> writeCheckpoint(view, sequence));
+    }
+
+    // Runs on the checkpoint thread. The log is not closed (and so not opened again) while it runs.
+    private synchronized void writeCheckpoint(List<Draw> view, long sequence){
+        Path path = checkpointPath(sequence);
+        try {
+            if (closed){
+                return;
+            }
+            long start = System.currentTimeMillis();
+            Checkpoint.write(path, sequence, view);
+            // Nothing is removed for it before it is known to read back
+            List<Draw> readBack = new ArrayList<>(view.size());
+            if (Checkpoint.read(path, readBack, new JSONParser()) != sequence || readBack.size() != view.size()){
+                throw new IOException("Checkpoint " + path + " does not read back as written");
+            }
+            int removed = truncate();
+            log.accept(String.format("(Information) Log %s: checkpoint of %d draw objects at sequence %d in %d ms, %d segments removed",
+                    directory, view.size(), sequence, System.currentTimeMillis() - start, removed));
+        } catch (IOException | RuntimeException e){
+            e.printStackTrace();
+            log.accept("(Error) Log " + directory + ": checkpoint at sequence " + sequence
+                    + " failed, the log is kept as it was");
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException deleteFailed){
+                deleteFailed.printStackTrace();
+            }
+        } finally {
+            checkpointRunning.set(false);
+        }
+    }
+
+    // Remove what is not needed to replay from the checkpoint before the newest one: the older
+    // checkpoints and the segments before it. The last segment is kept, it is the one appended to.
+    private int truncate() throws IOException {
+        List<Path> checkpointPaths = listFiles(CHECKPOINT_SUFFIX);
+        if (checkpointPaths.size() < 2){
+            return 0;
+        }
+        long sequence = sequenceOf(checkpointPaths.get(checkpointPaths.size() - 2), CHECKPOINT_SUFFIX);
+        int removed = 0;
+        List<Path> segmentPaths = listFiles(SEGMENT_SUFFIX);
+        for (int i = 0; i < segmentPaths.size() - 1; i++){
+            if (sequenceOf(segmentPaths.get(i + 1), SEGMENT_SUFFIX) <= sequence + 1){
+                Files.deleteIfExists(segmentPaths.get(i));
+                removed++;
+            }
+        }
+        for (Path path : checkpointPaths){
+            if (sequenceOf(path, CHECKPOINT_SUFFIX) < sequence){
+                Files.deleteIfExists(path);
+            }
+        }
+        return removed;
+    }
+
+    // Board closed, write what is left to disk. Waits for a checkpoint being written.
+    public synchronized void close(){
+        if (closed){
+            return;
+        }
+        closed = true;
+        LogSegment segment = current;
+        if (segment != null){
+            if (segment.sync()){
+                syncs++;
+            }
+            segment.close();
+        }
+        log.accept(String.format("(Information) Log %s: %d operations appended in %d syncs",
+                directory, appends, syncs));
+    }
+
+}
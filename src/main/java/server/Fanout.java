@@ -0,0 +1,144 @@
+package server;
+
+import message.Frame;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ *
+ * Fanout as the last stage of a board: queues each frame its MessageWarehouse broadcasts for the
+ * clients chosen, and closes the connections it removed, in the order the MessageWarehouse did so.
+ *
+ * The recipients are chosen when the message is processed, so a user approved or removed after it
+ * does not get a frame still waiting here. Queuing a frame for every client (encoding it for their
+ * codec, waking up their writer) is done here, on another board thread, while the MessageWarehouse
+ * goes on with the next messages.
+ *
+ * Entries wait in a RingBuffer, filled with the recipients of each frame without an allocation.
+ * The MessageWarehouse checks there is room before processing a message (see hasRoom), and waits
+ * for this stage without holding a board thread. Messages sent to a single client are not queued
+ * here, they are queued for that client at once.
+ *
+ * @author liching
+ *
+ */
+class Fanout implements Runnable {
+
+    // Entries handled before giving the board thread to another board
+    private static final int BATCH_SIZE = 256;
+
+    // Frame for some clients, or connections to close if frame is null. Slots of the ring are reused.
+    static class Entry {
+        private long sequence;
+        private Frame frame;
+        private ClientConnection[] recipients = new ClientConnection[8];
+        private int count;
+
+        void add(ClientConnection connection){
+            if (count == recipients.length){
+                recipients = Arrays.copyOf(recipients, count * 2);
+            }
+            recipients[count++] = connection;
+        }
+    }
+
+    private RingBuffer<Entry> entries;
+
+    private Executor executor;
+
+    // Set while this stage is queued or running on the executor
+    private AtomicBoolean scheduled;
+
+    // Called once there is room again for the caller of hasRoom that found too little
+    private Runnable onRoom;
+    private AtomicBoolean roomWanted;
+
+    Fanout(int size, Executor executor, Runnable onRoom){
+        this.entries = new RingBuffer<>(size, Entry::new);
+        this.executor = executor;
+        this.scheduled = new AtomicBoolean();
+        this.onRoom = onRoom;
+        this.roomWanted = new AtomicBoolean();
+    }
+
+    /*
+     * Producer side, the board's MessageWarehouse and seldom a connection thread
+     */
+    // Whether count more entries can be queued now. If not, onRoom is called once there is room again.
+    boolean hasRoom(int count){
+        if (entries.hasRoom(count)){
+            return true;
+        }
+        roomWanted.set(true);
+        // Room made just before it was wanted
+        return entries.hasRoom(count);
+    }
+
+    // Entry to add the recipients of frame to, or the connections to close if frame is null.
+    // Null if there is no room, the caller then sends or closes at once.
+    Entry claim(Frame frame){
+        long sequence = entries.claim();
+        if (sequence < 0){
+            return null;
+        }
+        Entry entry = entries.get(sequence);
+        entry.sequence = sequence;
+        entry.frame = frame;
+        entry.count = 0;
+        return entry;
+    }
+
+    void publish(Entry entry){
+        entries.publish(entry.sequence);
+        schedule();
+    }
+
+    /*
+     * Consumer side, on the board threads
+     */
+    @Override
+    public void run(){
+        for (int i = 0; i < BATCH_SIZE; i++){
+            Entry entry = entries.peek();
+            if (entry == null){
+                break;
+            }
+            for (int r = 0; r < entry.count; r++){
+                ClientConnection connection = entry.recipients[r];
+                entry.recipients[r] = null;
+                // An exception leaving run would keep this stage scheduled, and nothing more would be sent
+                try {
+                    if (entry.frame != null){
+                        connection.send(entry.frame);
+                    } else {
+                        connection.close();
+                    }
+                } catch (IOException | RuntimeException e){
+                    e.printStackTrace();
+                }
+            }
+            entry.frame = null;
+            entries.release();
+        }
+
+        if (roomWanted.compareAndSet(true, false)){
+            onRoom.run();
+        }
+
+        scheduled.set(false);
+        // Entries published while running, or left over from a full batch
+        if (!entries.isEmpty()){
+            schedule();
+        }
+    }
+
+    private void schedule(){
+        if (scheduled.compareAndSet(false, true)){
+            executor.execute(this);
+        }
+    }
+
+}
@@ -0,0 +1,80 @@
+package server;
+
+import message.Chat;
+import message.Frame;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *
+ * HeartbeatMonitor to find client connections that stopped answering, eg. a half-open TCP connection
+ * after the client's network went away, which would otherwise keep its threads and its place on the
+ * board and keep getting broadcasts forever.
+ *
+ * Runs every pingMillis on a timer thread, for blocking and nio connections alike:
+ * 1. clients that asked for heartbeats in the connect handshake (see Connection) get a "ping",
+ *    which they answer with a "pong". Anything received from a client counts as an answer.
+ * 2. a connection nothing has been received from for idleTimeoutMillis is disconnected. Its reader
+ *    then emits the usual quit, as for any lost connection (see Server).
+ *
+ * Connections are watched from the moment they are accepted, so one that never sends its connection
+ * request is disconnected too. Older clients cannot answer pings and are no longer watched once
+ * connected, they rely on TCP keepalive.
+ *
+ * @author liching
+ *
+ */
+public class HeartbeatMonitor implements Runnable {
+
+    private ServerGUI serverGUI;
+
+    private long idleTimeoutMillis;
+
+    private Set<ClientConnection> connections;
+
+    // Same ping frame for every client
+    private Frame ping;
+
+    public HeartbeatMonitor(ServerGUI serverGUI, ServerConfig config){
+        this.serverGUI = serverGUI;
+        this.idleTimeoutMillis = config.idleTimeoutMillis;
+        this.connections = ConcurrentHashMap.newKeySet();
+        this.ping = Frame.encode(new Chat("Server", "bot", "ping", "", "all"));
+    }
+
+    public void add(ClientConnection connection){
+        connections.add(connection);
+    }
+
+    public void remove(ClientConnection connection){
+        connections.remove(connection);
+    }
+
+    @Override
+    public void run(){
+        long now = System.currentTimeMillis();
+        for (ClientConnection connection : connections){
+            // Thrown out of run, an exception would cancel the fixed-rate schedule: no connection would be checked again
+            try {
+                check(connection, now);
+            } catch (RuntimeException e){
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void check(ClientConnection connection, long now){
+        long idle = now - connection.getLastReceived();
+        if (connection.isClosed()){
+            connections.remove(connection);
+        } else if (idle > idleTimeoutMillis){
+            connections.remove(connection);
+            serverGUI.logMessage("(Information) " + connection + " sent nothing for " + idle + " ms, disconnected");
+            connection.disconnect();
+        } else if (connection.getWireFormat().heartbeat){
+            connection.send(ping);
+        }
+    }
+
+}
@@ -0,0 +1,190 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ *
+ * LogSegment to hold one file of an EventLog, mapped into memory.
+ *
+ * Records are written one after another, each as
+ * length (int, of sequence + type + data), checksum (int, CRC32C of sequence + type + data),
+ * sequence (long), type (byte) and data. New segment files are all zero, so a length of 0 marks the end.
+ *
+ * Appending only copies into the mapped file, sync() writes what was appended since the last sync to disk.
+ *
+ * @author liching
+ *
+ */
+class LogSegment {
+
+    // length + checksum
+    static final int HEADER_SIZE = 8;
+
+    // sequence + type
+    static final int BODY_HEADER_SIZE = 9;
+
+    private Path path;
+
+    private long firstSequence;
+
+    private FileChannel channel;
+
+    private MappedByteBuffer buffer;
+
+    private CRC32C checksum;
+
+    // End of the records appended, read by the sync thread
+    private volatile int writePosition;
+
+    // End of the records written to disk, guarded by this
+    private int syncedPosition;
+
+    private boolean closed;
+
+    private LogSegment(Path path, long firstSequence, FileChannel channel, MappedByteBuffer buffer){
+        this.path = path;
+        this.firstSequence = firstSequence;
+        this.channel = channel;
+        this.buffer = buffer;
+        this.checksum = new CRC32C();
+    }
+
+    // Map the segment file, created with given size if it does not exist
+    static LogSegment open(Path path, long firstSequence, int size) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long mappedSize = Math.max(size, channel.size());
+            if (mappedSize > Integer.MAX_VALUE){
+                throw new IOException("Log segment too large: " + path);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, mappedSize);
+            return new LogSegment(path, firstSequence, channel, buffer);
+        } catch (IOException | RuntimeException e){
+            channel.close();
+            throw e;
+        }
+    }
+
+    /*
+     * Reading
+     */
+    // Read the records from the start of the segment. Stops at the end marker or at the first
+    // record that is incomplete, damaged or out of sequence, and appends after the last good record.
+    // Returns true if the segment ended cleanly.
+    boolean read(EventLog.RecordHandler handler) throws IOException {
+
+        int position = 0;
+        long expectedSequence = firstSequence;
+        boolean clean = true;
+
+        while (position + HEADER_SIZE <= buffer.capacity()){
+            int length = buffer.getInt(position);
+            if (length == 0){
+                break;
+            }
+            if (length < BODY_HEADER_SIZE || length > buffer.capacity() - position - HEADER_SIZE){
+                clean = false;
+                break;
+            }
+
+            ByteBuffer body = buffer.slice(position + HEADER_SIZE, length);
+            checksum.reset();
+            checksum.update(body);
+            long sequence = buffer.getLong(position + HEADER_SIZE);
+            if ((int) checksum.getValue() != buffer.getInt(position + 4) || sequence != expectedSequence){
+                clean = false;
+                break;
+            }
+
+            byte type = buffer.get(position + HEADER_SIZE + 8);
+            handler.record(sequence, type, buffer.slice(position + HEADER_SIZE + BODY_HEADER_SIZE,
+                    length - BODY_HEADER_SIZE));
+
+            position += HEADER_SIZE + length;
+            expectedSequence++;
+        }
+
+        // Clear what is left of a damaged record, so appends after it are read back in order
+        if (!clean){
+            for (int i = position; i < buffer.capacity(); i++){
+                buffer.put(i, (byte) 0);
+            }
+            buffer.force(position, buffer.capacity() - position);
+        }
+
+        writePosition = position;
+        syncedPosition = position;
+        return clean;
+    }
+
+    // Whether the segment file holds no record, before it is read
+    boolean isEmpty(){
+        return buffer.getInt(0) == 0;
+    }
+
+    /*
+     * Writing
+     */
+    boolean hasRoom(int dataLength){
+        return (long) writePosition + HEADER_SIZE + BODY_HEADER_SIZE + dataLength <= buffer.capacity();
+    }
+
+    // Append one record, there must be room for it (see hasRoom)
+    void append(long sequence, byte type, byte[] data){
+
+        int position = writePosition;
+        int length = BODY_HEADER_SIZE + data.length;
+
+        buffer.putLong(position + HEADER_SIZE, sequence);
+        buffer.put(position + HEADER_SIZE + 8, type);
+        buffer.put(position + HEADER_SIZE + BODY_HEADER_SIZE, data);
+
+        checksum.reset();
+        checksum.update(buffer.slice(position + HEADER_SIZE, length));
+        buffer.putInt(position + 4, (int) checksum.getValue());
+        // Length last, the record is not read back before it is complete
+        buffer.putInt(position, length);
+
+        writePosition = position + HEADER_SIZE + length;
+    }
+
+    // Write everything appended so far to disk. Returns false if there was nothing to write.
+    synchronized boolean sync(){
+        int end = writePosition;
+        if (closed || end == syncedPosition){
+            return false;
+        }
+        buffer.force(syncedPosition, end - syncedPosition);
+        syncedPosition = end;
+        return true;
+    }
+
+    synchronized void close(){
+        if (closed){
+            return;
+        }
+        sync();
+        closed = true;
+        try {
+            channel.close();
+        } catch (IOException e){
+            e.printStackTrace();
+        }
+    }
+
+    long getFirstSequence(){
+        return firstSequence;
+    }
+
+    Path getPath(){
+        return path;
+    }
+
+}
@@ -2,160 +2,704 @@ package server;
 
 import message.Chat;
 import message.Draw;
+import message.Frame;
+import message.JsonDrawCodec;
+import message.LaneQueue;
+import message.Snapshot;
+import message.SnapshotBuilder;
+import message.Stroke;
+import message.WireCodec;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  *
- * MessageWarehouse to hold messages received by server and process each incoming
+ * MessageWarehouse to hold messages received by server for one board and process each incoming
  * message at one time using methods in Client Management.
  *
+ * Runs as an actor on the board threads: whenever messages are waiting it is scheduled on the
+ * executor, processes a batch and hands the thread back to other boards.
+ *
+ * Messages received wait in two lanes (see LaneQueue), so a kick, approval or quit is processed
+ * before drawings still waiting, eg. while a large file is replayed. Drawings wait in a RingBuffer,
+ * filled by the client threads with the bytes received, without a lock or an allocation per drawing.
+ *
+ * Drawings go through three stages, each running on the board threads and handing over to the next
+ * through a ring of STAGE_CAPACITY slots:
+ *
+ * 1. decode: each draw object is decoded once, a sender of one that cannot be decoded is disconnected.
+ * 2. sequence (this warehouse): the board state is changed in order, and the recipients chosen.
+ * 3. fan-out (see Fanout): the frame is queued for every recipient, relayed with the bytes received.
+ *
+ * So decoding the next drawings and queuing the last ones for many clients do not hold up the board
+ * state. A stage stops once the next one is full and is scheduled again when it has room, so the
+ * threads are never blocked. Drawings are never dropped: a client whose drawing finds the first ring
+ * full keeps it and stops reading until the board has caught up, so TCP slows down the clients
+ * sending them. Only that client waits: in nio mode its channel is no longer read, the NioWorker
+ * goes on with the other connections.
+ * Chat is the only control message dropped when too many are waiting, so a chat flood cannot make
+ * the board lose a join, approval, kick or quit.
+ *
+ * Once no message is waiting, the warehouse gives the board thread back (waitStrategy "park").
+ * With "yield" or "spin" it first waits up to waitMicros for the next message, which saves the
+ * hand over to the executor when messages follow each other closely, at the cost of CPU.
+ *
+ * Every change of the board state has a sequence number, the state version after it, stamped on the
+ * operation sent to the clients (see WireCodec.stamp). A user does not get the operations it sent, so
+ * after a batch with some of them its client gets the number of the last change. Clients that can
+ * resume only get the changes after their number when they resume their session (see Connection),
+ * and drop any operation with a number they already have.
+ *
  * @author liching
  *
  */
-public class MessageWarehouse extends Thread {
+public class MessageWarehouse implements Runnable {
+
+    public static final String PARK = "park";
+    public static final String YIELD = "yield";
+    public static final String SPIN = "spin";
+
+    // Messages processed before giving the board thread to another board
+    private static final int BATCH_SIZE = 256;
+
+    // Slots between the decode, sequence and fan-out stages
+    private static final int STAGE_CAPACITY = 1024;
+    // Most fan-out entries one message takes, eg. a manager's quit: its connection closed,
+    // two broadcasts and the other connections closed
+    private static final int FANOUT_ENTRIES_PER_MESSAGE = 4;
+
+    // Message received from a client: a draw object as received, with the client that sent it and the
+    // username read from it, or any other message. Slots of the ring buffers are reused, they also
+    // hold the other drawing messages (pen strokes and "new"). Once decoded, frame holds the draw object.
+    private static class Received {
+        private String sender;
+        private String username;
+        private byte[] draw;
+        private Frame frame;
+        private JSONObject message;
+
+        private Received(){
+        }
+
+        private Received(JSONObject message){
+            this.message = message;
+        }
+
+        private void set(String sender, String username, byte[] draw, Frame frame, JSONObject message){
+            this.sender = sender;
+            this.username = username;
+            this.draw = draw;
+            this.frame = frame;
+            this.message = message;
+        }
+    }
+
+    // Control lane of the messages received, and the bulk lane for drawings
+    private LaneQueue<Received> receivedByServer;
+    private RingBuffer<Received> receivedDraws;
+
+    // Drawings decoded, in the order received
+    private RingBuffer<Received> decodedDraws;
+    // Decode stage, and set while it is queued or running on the executor
+    private Runnable decoder;
+    private AtomicBoolean decodeScheduled;
+    // Held while decoding, by the decode stage or by this warehouse when the board closes
+    private AtomicBoolean decoding;
+
+    private Fanout fanout;
+
+    // Clients that found the ring full, told once it has room again
+    private ConcurrentLinkedQueue<ClientConnection> waitingClients;
+
+    // Chat messages in the control lane, and the most that may wait there
+    private AtomicInteger chatsWaiting;
+    private int chatCapacity;
+    // Set once dropped chat has been logged, until the control lane is empty again
+    private AtomicBoolean dropLogged;
+
+    private String waitStrategy;
+    private long waitNanos;
 
-    private LinkedBlockingDeque<JSONObject> receivedByServer;
+    private Board board;
+
+    private ServerGUI serverGUI;
 
     private ClientManagement clientManagement;
 
-    private ArrayList<Draw> currentState;
+    private BoardState currentState;
+
+    // Decodes the draw objects received, used while holding decoding only
+    private JSONParser parser;
+
+    // Operations changing currentState are appended here before they are applied, null if not kept on disk
+    private EventLog eventLog;
+
+    // Increased with every change of currentState, sent with each Snapshot. Also the sequence number
+    // of the last change: currentState holds the draw objects of the changes since it was last
+    // cleared, at stateVersion - currentState.size()
+    private long stateVersion;
+    // Users who sent operations in this batch, told the sequence number after it
+    private Set<String> authors;
+
+    // Snapshot of currentState, reused by users joining while the state is unchanged.
+    // Full parts are kept by the builder while the state grows, until it is cleared.
+    private List<Snapshot> snapshot;
+    private long snapshotVersion;
+    private SnapshotBuilder snapshotBuilder;
+    private int snapshotPartSize;
+
+    private Executor executor;
+
+    // Set while this warehouse is queued or running on the executor
+    private AtomicBoolean scheduled;
+
+    public MessageWarehouse(Board board, ServerGUI serverGUI, Executor executor, ServerConfig config){
+        // Only chat is bounded in the control lane, see add
+        this.receivedByServer = new LaneQueue<>(Integer.MAX_VALUE, 0);
+        this.chatsWaiting = new AtomicInteger();
+        this.chatCapacity = config.controlLaneCapacity;
+        this.dropLogged = new AtomicBoolean();
+        this.receivedDraws = new RingBuffer<>(config.inboundQueueCapacity, Received::new);
+        this.waitingClients = new ConcurrentLinkedQueue<>();
+        this.decodedDraws = new RingBuffer<>(STAGE_CAPACITY, Received::new);
+        this.decoder = this::decode;
+        this.decodeScheduled = new AtomicBoolean();
+        this.decoding = new AtomicBoolean();
+        this.waitStrategy = config.waitStrategy;
+        this.waitNanos = config.waitMicros * 1000;
+        this.board = board;
+        this.serverGUI = serverGUI;
+        this.clientManagement = board.getClientManagement();
+        this.currentState = new BoardState();
+        this.parser = new JSONParser();
+        this.executor = executor;
+        this.scheduled = new AtomicBoolean();
+        this.authors = new HashSet<>();
+        // Schedules this warehouse again once the Fanout it waits for has room
+        this.fanout = new Fanout(STAGE_CAPACITY, executor, this::schedule);
+        clientManagement.setFanout(fanout);
+        this.snapshotBuilder = new SnapshotBuilder(config.snapshotPartSize);
+        this.snapshotPartSize = config.snapshotPartSize;
+    }
 
-    public MessageWarehouse(ClientManagement clientManagement){
-        this.receivedByServer = new LinkedBlockingDeque<>();
-        this.clientManagement = clientManagement;
-        this.currentState = new ArrayList<>();
+    // Rebuild currentState from the log, before any message is received. Returns the log to use, null if it cannot be read.
+    EventLog restoreState(EventLog log){
+        if (log == null){
+            return null;
+        }
+        try {
+            log.replay(currentState);
+            stateVersion = currentState.size();
+            eventLog = log;
+        } catch (IOException | RuntimeException e){
+            e.printStackTrace();
+            currentState.clear();
+            serverGUI.logMessage("(Error) Board \"" + board.getId() + "\" log cannot be read, its state is kept in memory only.");
+            log.close();
+        }
+        return eventLog;
     }
 
     @Override
     public void run(){
-        try{
-            while (!interrupted()){
+        boolean fanoutFull = false;
+        for (int i = 0; i < BATCH_SIZE; i++){
+            // Waits for the Fanout rather than find it full, it schedules this warehouse again
+            if (!fanout.hasRoom(FANOUT_ENTRIES_PER_MESSAGE)){
+                fanoutFull = true;
+                break;
+            }
+            if (!processNext() && !awaitNext()){
+                break;
+            }
+        }
 
-                JSONObject msgReceived = receivedByServer.take();
-                String category = (String) msgReceived.get("category");
+        if (!authors.isEmpty()){
+            if (fanout.hasRoom(1)){
+                clientManagement.sendSequence(authors, stateVersion);
+                authors.clear();
+            } else {
+                fanoutFull = true;
+            }
+        }
 
-                switch (category) {
+        if (receivedByServer.isEmpty()){
+            dropLogged.set(false);
+        }
 
-                    // Normal chat message
-                    case "chat": {
-                        String msgSender = (String) msgReceived.get("username");
-                        clientManagement.broadcastMessage(msgSender, new Chat(msgReceived));
-                        break;
-                    }
-                    // Normal draw object
-                    case "draw": {
+        // Written on the checkpoint thread from a view of the state, this board goes on meanwhile
+        if (eventLog != null && eventLog.isCheckpointDue()){
+            eventLog.checkpoint(currentState.view());
+        }
 
-                        String msg = msgReceived.toString();
+        // Decoded drawings taken, the decode stage may have stopped for want of room
+        if (!receivedDraws.isEmpty() || !waitingClients.isEmpty()){
+            scheduleDecode();
+        }
 
-                        JSONParser parser = new JSONParser();
-                        JSONObject forward = (JSONObject) parser.parse(msg);
-                        JSONObject state = (JSONObject) parser.parse(msg);
+        scheduled.set(false);
+        // Messages added while running, or left over from a full batch, or the sequence number not sent yet.
+        // If the Fanout was full, only once it has room: checked again here in case its call to schedule
+        // came before scheduled was cleared.
+        if ((!isEmpty() || !authors.isEmpty()) && (!fanoutFull || fanout.hasRoom(FANOUT_ENTRIES_PER_MESSAGE))){
+            schedule();
+        }
+    }
 
-                        Draw drawReceived = new Draw(forward);
-                        Draw drawReceivedState = new Draw(state);
-                        drawReceivedState.setUsername(clientManagement.getManagerUsername());
-                        clientManagement.broadcastMessage((String) msgReceived.get("username"), drawReceived);
-                        currentState.add(drawReceivedState);
-                        break;
-                    }
-                    // Message from manager to server to user
-                    case "approve": {
-                        String joiningUser = (String) msgReceived.get("recipient");
-                        clientManagement.contactUser(joiningUser, new Chat(msgReceived));
-                        // send current state to user
-                        for (Draw draw : currentState){
-                            clientManagement.contactUser(joiningUser, draw);
-                        }
-                        clientManagement.broadcastMessage("Server", clientManagement.getUserList());
-                        break;
-                    }
+    // Decode stage: moves drawings from receivedDraws to decodedDraws while there is room, and lets
+    // the clients that found receivedDraws full read again.
+    private void decode(){
+        if (decoding.compareAndSet(false, true)){
+            decodeReceived(BATCH_SIZE);
+            decoding.set(false);
+        }
+        resumeWaitingClients();
+
+        decodeScheduled.set(false);
+        // Drawings left over, or clients that found the ring full since. Once decodedDraws is full, this
+        // warehouse schedules the decode stage again after taking some.
+        if ((!receivedDraws.isEmpty() && decodedDraws.hasRoom(1))
+                || (!waitingClients.isEmpty() && receivedDraws.hasRoom(1))){
+            scheduleDecode();
+        }
+    }
 
-                    case "deny": {
-                        String deniedUser = (String) msgReceived.get("recipient");
-                        clientManagement.contactUser(deniedUser, new Chat(msgReceived));
-                        clientManagement.removeClientFromList(deniedUser);
-                        break;
-                    }
+    // Decode up to max drawings received, while decodedDraws has room. Called while holding decoding.
+    private void decodeReceived(int max){
+        int decoded = 0;
+        while (decoded < max && decodedDraws.hasRoom(1)){
+            Received slot = receivedDraws.peek();
+            if (slot == null){
+                break;
+            }
+            String sender = slot.sender;
+            String username = slot.username;
+            byte[] draw = slot.draw;
+            JSONObject message = slot.message;
+            slot.set(null, null, null, null, null);
+            receivedDraws.release();
+            Frame frame = null;
+            if (draw != null){
+                frame = decodeDraw(sender, draw);
+                if (frame == null){
+                    continue;
+                }
+            }
+            // Only this stage claims slots of decodedDraws, so the room checked is still there
+            long sequence = decodedDraws.claim();
+            decodedDraws.get(sequence).set(null, username, null, frame, message);
+            decodedDraws.publish(sequence);
+            decoded++;
+        }
+        if (decoded > 0){
+            schedule();
+        }
+    }
 
+    // Draw object as received from sender, for the relay with its bytes. A sender of a draw object that
+    // cannot be decoded is disconnected, nothing of it is relayed: returns null.
+    private Frame decodeDraw(String sender, byte[] payload){
+        try {
+            return Frame.relay(WireCodec.decodeDraw(payload, parser), payload);
+        } catch (IOException | ParseException | RuntimeException e){
+            e.printStackTrace();
+            serverGUI.logMessage("(Information) Malformed draw object from " + sender + ", disconnecting");
+            clientManagement.disconnectClient(sender);
+            return null;
+        }
+    }
 
-                    // Message from user to server
-                    case "quit": {
-                        // process differently for manager and user
-                        String userAccess = (String) msgReceived.get("userAccess");
-                        String username = (String) msgReceived.get("username");
-
-                        // leave request from manager. shut this party down
-                        if (userAccess.equals("manager")){
-                            clientManagement.removeClientFromList(username);
-                            clientManagement.broadcastMessage("Server", clientManagement.getEmptyUserListDisplay());
-                            clientManagement.broadcastMessage("Server", new Chat(msgReceived));
-                            clientManagement.resetClientManagement();
-                            currentState.clear();
-
-                            // leave request from user
-                        } else {
-                            clientManagement.removeClientFromList(username);
-                            clientManagement.broadcastMessage("Server", clientManagement.getUserList());
-                            clientManagement.broadcastMessage("Server", new Chat(msgReceived));
-                        }
-
-                        break;
-                    }
+    private void scheduleDecode(){
+        if (decodeScheduled.compareAndSet(false, true)){
+            executor.execute(decoder);
+        }
+    }
+
+    // Clients that found the ring full read again once it has room. Any of them that finds it full again waits again.
+    private void resumeWaitingClients(){
+        if (!receivedDraws.hasRoom(1)){
+            return;
+        }
+        ClientConnection client;
+        while ((client = waitingClients.poll()) != null){
+            client.resumeReading();
+        }
+    }
 
+    // Process the next message, control lane first. Returns false if none is waiting.
+    private boolean processNext(){
+        Received received = receivedByServer.poll();
+        if (received != null){
+            if (isChat(received.message)){
+                chatsWaiting.decrementAndGet();
+            }
+            process(received.message);
+            return true;
+        }
+        Received slot = decodedDraws.peek();
+        if (slot == null){
+            return false;
+        }
+        String username = slot.username;
+        Frame frame = slot.frame;
+        JSONObject message = slot.message;
+        slot.set(null, null, null, null, null);
+        decodedDraws.release();
+        if (frame != null){
+            processDecodedDraw(username, frame);
+        } else {
+            process(message);
+        }
+        return true;
+    }
+
+    // Wait for the next message as set by waitStrategy. Returns false if none arrived in time.
+    private boolean awaitNext(){
+        if (!waitStrategy.equals(YIELD) && !waitStrategy.equals(SPIN)){
+            return false;
+        }
+        long start = System.nanoTime();
+        while (isEmpty()){
+            if (System.nanoTime() - start >= waitNanos){
+                return false;
+            }
+            if (waitStrategy.equals(SPIN)){
+                Thread.onSpinWait();
+            } else {
+                Thread.yield();
+            }
+        }
+        return true;
+    }
 
-                    // Message from manager to server and to specific user
-                    case "kick": {
-                        String userKicked = (String) msgReceived.get("recipient");
+    private boolean isEmpty(){
+        return receivedByServer.isEmpty() && decodedDraws.isEmpty();
+    }
 
-                        if (clientManagement.checkUsername(userKicked) &
-                                !clientManagement.checkIfManager(userKicked) &
-                                !userKicked.equals("Server")){
-                            clientManagement.broadcastMessage("Server", new Chat(msgReceived));
-                            clientManagement.removeClientFromList(userKicked);
-                            clientManagement.broadcastMessage("Server", clientManagement.getUserList());
-                        } else {
-                            Chat kickDenied = new Chat("Server", "bot",
-                                    "chat", "Unable to kick @" + userKicked, "manager");
-                            clientManagement.contactManager(kickDenied);
-                        }
+    private void process(JSONObject message){
+        // Messages come from the clients: one with a field missing or of another type fails here, eg. with a
+        // NullPointerException or ClassCastException, and is skipped
+        try {
+            processMessage(message);
+        } catch (IOException | ParseException | RuntimeException e){
+            e.printStackTrace();
+        }
+    }
 
-                        break;
-                    }
+    // Outside process, so an exception there, eg. from the log, must not leave run with scheduled set
+    private void processDecodedDraw(String username, Frame frame){
+        try {
+            processDraw(username, frame);
+        } catch (RuntimeException e){
+            e.printStackTrace();
+        }
+    }
 
+    private void schedule(){
+        if (scheduled.compareAndSet(false, true)){
+            executor.execute(this);
+        }
+    }
 
-                    case "new": {
-                        String userAccess = (String) msgReceived.get("userAccess");
-                        String username = (String) msgReceived.get("username");
+    private void processMessage(JSONObject msgReceived) throws IOException, ParseException {
 
-                        if (userAccess.equals("manager")){
-                            currentState.clear();
-                            clientManagement.broadcastMessage(username, new Chat(msgReceived));
-                        }
+        String category = (String) msgReceived.get("category");
 
-                        break;
+        switch (category) {
 
-                    }
+            // Normal chat message
+            case "chat": {
+                String msgSender = (String) msgReceived.get("username");
+                clientManagement.broadcastMessage(msgSender, new Chat(msgReceived));
+                break;
+            }
+            // Draw object whose username could not be read without decoding it
+            case "draw": {
+                Draw draw = JsonDrawCodec.decode(msgReceived);
+                processDraw(draw.username, Frame.encode(draw));
+                break;
+            }
+            // Pen stroke being drawn is only relayed, the finished stroke is kept like any draw object
+            case "stroke": {
+                Stroke stroke = new Stroke(msgReceived);
+                if (Stroke.END.equals(stroke.phase)){
+                    processDraw(stroke.username, Frame.encode(stroke.toDraw()));
+                } else if (clientManagement.checkUsername(stroke.username)){
+                    // Not relayed once the user has left or was kicked, which is processed first
+                    clientManagement.broadcastStroke(stroke.username, Frame.encode(stroke));
+                }
+                break;
+            }
+            // Message from manager to server to user
+            case "approve": {
+                String joiningUser = (String) msgReceived.get("recipient");
+                clientManagement.contactUser(joiningUser, new Chat(msgReceived));
+                // Broadcasts reach the user from here on, after the current state
+                clientManagement.approveClient(joiningUser);
+                sendSession(joiningUser);
+                sendCurrentState(joiningUser);
+                sendSequence(joiningUser);
+                clientManagement.broadcastMessage("Server", clientManagement.getUserList());
+                break;
+            }
 
-                    default:
-                        break;
+            // Client of a user on the board connected again with its session token (see Server)
+            case "resume": {
+                String username = (String) msgReceived.get("username");
+                Long sequence = clientManagement.takeResume(username);
+                if (sequence == null){
+                    break;
+                }
+                // Broadcasts reach the user from here on, after the changes it missed
+                clientManagement.approveClient(username);
+                sendSession(username);
+                sendMissed(username, sequence);
+                sendSequence(username);
+                clientManagement.contactUser(username, clientManagement.getUserList());
+                break;
+            }
 
+            // Board was just created, its manager gets the drawings restored from the log (see Server)
+            case "restore": {
+                String username = (String) msgReceived.get("username");
+                if (clientManagement.checkIfManager(username) && currentState.size() > 0){
+                    sendCurrentState(username);
+                    sendSequence(username);
                 }
+                break;
+            }
 
+            case "deny": {
+                String deniedUser = (String) msgReceived.get("recipient");
+                clientManagement.contactUser(deniedUser, new Chat(msgReceived));
+                clientManagement.removeClientFromList(deniedUser);
+                break;
             }
-        } catch (InterruptedException | IOException | ParseException e){
-            e.printStackTrace();
+
+
+            // Message from user to server
+            case "quit": {
+                // process differently for manager and user
+                String userAccess = (String) msgReceived.get("userAccess");
+                String username = (String) msgReceived.get("username");
+
+                // leave request from manager. shut this party down
+                if (userAccess.equals("manager")){
+                    // Drawings received before the manager left still go to the log and to the other users,
+                    // processed while the board still has its manager
+                    processRemaining();
+                    clientManagement.removeClientFromList(username);
+                    clientManagement.broadcastMessage("Server", clientManagement.getEmptyUserListDisplay());
+                    clientManagement.broadcastMessage("Server", new Chat(msgReceived));
+                    clientManagement.resetClientManagement();
+                    // The log keeps the state for the next manager of this board
+                    currentState.clear();
+                    snapshotBuilder.reset();
+                    stateVersion++;
+                    board.close();
+
+                    // leave request from user
+                } else {
+                    clientManagement.removeClientFromList(username);
+                    clientManagement.broadcastMessage("Server", clientManagement.getUserList());
+                    clientManagement.broadcastMessage("Server", new Chat(msgReceived));
+                }
+
+                break;
+            }
+
+
+            // Message from manager to server and to specific user
+            case "kick": {
+                String userKicked = (String) msgReceived.get("recipient");
+
+                if (clientManagement.checkUsername(userKicked) &
+                        !clientManagement.checkIfManager(userKicked) &
+                        !userKicked.equals("Server")){
+                    clientManagement.broadcastMessage("Server", new Chat(msgReceived));
+                    clientManagement.removeClientFromList(userKicked);
+                    clientManagement.broadcastMessage("Server", clientManagement.getUserList());
+                } else {
+                    Chat kickDenied = new Chat("Server", "bot",
+                            "chat", "Unable to kick @" + userKicked, "manager");
+                    clientManagement.contactManager(kickDenied);
+                }
+
+                break;
+            }
+
+
+            case "new": {
+                String userAccess = (String) msgReceived.get("userAccess");
+                String username = (String) msgReceived.get("username");
+
+                if (userAccess.equals("manager")){
+                    if (eventLog != null){
+                        eventLog.appendNew();
+                    }
+                    currentState.clear();
+                    snapshotBuilder.reset();
+                    stateVersion++;
+                    authors.add(username);
+                    clientManagement.broadcastFrame(username, Frame.encode(new Chat(msgReceived)).withSequence(stateVersion));
+                }
+
+                break;
+
+            }
+
+            default:
+                break;
+
         }
+    }
 
+    // Process every message waiting, decoding the drawings here. Used once the board is closing.
+    private void processRemaining(){
+        while (true){
+            while (processNext()){
+                // Board is closing, nothing else to do
+            }
+            if (receivedDraws.isEmpty() && decodedDraws.isEmpty()){
+                return;
+            }
+            // Unless the decode stage is running, it then publishes what it decodes soon
+            if (decoding.compareAndSet(false, true)){
+                decodeReceived(BATCH_SIZE);
+                decoding.set(false);
+            } else {
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    // Relay the draw object to everyone but the user it is from and keep it in the board state
+    private void processDraw(String username, Frame frame){
+        Draw drawReceived = (Draw) frame.getMessage();
+        // Drawings in the board state belong to the manager
+        Draw stateDraw = drawReceived.withUsername(clientManagement.getManagerUsername());
+        if (eventLog != null){
+            eventLog.appendDraw(stateDraw);
+        }
+        currentState.add(stateDraw);
+        stateVersion++;
+        authors.add(username);
+        clientManagement.broadcastFrame(username, frame.withSequence(stateVersion));
+    }
+
+    // Send current state to a user who just joined. Messages processed later are queued after it.
+    private void sendCurrentState(String username) throws IOException {
+        if (clientManagement.supportsSnapshots(username)){
+            if (snapshot == null || snapshotVersion != stateVersion){
+                snapshot = snapshotBuilder.build(currentState, stateVersion);
+                snapshotVersion = stateVersion;
+            }
+            for (Snapshot part : snapshot){
+                clientManagement.contactUser(username, part);
+            }
+        } else {
+            for (Draw draw : currentState){
+                clientManagement.contactUser(username, draw);
+            }
+        }
+    }
+
+    // Changes after the given sequence number, for a user resuming its session. A user who missed
+    // the board being cleared is told to clear it and gets the whole state.
+    private void sendMissed(String username, long sequence) throws IOException {
+        long missed = stateVersion - sequence;
+        if (missed >= 0 && missed <= currentState.size()){
+            List<Draw> draws = currentState.subList(currentState.size() - (int) missed, currentState.size());
+            if (clientManagement.supportsSnapshots(username)){
+                for (Snapshot part : Snapshot.create(draws, stateVersion, snapshotPartSize)){
+                    clientManagement.contactUser(username, part);
+                }
+            } else {
+                long drawSequence = sequence;
+                for (Draw draw : draws){
+                    clientManagement.contactUser(username, Frame.encode(draw).withSequence(++drawSequence));
+                }
+            }
+        } else {
+            clientManagement.contactUser(username, new Chat("Server", "bot", "new",
+                    "Whiteboard was cleared while you were disconnected.", "all"));
+            sendCurrentState(username);
+        }
     }
 
+    // Session token for a user whose client can resume
+    private void sendSession(String username){
+        Chat session = clientManagement.createSession(username);
+        if (session != null){
+            clientManagement.contactUser(username, session);
+        }
+    }
+
+    private void sendSequence(String username){
+        if (clientManagement.hasSession(username)){
+            clientManagement.contactUser(username, clientManagement.getSequence(stateVersion));
+        }
+    }
+
+    // Control message of the server itself, eg. the quit of a lost connection
     public void addMsgReceived(JSONObject message){
-        receivedByServer.add(message);
+        add(null, null, null, message, LaneQueue.CONTROL, null);
+    }
+
+    // Message from client. Returns false if it is a drawing and the ring is full: it is not added,
+    // and client.resumeReading() is called once the ring has room again.
+    public boolean addMsgReceived(JSONObject message, ClientConnection client){
+        return add(null, null, null, message, LaneQueue.laneOf((String) message.get("category")), client);
+    }
+
+    // Draw object payload from the client of sender, with the username read from it. Not decoded yet.
+    // Returns false if the ring is full, as addMsgReceived.
+    public boolean addDrawReceived(String sender, String username, byte[] draw, ClientConnection client){
+        return add(sender, username, draw, null, LaneQueue.BULK, client);
+    }
+
+    // Chat beyond chatCapacity is dropped, logged once until the board catches up. Other control messages are never
+    // dropped: they are few, and most are sent by the server itself. Drawings wait for space in the ring.
+    private boolean add(String sender, String username, byte[] draw, JSONObject message, String lane,
+                        ClientConnection client){
+        if (lane.equals(LaneQueue.BULK)){
+            long sequence = receivedDraws.claim();
+            if (sequence < 0){
+                // Board is behind, the client waits until it has caught up (see decode)
+                waitingClients.add(client);
+                scheduleDecode();
+                return false;
+            }
+            receivedDraws.get(sequence).set(sender, username, draw, null, message);
+            receivedDraws.publish(sequence);
+            scheduleDecode();
+            return true;
+        }
+        boolean chat = isChat(message);
+        if (chat && chatsWaiting.incrementAndGet() > chatCapacity){
+            chatsWaiting.decrementAndGet();
+            if (dropLogged.compareAndSet(false, true)){
+                serverGUI.logMessage("(Information) Board \"" + board.getId() + "\" is behind, chat messages are dropped");
+            }
+        } else {
+            receivedByServer.offer(new Received(message), lane);
+            schedule();
+        }
+        return true;
+    }
+
+    private static boolean isChat(JSONObject message){
+        return message != null && "chat".equals(message.get("category"));
     }
 
 }
@@ -0,0 +1,326 @@
+package server;
+
+import message.Compression;
+import message.Connection;
+import message.Frame;
+import message.Framing;
+import message.WireCodec;
+import message.WireFormat;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/**
+ *
+ * ClientConnection backed by a non-blocking channel served by a NioWorker.
+ * Frames use the framing and compression agreed in the connect handshake (see Framing and Compression).
+ *
+ * A frame the board has no room for is kept, with the frames after it, and the channel is no longer
+ * read until the board has room again. Only this client is slowed down, the NioWorker goes on with the others.
+ *
+ * @author liching
+ *
+ */
+public class NioClientConnection implements ClientConnection {
+
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    private Server server;
+
+    private ServerGUI serverGUI;
+
+    private NioWorker worker;
+
+    private SocketChannel channel;
+
+    private SelectionKey key;
+
+    private ByteBuffer readBuffer;
+
+    private Framing framing;
+
+    private int maxFrameSize;
+
+    private Compression compression;
+
+    // Frames waiting for the channel to become writable
+    private OutboundQueue outboundQueue;
+
+    private volatile WireFormat format = WireFormat.LEGACY;
+
+    // Frame partially written to the channel, as headers and payload slices
+    private ByteBuffer[] pendingWrite;
+
+    private final Object writeLock = new Object();
+    private boolean writeRequested;
+    private boolean closing;
+    // Set while frames wait for the board, the channel is not read meanwhile
+    private volatile boolean readPaused;
+
+    // Frames received while the board had no room for them, in order. Used by the NioWorker thread only.
+    private ArrayDeque<byte[]> pendingFrames;
+
+    private JSONParser parser;
+
+    // Set once the connection request has been received
+    private volatile Connection connection;
+    private boolean connectRequestReceived;
+
+    private volatile boolean disconnected;
+
+    private volatile long lastReceived;
+
+    public NioClientConnection(Server server, ServerGUI serverGUI, ServerConfig config, NioWorker worker,
+                               SocketChannel channel, SelectionKey key){
+        this.server = server;
+        this.serverGUI = serverGUI;
+        this.worker = worker;
+        this.channel = channel;
+        this.key = key;
+        this.readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        this.framing = new Framing(config.maxMessageSize);
+        this.maxFrameSize = config.maxFrameSize;
+        this.compression = new Compression(config.maxMessageSize);
+        this.outboundQueue = new OutboundQueue(config);
+        this.parser = new JSONParser();
+        this.pendingFrames = new ArrayDeque<>();
+        this.lastReceived = System.currentTimeMillis();
+    }
+
+    /*
+     * Called by the NioWorker thread
+     */
+    void handleRead(){
+        try {
+            int read = channel.read(readBuffer);
+            if (read < 0){
+                handleDisconnect();
+                return;
+            }
+
+            readBuffer.flip();
+            framing.feed(readBuffer, this::handleFrame);
+            readBuffer.clear();
+
+        } catch (IOException e){
+            handleDisconnect();
+        } catch (RuntimeException e){
+            // Message that could not be processed, only this client is disconnected
+            e.printStackTrace();
+            readBuffer.clear();
+            handleDisconnect();
+        }
+    }
+
+    private void handleFrame(byte[] payload) throws IOException {
+        if (disconnected){
+            return;
+        }
+        lastReceived = System.currentTimeMillis();
+
+        if (connectRequestReceived && format.isCompressed()){
+            payload = compression.decompress(payload);
+        }
+
+        try {
+            if (!connectRequestReceived){
+                JSONObject msgReceived = WireCodec.decode(payload, parser);
+                serverGUI.logMessage("(Received) " + msgReceived);
+                connectRequestReceived = true;
+                connection = server.handleConnectRequest(this, msgReceived);
+                server.handshakeComplete(this);
+                // Frames after the connection request use the agreed framing
+                framing.setFraming(format.framing);
+            } else if (!pendingFrames.isEmpty() || !server.handleClientMessage(connection, this, payload, parser)){
+                // Board has no room for it, the frames after it wait too
+                pendingFrames.add(payload);
+                setReadPaused(true);
+            }
+        } catch (ParseException e){
+            throw new IOException(e);
+        }
+    }
+
+    // Hand the frames kept to the board, and read again once all of them are taken
+    private void handlePendingFrames(){
+        if (disconnected){
+            return;
+        }
+        try {
+            while (!pendingFrames.isEmpty()){
+                if (!server.handleClientMessage(connection, this, pendingFrames.peek(), parser)){
+                    return;
+                }
+                pendingFrames.poll();
+            }
+            setReadPaused(false);
+        } catch (IOException e){
+            handleDisconnect();
+        } catch (ParseException | RuntimeException e){
+            e.printStackTrace();
+            handleDisconnect();
+        }
+    }
+
+    private void setReadPaused(boolean paused){
+        synchronized (writeLock){
+            readPaused = paused;
+            if (key.isValid()){
+                key.interestOps(interestOps());
+            }
+        }
+    }
+
+    // Operations the NioWorker selects for this channel, called with writeLock held
+    private int interestOps(){
+        return (readPaused ? 0 : SelectionKey.OP_READ) | (writeRequested ? SelectionKey.OP_WRITE : 0);
+    }
+
+    // Drain the outbound queue as far as the channel accepts
+    void handleWrite(){
+        try {
+            synchronized (writeLock){
+                while (true){
+                    if (pendingWrite == null){
+                        OutboundQueue.Entry entry = outboundQueue.poll();
+                        if (entry == null){
+                            break;
+                        }
+                        byte[] payload = entry.frame.getPayload();
+                        if (entry.format.isCompressed()){
+                            payload = compression.compress(payload);
+                        }
+                        pendingWrite = Framing.toBuffers(payload, entry.format.framing, maxFrameSize);
+                    }
+                    channel.write(pendingWrite);
+                    if (pendingWrite[pendingWrite.length - 1].hasRemaining()){
+                        // Socket buffer is full, wait for the next OP_WRITE
+                        return;
+                    }
+                    pendingWrite = null;
+                }
+
+                writeRequested = false;
+                if (closing){
+                    closeChannel();
+                } else if (key.isValid()){
+                    key.interestOps(interestOps());
+                }
+            }
+        } catch (IOException e){
+            handleDisconnect();
+        }
+    }
+
+    void handleDisconnect(){
+        synchronized (writeLock){
+            if (disconnected){
+                return;
+            }
+            closeChannel();
+        }
+        server.handleClientDisconnect(connection, this);
+    }
+
+    private void closeChannel(){
+        outboundQueue.close();
+        outboundQueue.clear();
+        disconnected = true;
+        key.cancel();
+        if (compression.isUsed()){
+            serverGUI.logMessage("(Information) Compression for client " + channel.socket().getRemoteSocketAddress() + ": " + compression);
+        }
+        compression.end();
+        try {
+            channel.close();
+        } catch (IOException e){
+            e.printStackTrace();
+        }
+    }
+
+    /*
+     * ClientConnection methods, may be called from any thread
+     */
+    @Override
+    public void send(Frame frame) {
+        WireFormat currentFormat = format;
+        Frame encoded = frame.forCodec(currentFormat.codec);
+        // Messages from clients are checked when they arrive (see Server), so this is not expected
+        if (!Framing.fits(encoded.getPayload(), currentFormat.framing)){
+            serverGUI.logMessage("(Information) Message too long for client " + channel.socket().getRemoteSocketAddress() + ", disconnecting");
+            handleDisconnect();
+            return;
+        }
+        if (!outboundQueue.offer(encoded, currentFormat)){
+            serverGUI.logMessage("(Information) Disconnecting slow client " + channel.socket().getRemoteSocketAddress());
+            handleDisconnect();
+            return;
+        }
+        requestWrite();
+    }
+
+    // Ask the NioWorker to write once the channel is writable
+    private void requestWrite(){
+        synchronized (writeLock){
+            if (writeRequested || !key.isValid()){
+                return;
+            }
+            writeRequested = true;
+            key.interestOps(interestOps());
+        }
+        key.selector().wakeup();
+    }
+
+    @Override
+    public void setWireFormat(WireFormat format) {
+        this.format = format;
+    }
+
+    @Override
+    public WireFormat getWireFormat() {
+        return format;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // NioWorker closes the channel once the queue is drained
+        outboundQueue.close();
+        synchronized (writeLock){
+            closing = true;
+        }
+        requestWrite();
+    }
+
+    @Override
+    public void disconnect() {
+        handleDisconnect();
+    }
+
+    @Override
+    public void resumeReading() {
+        worker.execute(this::handlePendingFrames);
+    }
+
+    @Override
+    public long getLastReceived() {
+        // Pings are not read while waiting for the board, the client is not idle
+        return readPaused ? System.currentTimeMillis() : lastReceived;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return disconnected;
+    }
+
+    @Override
+    public String toString() {
+        return "Client " + channel.socket().getRemoteSocketAddress();
+    }
+
+}
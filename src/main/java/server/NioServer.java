@@ -0,0 +1,84 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ *
+ * NioServer to accept connections and hand them to a fixed set of NioWorker
+ * selector threads, so a few threads can serve many clients.
+ * Uses the same protocol and MessageWarehouse as the blocking mode.
+ *
+ * @author liching
+ *
+ */
+public class NioServer {
+
+    // Identifies the user number connected
+    private static int counter = 0;
+
+    private Server server;
+
+    private ServerGUI serverGUI;
+
+    private int port;
+
+    private ServerConfig config;
+
+    private NioWorker[] workers;
+
+    public NioServer(Server server, ServerGUI serverGUI, int port, ServerConfig config){
+        this.server = server;
+        this.serverGUI = serverGUI;
+        this.port = port;
+        this.config = config;
+    }
+
+    public void run(){
+
+        try(ServerSocketChannel serverChannel = ServerSocketChannel.open()){
+
+            serverChannel.bind(new InetSocketAddress(port));
+
+            workers = new NioWorker[config.ioThreads];
+            for (int i = 0; i < workers.length; i++){
+                workers[i] = new NioWorker(server, serverGUI, config);
+                workers[i].setName("nio-worker-" + i);
+                workers[i].start();
+            }
+
+            this.serverGUI.logMessage("(Information) Server thread running (port: " + port + ", nio with "
+                    + workers.length + " I/O threads). Waiting for client connection..");
+
+            // Wait for connections. Accepting stays blocking, the clients are served non-blocking.
+            while(true){
+                SocketChannel client = serverChannel.accept();
+                counter++;
+                serverGUI.logMessage("(Information) Connection request " + counter + ".");
+
+                configureChannel(client);
+                workers[counter % workers.length].register(client);
+            }
+
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+    }
+
+    private void configureChannel(SocketChannel client) throws IOException {
+        client.configureBlocking(false);
+        client.setOption(StandardSocketOptions.TCP_NODELAY, config.tcpNoDelay);
+        client.setOption(StandardSocketOptions.SO_KEEPALIVE, config.tcpKeepAlive);
+        if (config.sendBufferSize > 0){
+            client.setOption(StandardSocketOptions.SO_SNDBUF, config.sendBufferSize);
+        }
+        if (config.receiveBufferSize > 0){
+            client.setOption(StandardSocketOptions.SO_RCVBUF, config.receiveBufferSize);
+        }
+    }
+
+}
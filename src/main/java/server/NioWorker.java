@@ -0,0 +1,122 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ *
+ * NioWorker as one selector thread of the NioServer.
+ * Reads and writes every channel registered with it without blocking.
+ *
+ * @author liching
+ *
+ */
+public class NioWorker extends Thread {
+
+    private Server server;
+
+    private ServerGUI serverGUI;
+
+    private ServerConfig config;
+
+    private Selector selector;
+
+    // Channels accepted by NioServer waiting to be registered on this selector
+    private ConcurrentLinkedQueue<SocketChannel> pendingChannels;
+
+    // Work for this thread from other threads, eg. a board that has room again for a connection's messages
+    private ConcurrentLinkedQueue<Runnable> pendingTasks;
+
+    public NioWorker(Server server, ServerGUI serverGUI, ServerConfig config) throws IOException {
+        this.server = server;
+        this.serverGUI = serverGUI;
+        this.config = config;
+        this.selector = Selector.open();
+        this.pendingChannels = new ConcurrentLinkedQueue<>();
+        this.pendingTasks = new ConcurrentLinkedQueue<>();
+    }
+
+    public void register(SocketChannel channel){
+        pendingChannels.add(channel);
+        selector.wakeup();
+    }
+
+    // Run task on this selector thread
+    void execute(Runnable task){
+        pendingTasks.add(task);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run(){
+        while (!interrupted()){
+            try {
+                selector.select();
+                registerPendingChannels();
+                runPendingTasks();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()){
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    NioClientConnection connection = (NioClientConnection) key.attachment();
+                    // Only IOException is caught around the loop. Anything else would end this thread and leave
+                    // all its connections unread, so only the connection it came from is dropped.
+                    try {
+                        handleKey(key, connection);
+                    } catch (RuntimeException e){
+                        e.printStackTrace();
+                        connection.handleDisconnect();
+                    }
+                }
+            } catch (IOException e){
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void handleKey(SelectionKey key, NioClientConnection connection){
+        if (!key.isValid()){
+            connection.handleDisconnect();
+            return;
+        }
+        if (key.isReadable()){
+            connection.handleRead();
+        }
+        if (key.isValid() && key.isWritable()){
+            connection.handleWrite();
+        }
+    }
+
+    private void runPendingTasks(){
+        Runnable task;
+        while ((task = pendingTasks.poll()) != null){
+            task.run();
+        }
+    }
+
+    private void registerPendingChannels(){
+        SocketChannel channel;
+        while ((channel = pendingChannels.poll()) != null){
+            try {
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                NioClientConnection connection = new NioClientConnection(server, serverGUI, config, this, channel, key);
+                key.attach(connection);
+                server.watch(connection);
+            } catch (IOException e){
+                e.printStackTrace();
+                try {
+                    channel.close();
+                } catch (IOException closeException){
+                    closeException.printStackTrace();
+                }
+            }
+        }
+    }
+
+}
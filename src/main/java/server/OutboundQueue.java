@@ -0,0 +1,193 @@
+package server;
+
+import message.Frame;
+import message.LaneQueue;
+import message.WireFormat;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ *
+ * OutboundQueue to hold frames waiting to be written to one client.
+ * The queue is bounded and applies the configured slow consumer policy:
+ * 1. drop: discard new messages while the queue is full
+ * 2. coalesce: replace a pending message of the same kind (eg. user list), otherwise drop
+ * 3. disconnect: disconnect the client when the queue is full or lags too far behind
+ *
+ * Only chat, user lists, pings and pen strokes being drawn are ever dropped. A change of the board
+ * (eg. a draw object or "new") that does not fit any more disconnects the client with every policy,
+ * as its board would differ from everyone else's for good. A client that can resume (see Connection)
+ * then gets back the changes it missed.
+ *
+ * Frames go in two lanes like LaneQueue, each with its own bound: control frames (eg. kick, user list)
+ * are written before any drawings queued for the client.
+ *
+ * @author liching
+ *
+ */
+public class OutboundQueue {
+
+    public static final String DROP = "drop";
+    public static final String COALESCE = "coalesce";
+    public static final String DISCONNECT = "disconnect";
+
+    static class Entry {
+        Frame frame;
+        // Wire format of the connection when the frame was queued
+        WireFormat format;
+        long enqueuedAt;
+
+        private Entry(Frame frame, WireFormat format, long enqueuedAt){
+            this.frame = frame;
+            this.format = format;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+
+    private ArrayDeque<Entry> control;
+    private ArrayDeque<Entry> bulk;
+
+    private int controlCapacity;
+    private int capacity;
+
+    private String policy;
+
+    private long maxLagMillis;
+
+    private long controlDropped;
+    private long dropped;
+
+    private boolean closed;
+
+    public OutboundQueue(ServerConfig config){
+        this.control = new ArrayDeque<>();
+        this.bulk = new ArrayDeque<>();
+        this.controlCapacity = config.controlLaneCapacity;
+        this.capacity = config.outboundQueueCapacity;
+        this.policy = config.slowConsumerPolicy;
+        this.maxLagMillis = config.maxLagMillis;
+    }
+
+    // Returns false if the client is too slow and should be disconnected
+    public synchronized boolean offer(Frame frame, WireFormat format){
+
+        if (closed){
+            return true;
+        }
+
+        long now = System.currentTimeMillis();
+        boolean isControl = LaneQueue.CONTROL.equals(LaneQueue.laneOf(frame.getCategory()));
+        ArrayDeque<Entry> entries = isControl ? control : bulk;
+        int laneCapacity = isControl ? controlCapacity : capacity;
+
+        if (policy.equals(DISCONNECT)){
+            if (entries.size() >= laneCapacity || lagsBehind(control, now) || lagsBehind(bulk, now)){
+                return false;
+            }
+        }
+
+        if (policy.equals(COALESCE) && replacePending(entries, frame, now)){
+            return true;
+        }
+
+        if (entries.size() >= laneCapacity){
+            if (!isDroppable(frame)){
+                return false;
+            }
+            if (isControl){
+                controlDropped++;
+            } else {
+                dropped++;
+            }
+            return true;
+        }
+
+        entries.add(new Entry(frame, format, now));
+        notifyAll();
+        return true;
+    }
+
+    private static boolean isDroppable(Frame frame){
+        switch (frame.getCategory()){
+            case "chat":
+            case "userlist":
+            case "ping":
+            case "stroke":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private boolean lagsBehind(ArrayDeque<Entry> entries, long now){
+        Entry oldest = entries.peek();
+        return oldest != null && now - oldest.enqueuedAt > maxLagMillis;
+    }
+
+    // Only the latest user list matters, so an older pending one can be replaced
+    private boolean replacePending(ArrayDeque<Entry> entries, Frame frame, long now){
+        String key = coalesceKey(frame);
+        if (key == null){
+            return false;
+        }
+        Iterator<Entry> iterator = entries.iterator();
+        while (iterator.hasNext()){
+            Entry entry = iterator.next();
+            if (key.equals(coalesceKey(entry.frame))){
+                entry.frame = frame;
+                entry.enqueuedAt = now;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String coalesceKey(Frame frame){
+        if ("userlist".equals(frame.getCategory())){
+            return "userlist";
+        }
+        return null;
+    }
+
+    // Next entry without waiting, null if nothing is pending
+    public synchronized Entry poll(){
+        return !control.isEmpty() ? control.poll() : bulk.poll();
+    }
+
+    // Next entry, waiting until one is available. Returns null once closed and drained.
+    public synchronized Entry take() throws InterruptedException {
+        while (isEmpty()){
+            if (closed){
+                return null;
+            }
+            wait();
+        }
+        return poll();
+    }
+
+    public synchronized boolean isEmpty(){
+        return control.isEmpty() && bulk.isEmpty();
+    }
+
+    // Stop accepting messages. Pending messages can still be taken.
+    public synchronized void close(){
+        closed = true;
+        notifyAll();
+    }
+
+    public synchronized void clear(){
+        control.clear();
+        bulk.clear();
+    }
+
+    public synchronized long getDropped(){
+        return controlDropped + dropped;
+    }
+
+    // Messages dropped in each lane
+    public synchronized String getDroppedByLane(){
+        return controlDropped + " control, " + dropped + " bulk";
+    }
+
+}
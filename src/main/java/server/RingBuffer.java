@@ -0,0 +1,131 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Supplier;
+
+/**
+ *
+ * RingBuffer to pass messages from many producers (the client connections) to one consumer
+ * (a board's MessageWarehouse) without a lock or an allocation per message.
+ *
+ * The slots are created once and reused. A producer claims the next sequence number with a
+ * compare-and-set, fills the slot of that sequence and publishes it. The consumer takes the
+ * slots strictly in sequence order, so it sees the messages in the order they were claimed,
+ * and releases each slot once it has read it:
+ *
+ * long sequence = ring.claim();          // -1 if the ring is full, try again once the consumer caught up
+ * ring.get(sequence).set(...);
+ * ring.publish(sequence);
+ *
+ * Counts what went through it like LaneQueue: messages added, how often a producer found it full,
+ * the most queued at once and how long they waited. Counters other than full are kept by the consumer.
+ *
+ * @author liching
+ *
+ */
+class RingBuffer<T> {
+
+    private final Object[] slots;
+    private final int mask;
+
+    // Highest sequence claimed by a producer, and highest sequence released by the consumer
+    private final AtomicLong claimed;
+    private final AtomicLong released;
+
+    // Sequence published in each slot, and when
+    private final AtomicLongArray published;
+    private final long[] publishedAt;
+
+    private final AtomicLong full;
+    private long added;
+    private long maxDepth;
+    private long totalWaitNanos;
+    private long maxWaitNanos;
+
+    // Size is rounded up to a power of two
+    RingBuffer(int size, Supplier<T> slotFactory){
+        int capacity = Integer.highestOneBit(Math.max(2, size - 1)) << 1;
+        this.slots = new Object[capacity];
+        this.mask = capacity - 1;
+        this.published = new AtomicLongArray(capacity);
+        this.publishedAt = new long[capacity];
+        for (int i = 0; i < capacity; i++){
+            slots[i] = slotFactory.get();
+            published.set(i, -1);
+        }
+        this.claimed = new AtomicLong(-1);
+        this.released = new AtomicLong(-1);
+        this.full = new AtomicLong();
+    }
+
+    /*
+     * Producer side, any thread
+     */
+    // Next sequence for the caller to fill and publish, -1 if the ring is full (counted)
+    long claim(){
+        while (true){
+            long current = claimed.get();
+            long next = current + 1;
+            if (next - slots.length > released.get()){
+                full.incrementAndGet();
+                return -1;
+            }
+            if (claimed.compareAndSet(current, next)){
+                return next;
+            }
+        }
+    }
+
+    // Whether count more sequences can be claimed now. Another producer may claim them first.
+    boolean hasRoom(int count){
+        return claimed.get() + count - slots.length <= released.get();
+    }
+
+    @SuppressWarnings("unchecked")
+    T get(long sequence){
+        return (T) slots[(int) sequence & mask];
+    }
+
+    // Make the filled slot of a claimed sequence visible to the consumer
+    void publish(long sequence){
+        int index = (int) sequence & mask;
+        publishedAt[index] = System.nanoTime();
+        published.set(index, sequence);
+    }
+
+    /*
+     * Consumer side, one thread at a time
+     */
+    // Slot of the next sequence, null if it is not published yet. Call release once it has been read.
+    T peek(){
+        long next = released.get() + 1;
+        int index = (int) next & mask;
+        if (published.get(index) != next){
+            return null;
+        }
+        long wait = System.nanoTime() - publishedAt[index];
+        added++;
+        totalWaitNanos += wait;
+        maxWaitNanos = Math.max(maxWaitNanos, wait);
+        maxDepth = Math.max(maxDepth, claimed.get() - released.get());
+        return get(next);
+    }
+
+    // Give the slot returned by peek back to the producers
+    void release(){
+        released.set(released.get() + 1);
+    }
+
+    boolean isEmpty(){
+        long next = released.get() + 1;
+        return published.get((int) next & mask) != next;
+    }
+
+    String getStats(){
+        return String.format("ring %d queued (max %d of %d), %d added, full %d times, wait avg %.2f ms max %.2f ms",
+                Math.max(0, claimed.get() - released.get()), maxDepth, slots.length, added, full.get(),
+                added > 0 ? totalWaitNanos / 1e6 / added : 0.0, maxWaitNanos / 1e6);
+    }
+
+}
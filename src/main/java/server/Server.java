@@ -1,22 +1,43 @@
 package server;
 
+import common.ThreadFactories;
 import message.Chat;
+import message.Compression;
 import message.Connection;
+import message.Frame;
+import message.Snapshot;
+import message.Stroke;
+import message.Framing;
+import message.WireCodec;
+import message.WireFormat;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
 import javax.net.ServerSocketFactory;
+import java.io.BufferedInputStream;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  *
  * Server to handle and maintain connections with multiple clients.
- * Uses ClientManagement and MessageWarehouse.
+ * Hosts any number of boards (see BoardRegistry), each with its own ClientManagement and MessageWarehouse.
+ * Connections are served either by one thread per client (blocking mode)
+ * or by a small set of selector threads (nio mode), see ServerConfig.
+ *
+ * A client that can resume (see Connection) keeps its place on the board for resumeMillis after its
+ * connection is lost. It leaves with the usual quit if it has not connected again by then.
+ *
+ * Connections that stop answering are disconnected by the HeartbeatMonitor, which ends the blocked
+ * read of their reader like any lost connection.
  *
  * @author liching
  *
@@ -28,25 +49,59 @@ public class Server extends Thread {
 
     private int port;
 
-    private ClientManagement clientManagement;
+    private ServerConfig config;
 
-    private MessageWarehouse messageWarehouse;
+    private BoardRegistry boardRegistry;
 
     private ServerGUI serverGUI;
 
+    // Runs serveClient for each connection in blocking mode
+    private Executor connectionExecutor;
+
+    // Creates the writer thread of each connection in blocking mode
+    private ThreadFactory writerThreadFactory;
+
+    // Lets clients that lost their connection leave once they had the time to resume, null if they leave at once
+    private ScheduledExecutorService resumeExecutor;
+
+    // Pings clients and disconnects the ones that stopped answering, null if connections are never timed out
+    private HeartbeatMonitor heartbeatMonitor;
+
     public Server(ServerGUI serverGUI, Integer port) {
+        this(serverGUI, port, new ServerConfig());
+    }
+
+    public Server(ServerGUI serverGUI, Integer port, ServerConfig config) {
 
         this.serverGUI = serverGUI;
         this.port = port;
-        clientManagement = new ClientManagement(serverGUI);
-        messageWarehouse = new MessageWarehouse(clientManagement);
-        messageWarehouse.start();
+        this.config = config;
+        boardRegistry = new BoardRegistry(serverGUI, config);
+        connectionExecutor = ThreadFactories.newThreadPerTaskExecutor(config.threadMode, "client-");
+        writerThreadFactory = ThreadFactories.create(config.threadMode, "client-writer-");
+        if (config.resumeMillis > 0){
+            resumeExecutor = Executors.newSingleThreadScheduledExecutor(
+                    ThreadFactories.create(ThreadFactories.PLATFORM, "resume-"));
+        }
+        if (config.idleTimeoutMillis > 0){
+            heartbeatMonitor = new HeartbeatMonitor(serverGUI, config);
+            ScheduledExecutorService heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(
+                    ThreadFactories.create(ThreadFactories.PLATFORM, "heartbeat-"));
+            heartbeatExecutor.scheduleAtFixedRate(heartbeatMonitor, config.pingMillis, config.pingMillis,
+                    TimeUnit.MILLISECONDS);
+        }
 
     }
 
     @Override
     public void run(){
 
+        if (config.isNio()){
+            NioServer nioServer = new NioServer(this, serverGUI, port, config);
+            nioServer.run();
+            return;
+        }
+
         ServerSocketFactory factory = ServerSocketFactory.getDefault();
         try(ServerSocket server = factory.createServerSocket(port)){
             this.serverGUI.logMessage("(Information) Server thread running (port: " + port + "). Waiting for client connection..");
@@ -55,11 +110,11 @@ public class Server extends Thread {
             while(true){
                 Socket client = server.accept();
                 counter++;
-                System.out.println("Connection request "+counter+".");
+                serverGUI.logMessage("(Information) Connection request " + counter + ".");
+                configureSocket(client);
 
                 // Start a new thread for a connection
-                Thread t = new Thread(() -> serveClient(client));
-                t.start();
+                connectionExecutor.execute(() -> serveClient(client));
             }
 
         } catch (IOException e) {
@@ -67,132 +122,382 @@ public class Server extends Thread {
         }
     }
 
+    private void configureSocket(Socket client) throws IOException {
+        client.setTcpNoDelay(config.tcpNoDelay);
+        client.setKeepAlive(config.tcpKeepAlive);
+        if (config.sendBufferSize > 0){
+            client.setSendBufferSize(config.sendBufferSize);
+        }
+        if (config.receiveBufferSize > 0){
+            client.setReceiveBufferSize(config.receiveBufferSize);
+        }
+    }
+
     private void serveClient(Socket client) {
 
+        SocketClientConnection clientConnection = null;
+
         try(Socket clientSocket = client)
         {
 
-            DataInputStream input = new DataInputStream(clientSocket.getInputStream());
-            DataOutputStream output = new DataOutputStream(clientSocket.getOutputStream());
-
-            String inputData = input.readUTF();
-            serverGUI.logMessage("(Received) " + inputData);
+            DataInputStream input = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
+            clientConnection = new SocketClientConnection(clientSocket, serverGUI, config, writerThreadFactory);
+            watch(clientConnection);
 
             JSONParser parser = new JSONParser();
-            JSONObject msgReceived = (JSONObject) parser.parse(inputData);
-            String category = (String) msgReceived.get("category");
-            Connection connection = null;
-
-            // First message from client must be a connection request
-            if (category.equals("connect")){
-
-                connection = new Connection(msgReceived);
-                String username = connection.username;
-                String userAccess = connection.userAccess;
-
-                // Process connection request for manager
-                if (userAccess.equals("manager")){
-
-                    // Only one manager at one time
-                    if (clientManagement.getClientList().size() == 0) {
-                        clientManagement.setManager(username, clientSocket);
-                        Chat createdWhiteboard = new Chat("Server", "bot",
-                                "chat", "Whiteboard created!", "all");
-                        clientManagement.contactManager(createdWhiteboard);
-                        clientManagement.broadcastMessage("Server", clientManagement.getUserList());
-                    } else {
-                        Chat deny = new Chat("Server", "bot",
-                                "deny", "Only one manager allowed.", username);
-                        output.writeUTF(deny.toString());
-                        output.flush();
-                        serverGUI.logMessage("(Sent) " + deny);
-                        clientSocket.close();
-
-                    }
+            Framing framing = new Framing(config.maxMessageSize);
+            JSONObject msgReceived = WireCodec.decode(framing.read(input), parser);
+            clientConnection.received();
+            serverGUI.logMessage("(Received) " + msgReceived);
+
+            Connection connection = handleConnectRequest(clientConnection, msgReceived);
+            handshakeComplete(clientConnection);
+            // Frames after the connection request use the agreed framing and compression
+            framing.setFraming(clientConnection.getWireFormat().framing);
+            Compression compression = clientConnection.getWireFormat().isCompressed()
+                    ? clientConnection.getCompression() : null;
 
-                // Process connection request for users
-                } else {
-
-                    // Deny if no active manager
-                    if (clientManagement.getClientList().size() == 0) {
-                        Chat deny = new Chat("Server", "bot",
-                                "deny", "No active manager.", username);
-                        output.writeUTF(deny.toString());
-                        output.flush();
-                        serverGUI.logMessage("(Sent) " + deny);
-                        clientSocket.close();
-
-                    // Deny if invalid username
-                    } else if (clientManagement.checkUsername(username)){
-                        Chat deny = new Chat("Server", "bot",
-                                "deny", "Invalid username", username);
-                        output.writeUTF(deny.toString());
-                        output.flush();
-                        serverGUI.logMessage("(Sent) " + deny);
-                        clientSocket.close();
-
-                    // Send join request to manager
-                    } else {
+            // Process subsequent messages from this client after connection request
+            while(!clientSocket.isClosed()){
 
-                        Chat connectedToServer = new Chat("Server", "bot",
-                                "chat", "Join request sent to manager!", username);
-                        output.writeUTF(connectedToServer.toString());
-                        output.flush();
-                        serverGUI.logMessage("(Sent) " + connectedToServer);
+                try {
 
-                        Chat join = new Chat("Server", "bot",
-                                "join", username + " is requesting to join!", "manager");
-                        clientManagement.contactManager(join);
-                        clientManagement.addClientList(username, clientSocket);
+                    byte[] payload = framing.read(input);
+                    clientConnection.received();
+                    if (compression != null){
+                        payload = compression.decompress(payload);
+                    }
+                    while (!handleClientMessage(connection, clientConnection, payload, parser)){
+                        // Board has no room for it, read nothing more from this client until it has
+                        clientConnection.awaitResume();
                     }
 
+                } catch (IOException e){
+                    break;
+
+                // Message that could not be processed, only this client is disconnected
+                } catch (ParseException | RuntimeException e){
+                    e.printStackTrace();
+                    clientConnection.disconnect();
+                    break;
                 }
 
             }
 
-            // Process subsequent messages from this client after connection request
-            while(!clientSocket.isClosed()){
+            // Also when the socket was closed by another thread between two messages, eg. by the board
+            handleClientDisconnect(connection, clientConnection);
+            input.close();
 
-                try {
+        } catch (IOException e) {
+            e.printStackTrace();
 
-                    inputData = input.readUTF();
-                    serverGUI.logMessage("(Received) " + inputData);
+        } catch (ParseException | RuntimeException e) {
+            // Connection request that could not be processed
+            e.printStackTrace();
+            if (clientConnection != null){
+                clientConnection.disconnect();
+            }
 
-                    if (inputData != null) {
-                        JSONObject subsMsgReceived = (JSONObject) parser.parse(inputData);
-                        // Send to message warehouse to process
+        }
 
-                        messageWarehouse.addMsgReceived(subsMsgReceived);
-                    }
+    }
 
-                } catch (IOException e){
+    /*
+     * Methods shared by blocking and nio modes
+     */
+    // Disconnect the connection if it stops answering, starting with its connection request
+    void watch(ClientConnection client){
+        if (heartbeatMonitor != null){
+            heartbeatMonitor.add(client);
+        }
+    }
 
-                    String username = connection.username;
-                    String userAccess = connection.userAccess;
+    // Clients that cannot answer pings are only watched until their connection request is received
+    void handshakeComplete(ClientConnection client){
+        if (heartbeatMonitor != null && !client.getWireFormat().heartbeat){
+            heartbeatMonitor.remove(client);
+        }
+    }
 
-                    if (clientManagement.checkUsername(username)){
-                        Chat quit = new Chat(username, userAccess, "quit",
-                                "*" + username
-                                        + " left*","Server");
+    // First message from client must be a connection request. Returns null if the client was not accepted.
+    Connection handleConnectRequest(ClientConnection client, JSONObject msgReceived) throws IOException {
 
-                        messageWarehouse.addMsgReceived(quit.chat);
+        String category = (String) msgReceived.get("category");
+        if (!"connect".equals(category)){
+            return null;
+        }
+
+        Connection connection = new Connection(msgReceived);
+        String username = connection.username;
+        String userAccess = connection.userAccess;
+        connection.board = BoardRegistry.boardId(connection.board);
+
+        if (connection.session != null){
+            return handleResumeRequest(client, connection);
+        }
+
+        // Process connection request for manager
+        if (userAccess.equals("manager")){
+
+            // Only one manager per board at one time. Board is created with its manager.
+            Board board = null;
+            boolean created = false;
+            while (!created){
+                board = boardRegistry.getOrCreateBoard(connection.board);
+                synchronized (boardRegistry){
+                    // Board closed by its previous manager meanwhile, create it again
+                    if (!boardRegistry.isHosted(board)){
+                        continue;
                     }
-                    break;
+                    if (board.getClientManagement().getClientList().size() == 0){
+                        acceptWireFormat(client, connection);
+                        board.getClientManagement().setManager(username, client);
+                        sendSession(board.getClientManagement(), username);
+                    } else {
+                        board = null;
+                    }
+                    created = true;
                 }
+            }
 
+            if (board != null) {
+                ClientManagement clientManagement = board.getClientManagement();
+                Chat createdWhiteboard = new Chat("Server", "bot",
+                        "chat", "Whiteboard created!", "all");
+                clientManagement.contactManager(createdWhiteboard);
+                clientManagement.broadcastMessage("Server", clientManagement.getUserList());
+                // Drawings the board got back from its log, sent by the MessageWarehouse which holds them
+                Chat restore = new Chat(username, "manager", "restore", "", "Server");
+                board.getMessageWarehouse().addMsgReceived(restore.chat);
+            } else {
+                Chat deny = new Chat("Server", "bot",
+                        "deny", "Only one manager allowed.", username);
+                rejectClient(client, deny);
+                return null;
             }
 
-            input.close();
-            output.close();
+        // Process connection request for users
+        } else {
+
+            Board board = boardRegistry.getBoard(connection.board);
+
+            // Deny if no active manager
+            if (board == null || board.getClientManagement().getClientList().size() == 0) {
+                Chat deny = new Chat("Server", "bot",
+                        "deny", "No active manager.", username);
+                rejectClient(client, deny);
+                return null;
+
+            // Deny if invalid username
+            } else if (board.getClientManagement().checkUsername(username)){
+                Chat deny = new Chat("Server", "bot",
+                        "deny", "Invalid username", username);
+                rejectClient(client, deny);
+                return null;
+
+            // Send join request to manager
+            } else {
+
+                ClientManagement clientManagement = board.getClientManagement();
+                acceptWireFormat(client, connection);
+                Chat connectedToServer = new Chat("Server", "bot",
+                        "chat", "Join request sent to manager!", username);
+                client.send(Frame.encode(connectedToServer));
+                serverGUI.logMessage("(Sent) " + connectedToServer);
+
+                Chat join = new Chat("Server", "bot",
+                        "join", username + " is requesting to join!", "manager");
+                clientManagement.contactManager(join);
+                clientManagement.addClientList(username, client);
+            }
 
-        } catch (IOException e) {
-            e.printStackTrace();
+        }
 
-        } catch (ParseException e) {
-            e.printStackTrace();
+        return connection;
+    }
+
+    // Connection request with a session token: the client takes its place on the board again and the
+    // MessageWarehouse sends it what it missed. Returns null if the session is not valid any more.
+    private Connection handleResumeRequest(ClientConnection client, Connection connection) throws IOException {
+
+        String username = connection.username;
+        Board board = boardRegistry.getBoard(connection.board);
+        ClientManagement clientManagement = board != null ? board.getClientManagement() : null;
+
+        if (clientManagement == null || !clientManagement.checkSession(username, connection.session)){
+            Chat deny = new Chat("Server", "bot",
+                    "deny", "Session expired, please connect again.", username);
+            rejectClient(client, deny);
+            return null;
+        }
+
+        // Access comes with the session, not with the request
+        connection.userAccess = clientManagement.checkIfManager(username) ? "manager" : "user";
+        acceptWireFormat(client, connection);
+        long sequence = connection.sequence != null ? connection.sequence : -1;
+        clientManagement.resumeClient(username, client, sequence);
+        serverGUI.logMessage("(Information) " + username + " resumed its session on board \"" + connection.board + "\"");
+
+        Chat resume = new Chat(username, connection.userAccess, "resume",
+                "*" + username + " reconnected*", "Server");
+        board.getMessageWarehouse().addMsgReceived(resume.chat);
+        return connection;
+    }
+
+    private void sendSession(ClientManagement clientManagement, String username){
+        Chat session = clientManagement.createSession(username);
+        if (session != null){
+            clientManagement.contactUser(username, session);
+        }
+    }
+
+    // Send to the message warehouse of the client's board to process.
+    // Draw objects are not decoded here: their category and username are read from the start of the
+    // payload, and the board relays the bytes received (see MessageWarehouse).
+    // Returns false if the board has no room for it yet: the caller keeps it and reads nothing more
+    // from the client until client.resumeReading() is called.
+    boolean handleClientMessage(Connection connection, ClientConnection client, byte[] payload, JSONParser parser)
+            throws IOException, ParseException {
+
+        String category = WireCodec.peekCategory(payload);
+        // Answer to a ping, receiving it was all that mattered (see HeartbeatMonitor)
+        if ("pong".equals(category)){
+            return true;
+        }
+
+        // Everything on a board must reach every client, whatever framing it uses. A message that
+        // cannot is not added to the board instead of being missing for some of its clients.
+        if (!WireCodec.fitsEveryClient(payload)){
+            serverGUI.logMessage("(Information) Message of " + payload.length + " bytes from "
+                    + (connection != null ? connection.username : "unknown client") + " is too long, rejected");
+            Board board = getBoard(connection);
+            if (board != null){
+                Chat rejected = new Chat("Server", "bot", "chat",
+                        "Your last drawing or message is too large and was not added to the board.", connection.username);
+                board.getClientManagement().contactUser(connection.username, rejected);
+            }
+            return true;
+        }
+
+        String drawUsername = "draw".equals(category) ? WireCodec.peekUsername(payload) : null;
+        if (drawUsername != null){
+            Board board = getBoard(connection);
+            if (board == null){
+                return true;
+            }
+            if (!board.getMessageWarehouse().addDrawReceived(connection.username, drawUsername, payload, client)){
+                return false;
+            }
+            serverGUI.logMessage("(Received) draw from " + drawUsername + ", " + payload.length + " bytes");
+            return true;
+        }
 
+        JSONObject msgReceived = WireCodec.decode(payload, parser);
+        Board board = getBoard(connection);
+        if (board != null && !board.getMessageWarehouse().addMsgReceived(msgReceived, client)){
+            return false;
         }
+        serverGUI.logMessage("(Received) " + msgReceived);
+        return true;
+    }
+
+    private Board getBoard(Connection connection){
+        if (connection == null){
+            return null;
+        }
+        return boardRegistry.getBoard(connection.board);
+    }
+
+    // Connection with client is lost
+    void handleClientDisconnect(Connection connection, ClientConnection client){
+
+        if (connection == null){
+            return;
+        }
+
+        String username = connection.username;
+        Board board = boardRegistry.getBoard(connection.board);
+
+        // Nothing to do if the user has left, or resumed its session on another connection
+        if (board == null || !board.getClientManagement().isConnectedWith(username, client)){
+            return;
+        }
+
+        if (resumeExecutor != null && board.getClientManagement().hasSession(username)){
+            try {
+                // Messages for the user are dropped until it resumes
+                client.close();
+            } catch (IOException e){
+                e.printStackTrace();
+            }
+            serverGUI.logMessage("(Information) " + username + " disconnected, place kept for "
+                    + config.resumeMillis + " ms");
+            resumeExecutor.schedule(() -> {
+                if (board.getClientManagement().isConnectedWith(username, client)){
+                    quit(board, connection);
+                }
+            }, config.resumeMillis, TimeUnit.MILLISECONDS);
+        } else {
+            quit(board, connection);
+        }
+    }
+
+    private void quit(Board board, Connection connection){
+        String username = connection.username;
+        Chat quit = new Chat(username, connection.userAccess, "quit",
+                "*" + username
+                        + " left*","Server");
+
+        board.getMessageWarehouse().addMsgReceived(quit.chat);
+    }
+
+    // Answer the wire format request of newer clients before anything else is sent to them
+    private void acceptWireFormat(ClientConnection client, Connection connection){
+
+        if (connection.codec == null && connection.framing == null && connection.compression == null
+                && connection.snapshot == null && connection.strokes == null && connection.resume == null
+                && connection.heartbeat == null){
+            return;
+        }
+
+        String codec = WireCodec.JSON;
+        if (config.binaryCodec && WireCodec.BINARY.equals(connection.codec)){
+            codec = WireCodec.BINARY;
+        }
+        String framing = Framing.UTF;
+        if (config.lengthFraming && Framing.LENGTH32.equals(connection.framing)){
+            framing = Framing.LENGTH32;
+        }
+        // Compressed payloads cannot be dropped for size, so compression needs len32 framing
+        String compression = Compression.NONE;
+        if (config.compression && Compression.DEFLATE.equals(connection.compression)
+                && framing.equals(Framing.LENGTH32)){
+            compression = Compression.DEFLATE;
+        }
+        // Snapshot parts are larger than the utf framing allows
+        boolean snapshots = Snapshot.FORMAT.equals(connection.snapshot) && framing.equals(Framing.LENGTH32);
+        boolean strokes = config.strokeStreaming && Stroke.FORMAT.equals(connection.strokes);
+        boolean resume = config.resumeMillis > 0 && Connection.RESUME.equals(connection.resume);
+        boolean heartbeat = config.idleTimeoutMillis > 0 && Connection.HEARTBEAT.equals(connection.heartbeat);
+
+        Connection accept = new Connection(connection.username, "accept",
+                connection.ipAddress, connection.port, connection.userAccess);
+        accept.setCodec(codec);
+        accept.setFraming(framing);
+        accept.setCompression(compression);
+        accept.setSnapshot(snapshots ? Snapshot.FORMAT : null);
+        accept.setStrokes(strokes ? Stroke.FORMAT : null);
+        accept.setResume(resume ? Connection.RESUME : null);
+        accept.setHeartbeat(heartbeat ? Connection.HEARTBEAT : null);
+        client.send(Frame.encode(accept));
+        serverGUI.logMessage("(Sent) " + accept);
+        client.setWireFormat(new WireFormat(codec, framing, compression, snapshots, strokes, resume, heartbeat));
+    }
 
+    private void rejectClient(ClientConnection client, Chat deny) throws IOException {
+        client.send(Frame.encode(deny));
+        serverGUI.logMessage("(Sent) " + deny);
+        client.close();
     }
 
 }
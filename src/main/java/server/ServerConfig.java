@@ -0,0 +1,204 @@
+package server;
+
+import common.SystemSettings;
+import common.ThreadFactories;
+
+/**
+ *
+ * ServerConfig to hold tunable settings for the server.
+ * Values are read from system properties (eg. -Dwhiteboard.server.ioMode=nio)
+ * and fall back to defaults when not provided.
+ *
+ * @author liching
+ *
+ */
+public class ServerConfig {
+
+    private static final String PREFIX = "whiteboard.server.";
+
+    // "blocking" (one thread per connection) or "nio" (selector based)
+    public String ioMode;
+
+    // Number of selector threads used in nio mode
+    public int ioThreads;
+
+    // "platform" or "virtual" threads for client connections (blocking mode) and the board threads
+    public String threadMode;
+
+    // Number of platform threads shared by the MessageWarehouse of all boards (see BoardRegistry)
+    public int boardThreads;
+
+    // Bound of each client's outbound queue and what to do when a client cannot keep up
+    // ("drop", "coalesce" or "disconnect", see OutboundQueue)
+    public int outboundQueueCapacity;
+    public String slowConsumerPolicy;
+    public long maxLagMillis;
+
+    // Bound of the control lane of each client's queue (see LaneQueue) and of the chat messages waiting for
+    // each board, and size of the ring buffer of drawings received by each board (see MessageWarehouse).
+    // Messages beyond the bound of a lane are dropped, other control messages received by a board never are.
+    // A client whose drawing finds the ring full is not read until the board has room for it.
+    public int controlLaneCapacity;
+    public int inboundQueueCapacity;
+
+    // What a board thread does once no message is waiting: "park" gives it back at once, "yield" or
+    // "spin" first wait up to waitMicros for the next message (see MessageWarehouse)
+    public String waitStrategy;
+    public long waitMicros;
+
+    // Whether clients may use the binary wire codec for draw objects
+    public boolean binaryCodec;
+
+    // Whether clients may use 32-bit length framing, and its limits (see Framing)
+    public boolean lengthFraming;
+    public int maxFrameSize;
+    public int maxMessageSize;
+
+    // Whether clients may use deflate compression (see Compression), only together with len32 framing
+    public boolean compression;
+
+    // Size of each part of the board state sent to joining users (see Snapshot), before compression
+    public int snapshotPartSize;
+
+    // Whether clients may stream pen strokes while they are drawn (see Stroke)
+    public boolean strokeStreaming;
+
+    // How long a client that lost its connection keeps its place on the board to resume its session
+    // (see Connection), 0 to let it leave at once
+    public long resumeMillis;
+
+    // Clients that answer heartbeats are pinged every pingMillis. A connection nothing was received from
+    // for idleTimeoutMillis is disconnected (see HeartbeatMonitor), 0 never times connections out
+    public long pingMillis;
+    public long idleTimeoutMillis;
+
+    // Directory of the board logs (see EventLog), empty to keep board state in memory only
+    public String dataDir;
+
+    // Size of each log segment file, and the longest time an operation waits to be written to disk
+    public int logSegmentSize;
+    public long logSyncMillis;
+
+    // A board checkpoints its state after this many logged operations, or this long after the last checkpoint
+    public long checkpointOps;
+    public long checkpointMillis;
+
+    // Socket options applied to every accepted connection
+    public boolean tcpNoDelay;
+    public boolean tcpKeepAlive;
+    public int sendBufferSize;
+    public int receiveBufferSize;
+
+    public ServerConfig(){
+        ioMode = "blocking";
+        ioThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        threadMode = ThreadFactories.PLATFORM;
+        boardThreads = Runtime.getRuntime().availableProcessors();
+        outboundQueueCapacity = 10000;
+        slowConsumerPolicy = OutboundQueue.DISCONNECT;
+        maxLagMillis = 30000;
+        controlLaneCapacity = 1000;
+        inboundQueueCapacity = 16384;
+        waitStrategy = MessageWarehouse.PARK;
+        waitMicros = 50;
+        binaryCodec = true;
+        lengthFraming = true;
+        maxFrameSize = 64 * 1024;
+        maxMessageSize = 16 * 1024 * 1024;
+        compression = true;
+        snapshotPartSize = 256 * 1024;
+        strokeStreaming = true;
+        resumeMillis = 30000;
+        pingMillis = 10000;
+        idleTimeoutMillis = 30000;
+        dataDir = "";
+        logSegmentSize = 64 * 1024 * 1024;
+        logSyncMillis = 10;
+        checkpointOps = 100000;
+        checkpointMillis = 60000;
+        tcpNoDelay = true;
+        tcpKeepAlive = true;
+        // 0 keeps the operating system default
+        sendBufferSize = 0;
+        receiveBufferSize = 0;
+    }
+
+    public static ServerConfig fromSystemProperties(){
+        ServerConfig config = new ServerConfig();
+        config.ioMode = getString("ioMode", config.ioMode);
+        config.ioThreads = getInt("ioThreads", config.ioThreads);
+        config.threadMode = getString("threadMode", config.threadMode);
+        config.boardThreads = getInt("boardThreads", config.boardThreads);
+        config.outboundQueueCapacity = getInt("outboundQueueCapacity", config.outboundQueueCapacity);
+        config.slowConsumerPolicy = getString("slowConsumerPolicy", config.slowConsumerPolicy).toLowerCase();
+        config.maxLagMillis = getLong("maxLagMillis", config.maxLagMillis);
+        config.controlLaneCapacity = getInt("controlLaneCapacity", config.controlLaneCapacity);
+        config.inboundQueueCapacity = getInt("inboundQueueCapacity", config.inboundQueueCapacity);
+        config.waitStrategy = getString("waitStrategy", config.waitStrategy).toLowerCase();
+        config.waitMicros = getLong("waitMicros", config.waitMicros);
+        config.binaryCodec = getBoolean("binaryCodec", config.binaryCodec);
+        config.lengthFraming = getBoolean("lengthFraming", config.lengthFraming);
+        config.maxFrameSize = getInt("maxFrameSize", config.maxFrameSize);
+        config.maxMessageSize = getInt("maxMessageSize", config.maxMessageSize);
+        config.compression = getBoolean("compression", config.compression);
+        config.snapshotPartSize = getInt("snapshotPartSize", config.snapshotPartSize);
+        config.strokeStreaming = getBoolean("strokeStreaming", config.strokeStreaming);
+        config.resumeMillis = getLong("resumeMillis", config.resumeMillis);
+        config.pingMillis = getLong("pingMillis", config.pingMillis);
+        config.idleTimeoutMillis = getLong("idleTimeoutMillis", config.idleTimeoutMillis);
+        config.dataDir = getString("dataDir", config.dataDir);
+        config.logSegmentSize = getInt("logSegmentSize", config.logSegmentSize);
+        config.logSyncMillis = getLong("logSyncMillis", config.logSyncMillis);
+        config.checkpointOps = getLong("checkpointOps", config.checkpointOps);
+        config.checkpointMillis = getLong("checkpointMillis", config.checkpointMillis);
+        config.tcpNoDelay = getBoolean("tcpNoDelay", config.tcpNoDelay);
+        config.tcpKeepAlive = getBoolean("tcpKeepAlive", config.tcpKeepAlive);
+        config.sendBufferSize = getInt("sendBufferSize", config.sendBufferSize);
+        config.receiveBufferSize = getInt("receiveBufferSize", config.receiveBufferSize);
+        return config;
+    }
+
+    public boolean isLogEnabled(){
+        return dataDir != null && !dataDir.isEmpty();
+    }
+
+    public boolean isNio(){
+        return ioMode.equalsIgnoreCase("nio");
+    }
+
+    private static String getString(String key, String defaultValue){
+        return SystemSettings.getString(PREFIX + key, defaultValue);
+    }
+
+    private static int getInt(String key, int defaultValue){
+        return SystemSettings.getInt(PREFIX + key, defaultValue);
+    }
+
+    private static long getLong(String key, long defaultValue){
+        return SystemSettings.getLong(PREFIX + key, defaultValue);
+    }
+
+    private static boolean getBoolean(String key, boolean defaultValue){
+        return SystemSettings.getBoolean(PREFIX + key, defaultValue);
+    }
+
+    @Override
+    public String toString() {
+        return "ioMode=" + ioMode + ", ioThreads=" + ioThreads + ", threadMode=" + threadMode
+                + ", boardThreads=" + boardThreads
+                + ", outboundQueueCapacity=" + outboundQueueCapacity + ", slowConsumerPolicy=" + slowConsumerPolicy
+                + ", maxLagMillis=" + maxLagMillis + ", controlLaneCapacity=" + controlLaneCapacity
+                + ", inboundQueueCapacity=" + inboundQueueCapacity + ", waitStrategy=" + waitStrategy
+                + ", waitMicros=" + waitMicros + ", binaryCodec=" + binaryCodec
+                + ", lengthFraming=" + lengthFraming + ", maxFrameSize=" + maxFrameSize
+                + ", maxMessageSize=" + maxMessageSize + ", compression=" + compression
+                + ", snapshotPartSize=" + snapshotPartSize + ", strokeStreaming=" + strokeStreaming
+                + ", resumeMillis=" + resumeMillis + ", pingMillis=" + pingMillis
+                + ", idleTimeoutMillis=" + idleTimeoutMillis
+                + ", dataDir=" + dataDir + ", logSegmentSize=" + logSegmentSize + ", logSyncMillis=" + logSyncMillis
+                + ", checkpointOps=" + checkpointOps + ", checkpointMillis=" + checkpointMillis
+                + ", tcpNoDelay=" + tcpNoDelay + ", tcpKeepAlive=" + tcpKeepAlive
+                + ", sendBufferSize=" + sendBufferSize + ", receiveBufferSize=" + receiveBufferSize;
+    }
+
+}
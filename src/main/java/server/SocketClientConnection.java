@@ -0,0 +1,191 @@
+package server;
+
+import message.Compression;
+import message.Frame;
+import message.Framing;
+import message.WireFormat;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ *
+ * ClientConnection backed by a blocking socket (one thread per connection).
+ * A dedicated writer thread drains the OutboundQueue of this client
+ * and compresses frames once compression was agreed.
+ *
+ * @author liching
+ *
+ */
+public class SocketClientConnection implements ClientConnection, Runnable {
+
+    private Socket socket;
+
+    private ServerGUI serverGUI;
+
+    private OutboundQueue outboundQueue;
+
+    private volatile WireFormat format = WireFormat.LEGACY;
+
+    private int maxFrameSize;
+
+    private Compression compression;
+
+    private volatile long lastReceived;
+
+    // Set by the board the reader waits for once it has room again
+    private boolean resumed;
+    private volatile boolean waiting;
+
+    public SocketClientConnection(Socket socket, ServerGUI serverGUI, ServerConfig config, ThreadFactory threadFactory){
+        this.socket = socket;
+        this.serverGUI = serverGUI;
+        this.outboundQueue = new OutboundQueue(config);
+        this.maxFrameSize = config.maxFrameSize;
+        this.compression = new Compression(config.maxMessageSize);
+        this.lastReceived = System.currentTimeMillis();
+        threadFactory.newThread(this).start();
+    }
+
+    // Writer loop
+    @Override
+    public void run(){
+        try {
+            OutputStream output = new BufferedOutputStream(socket.getOutputStream());
+            OutboundQueue.Entry entry;
+            while ((entry = outboundQueue.take()) != null){
+                byte[] payload = entry.frame.getPayload();
+                if (entry.format.isCompressed()){
+                    payload = compression.compress(payload);
+                }
+                Framing.write(output, payload, entry.format.framing, maxFrameSize);
+                // Flush once all pending messages are written
+                if (outboundQueue.isEmpty()){
+                    output.flush();
+                }
+            }
+            output.flush();
+        } catch (IOException | InterruptedException e){
+            outboundQueue.clear();
+        }
+        if (outboundQueue.getDropped() > 0){
+            serverGUI.logMessage("(Information) " + outboundQueue.getDropped() + " messages were dropped for slow client "
+                    + socket.getRemoteSocketAddress() + " (" + outboundQueue.getDroppedByLane() + ")");
+        }
+        if (compression.isUsed()){
+            serverGUI.logMessage("(Information) Compression for client " + socket.getRemoteSocketAddress() + ": " + compression);
+        }
+        compression.end();
+        closeSocket();
+    }
+
+    @Override
+    public void send(Frame frame) {
+        WireFormat currentFormat = format;
+        Frame encoded = frame.forCodec(currentFormat.codec);
+        // Messages from clients are checked when they arrive (see Server), so this is not expected
+        if (!Framing.fits(encoded.getPayload(), currentFormat.framing)){
+            serverGUI.logMessage("(Information) Message too long for client " + socket.getRemoteSocketAddress() + ", disconnecting");
+            disconnect();
+            return;
+        }
+        if (!outboundQueue.offer(encoded, currentFormat)){
+            serverGUI.logMessage("(Information) Disconnecting slow client " + socket.getRemoteSocketAddress());
+            disconnect();
+        }
+    }
+
+    @Override
+    public void setWireFormat(WireFormat format) {
+        this.format = format;
+    }
+
+    @Override
+    public WireFormat getWireFormat() {
+        return format;
+    }
+
+    // Shared by the writer and the reader thread of this client
+    Compression getCompression() {
+        return compression;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Writer closes the socket once the queue is drained
+        outboundQueue.close();
+    }
+
+    @Override
+    public void disconnect() {
+        outboundQueue.close();
+        outboundQueue.clear();
+        // Reader thread of this client will see the closed socket and emit quit
+        closeSocket();
+    }
+
+    @Override
+    public synchronized void resumeReading() {
+        resumed = true;
+        notifyAll();
+    }
+
+    // Called by the reader thread while the board has no room for the message it read
+    synchronized void awaitResume() throws IOException {
+        waiting = true;
+        try {
+            while (!resumed){
+                if (socket.isClosed()){
+                    throw new IOException("Socket closed");
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            resumed = false;
+        } finally {
+            waiting = false;
+        }
+    }
+
+    // Called by the reader thread for every frame received
+    void received() {
+        lastReceived = System.currentTimeMillis();
+    }
+
+    @Override
+    public long getLastReceived() {
+        // Pings are not read while waiting for the board, the client is not idle
+        return waiting ? System.currentTimeMillis() : lastReceived;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return socket.isClosed();
+    }
+
+    @Override
+    public String toString() {
+        return "Client " + socket.getRemoteSocketAddress();
+    }
+
+    private void closeSocket(){
+        try {
+            socket.close();
+        } catch (IOException e){
+            e.printStackTrace();
+        }
+        // Reader waiting for its board sees the closed socket
+        synchronized (this){
+            notifyAll();
+        }
+    }
+
+}
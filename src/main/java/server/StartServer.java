@@ -6,7 +6,7 @@ import javax.swing.SwingUtilities;
  *
  * Main class for server.
  * Starts the following:
- * 1. Server -> ClientManagement & ClientWarehouse
+ * 1. Server -> BoardRegistry -> ClientManagement & MessageWarehouse of each board
  * 2. ServerGUI
  *
  * @author liching
@@ -39,12 +39,14 @@ public class StartServer {
         }
 
         Integer finalPort = port;
+        ServerConfig config = ServerConfig.fromSystemProperties();
         SwingUtilities.invokeLater(new Runnable() {
             @Override
             public void run() {
 
                 ServerGUI serverGUI = new ServerGUI();
-                Server server = new Server(serverGUI, finalPort);
+                serverGUI.logMessage("(Information) Server settings: " + config);
+                Server server = new Server(serverGUI, finalPort, config);
                 server.start();
             }
         });
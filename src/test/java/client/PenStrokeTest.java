@@ -0,0 +1,127 @@
+package client;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ *
+ * Tests of pen strokes: samples dropped while drawing and Ramer-Douglas-Peucker simplification when finished.
+ *
+ * @author liching
+ *
+ */
+class PenStrokeTest {
+
+    @Test
+    void closeSamplesAreDroppedButLastIsKept(){
+        PenStroke stroke = new PenStroke();
+        assertTrue(stroke.add(0, 0, 2));
+        assertFalse(stroke.add(1, 1, 2));
+        assertTrue(stroke.add(2, 0, 2));
+        // Same point is dropped even without a minimum distance
+        assertFalse(stroke.add(2, 0, 0));
+        assertFalse(stroke.add(3, 0, 2));
+        assertEquals(2, stroke.getPointCount());
+
+        assertArrayEquals(new int[] {0, 0, 2, 0, 3, 0}, stroke.finish(0));
+    }
+
+    @Test
+    void pointsAddedSinceAreReturned(){
+        PenStroke stroke = new PenStroke();
+        // More than the initial array holds
+        for (int i = 0; i < 1000; i++){
+            stroke.add(i, -i, 0);
+        }
+        assertEquals(1000, stroke.getPointCount());
+        assertArrayEquals(new int[] {998, -998, 999, -999}, stroke.getPoints(998));
+
+        stroke.clear();
+        assertEquals(0, stroke.getPointCount());
+        stroke.add(5, 5, 0);
+        assertArrayEquals(new int[] {5, 5}, stroke.finish(1));
+    }
+
+    @Test
+    void straightLineKeepsItsEnds(){
+        PenStroke stroke = new PenStroke();
+        for (int i = 0; i <= 100; i++){
+            stroke.add(i * 3, i, 0);
+        }
+        assertArrayEquals(new int[] {0, 0, 300, 100}, stroke.finish(0.75));
+    }
+
+    @Test
+    void cornersAreKept(){
+        PenStroke stroke = new PenStroke();
+        for (int i = 0; i <= 50; i++){
+            stroke.add(i, 0, 0);
+        }
+        for (int i = 1; i <= 50; i++){
+            stroke.add(50, i, 0);
+        }
+        assertArrayEquals(new int[] {0, 0, 50, 0, 50, 50}, stroke.finish(0.75));
+    }
+
+    @Test
+    void zeroToleranceAndShortStrokesAreKept(){
+        PenStroke stroke = new PenStroke();
+        stroke.add(0, 0, 0);
+        stroke.add(1, 0, 0);
+        stroke.add(2, 0, 0);
+        assertArrayEquals(new int[] {0, 0, 1, 0, 2, 0}, stroke.finish(0));
+
+        stroke.clear();
+        stroke.add(0, 0, 0);
+        stroke.add(10, 10, 0);
+        assertArrayEquals(new int[] {0, 0, 10, 10}, stroke.finish(5));
+    }
+
+    @Test
+    void removedPointsAreWithinToleranceOfTheStroke(){
+        Random random = new Random(1);
+        for (double tolerance : new double[] {0.5, 2, 10}){
+            PenStroke stroke = new PenStroke();
+            // Moves right on every sample, so each point is told apart by its x
+            int x = 0, y = 0;
+            for (int i = 0; i < 2000; i++){
+                x += 1 + random.nextInt(3);
+                y += random.nextInt(9) - 4;
+                stroke.add(x, y, 0);
+            }
+            int[] all = stroke.getPoints(0);
+            int[] simplified = stroke.finish(tolerance);
+            assertTrue(simplified.length < all.length);
+            assertEquals(all[0], simplified[0]);
+            assertEquals(all[all.length - 1], simplified[simplified.length - 1]);
+
+            // Every point lies within tolerance of the simplified segment around it
+            int segment = 0;
+            for (int i = 0; i < all.length; i += 2){
+                while (all[i] > simplified[segment + 2]){
+                    segment += 2;
+                }
+                assertTrue(distance(all[i], all[i + 1], simplified, segment) <= tolerance,
+                        "point " + i / 2 + " with tolerance " + tolerance);
+            }
+        }
+    }
+
+    // Distance of point (x, y) from the line segment starting at index segment of points
+    private static double distance(int x, int y, int[] points, int segment){
+        double x1 = points[segment], y1 = points[segment + 1];
+        double x2 = points[segment + 2], y2 = points[segment + 3];
+        double dx = x2 - x1, dy = y2 - y1;
+        double lengthSquared = dx * dx + dy * dy;
+        double t = lengthSquared == 0 ? 0 : ((x - x1) * dx + (y - y1) * dy) / lengthSquared;
+        t = Math.max(0, Math.min(1, t));
+        return Math.hypot(x1 + t * dx - x, y1 + t * dy - y);
+    }
+
+}
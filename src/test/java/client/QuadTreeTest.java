@@ -0,0 +1,87 @@
+package client;
+
+import message.Draw;
+import org.junit.jupiter.api.Test;
+
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ *
+ * Tests of the quadtree the canvas finds its draw objects in: same objects and order as looking at all of them.
+ *
+ * @author liching
+ *
+ */
+class QuadTreeTest {
+
+    @Test
+    void queryFindsIntersectingObjectsInOrder(){
+        Random random = new Random(1);
+        QuadTree tree = new QuadTree();
+        List<CompiledDraw> all = new ArrayList<>();
+        for (int i = 0; i < 5000; i++){
+            // Mostly small objects close together, so nodes split, and some far away, so the root grows
+            int spread = i % 10 == 0 ? 100_000 : 2000;
+            int x = random.nextInt(spread) - spread / 4;
+            int y = random.nextInt(spread) - spread / 4;
+            CompiledDraw draw = rectangle(x, y, 1 + random.nextInt(i % 50 == 0 ? 5000 : 40), 1 + random.nextInt(40));
+            tree.insert(draw, draw.bounds);
+            all.add(draw);
+        }
+        assertEquals(all.size(), tree.size());
+
+        for (int i = 0; i < 200; i++){
+            Rectangle area = new Rectangle(random.nextInt(4000) - 1000, random.nextInt(4000) - 1000,
+                    1 + random.nextInt(800), 1 + random.nextInt(800));
+            assertEquals(bruteForce(all, area), tree.query(area));
+        }
+        assertEquals(all, tree.query(new Rectangle(-1_000_000, -1_000_000, 2_000_000, 2_000_000)));
+    }
+
+    @Test
+    void emptyTreeAndEmptyArea(){
+        QuadTree tree = new QuadTree();
+        assertEquals(List.of(), tree.query(new Rectangle(0, 0, 100, 100)));
+
+        CompiledDraw draw = rectangle(10, 10, 20, 20);
+        tree.insert(draw, draw.bounds);
+        assertEquals(List.of(), tree.query(new Rectangle(100, 100, 50, 50)));
+        assertSame(draw, tree.query(new Rectangle(25, 25, 50, 50)).get(0));
+    }
+
+    @Test
+    void orderIsKeptAcrossNodes(){
+        QuadTree tree = new QuadTree();
+        List<CompiledDraw> all = new ArrayList<>();
+        // A large object added between small ones stays in an upper node, but is found in between them
+        for (int i = 0; i < 100; i++){
+            CompiledDraw draw = i == 50 ? rectangle(0, 0, 1000, 1000) : rectangle(i * 3, i * 3, 2, 2);
+            tree.insert(draw, draw.bounds);
+            all.add(draw);
+        }
+        assertEquals(all, tree.query(new Rectangle(0, 0, 400, 400)));
+    }
+
+    private static CompiledDraw rectangle(int x, int y, int width, int height){
+        return CompiledDraw.compile(new Draw("alice", "draw", "rectangle", x, y, x + width, y + height, Color.RED),
+                null, null);
+    }
+
+    private static List<CompiledDraw> bruteForce(List<CompiledDraw> all, Rectangle area){
+        List<CompiledDraw> found = new ArrayList<>();
+        for (CompiledDraw draw : all){
+            if (draw.bounds.intersects(area)){
+                found.add(draw);
+            }
+        }
+        return found;
+    }
+
+}
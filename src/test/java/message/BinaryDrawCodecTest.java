@@ -0,0 +1,198 @@
+package message;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.junit.jupiter.api.Test;
+
+import java.awt.Color;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ *
+ * Tests of the binary draw object format: varints, palette colors, every draw type and sequence stamps.
+ *
+ * @author liching
+ *
+ */
+class BinaryDrawCodecTest {
+
+    @Test
+    void varIntRoundTrip() throws IOException {
+        int[] values = {0, 1, -1, 63, -64, 64, -65, 8191, -8192, 1 << 20, Integer.MAX_VALUE, Integer.MIN_VALUE};
+        for (int value : values){
+            byte[] bytes = writeVarInt(value);
+            assertEquals(value, BinaryDrawCodec.readVarInt(new DataInputStream(new ByteArrayInputStream(bytes))));
+        }
+    }
+
+    @Test
+    void smallValuesTakeOneByte() throws IOException {
+        // Zigzag keeps small negative numbers small
+        assertEquals(1, writeVarInt(63).length);
+        assertEquals(1, writeVarInt(-64).length);
+        assertEquals(2, writeVarInt(64).length);
+        assertEquals(2, writeVarInt(-65).length);
+        assertEquals(5, writeVarInt(Integer.MIN_VALUE).length);
+    }
+
+    @Test
+    void truncatedVarIntFails(){
+        byte[] bytes = {(byte) 0x80, (byte) 0x80};
+        assertThrows(IOException.class,
+                () -> BinaryDrawCodec.readVarInt(new DataInputStream(new ByteArrayInputStream(bytes))));
+    }
+
+    @Test
+    void everyDrawTypeRoundTrips() throws IOException {
+        for (String drawType : new String[] {"line", "circle", "triangle", "rectangle"}){
+            assertRoundTrip(new Draw("alice", "draw", drawType, 10, -20, 300, 4000, Color.BLUE));
+        }
+        assertRoundTrip(new Draw("alice", "draw", "pen", 0, 0, 0, 0, Color.RED)
+                .withPoints(new int[] {5, 5, 6, 4, -100, 2000, 70000, -70000}));
+        assertRoundTrip(new Draw("alice", "draw", "text", 1, 2, 1, 2, Color.BLACK)
+                .withTextData("héllo 世界"));
+    }
+
+    @Test
+    void paletteColorTakesOneByte() throws IOException {
+        Draw palette = new Draw("a", "draw", "line", 0, 0, 0, 0, new Color(0xff0000));
+        Draw other = new Draw("a", "draw", "line", 0, 0, 0, 0, new Color(0x123456));
+        assertEquals(BinaryDrawCodec.encode(palette).length + 2, BinaryDrawCodec.encode(other).length);
+        assertEquals(0xff0000, BinaryDrawCodec.decode(BinaryDrawCodec.encode(palette)).rgb);
+        assertEquals(0x123456, BinaryDrawCodec.decode(BinaryDrawCodec.encode(other)).rgb);
+    }
+
+    @Test
+    void textWithoutTextDataKeepsNull() throws IOException {
+        Draw draw = new Draw("a", "draw", "text", 0, 0, 0, 0, Color.BLACK).withTextData(null);
+        assertNull(BinaryDrawCodec.decode(BinaryDrawCodec.encode(draw)).textData);
+    }
+
+    @Test
+    void onlyKnownDrawTypesAreEncoded(){
+        assertTrue(BinaryDrawCodec.canEncode(new Draw("a", "draw", "pen", 0, 0, 0, 0, Color.BLACK)));
+        assertFalse(BinaryDrawCodec.canEncode(new Draw("a", "draw", "star", 0, 0, 0, 0, Color.BLACK)));
+        assertFalse(BinaryDrawCodec.canEncode(new Draw("a", "stroke", "pen", 0, 0, 0, 0, Color.BLACK)));
+    }
+
+    @Test
+    void payloadIsToldApartFromJson() throws IOException {
+        Draw draw = new Draw("a", "draw", "line", 1, 2, 3, 4, Color.RED);
+        assertTrue(WireCodec.isBinary(BinaryDrawCodec.encode(draw)));
+        assertFalse(WireCodec.isBinary(WireCodec.encode(draw, WireCodec.JSON)));
+        assertEquals("draw", WireCodec.peekCategory(BinaryDrawCodec.encode(draw)));
+    }
+
+    @Test
+    void usernameIsReadWithoutDecoding() throws IOException {
+        // Palette and RGB colors take a different number of bytes before the username
+        for (Color color : new Color[] {Color.RED, new Color(0x123456)}){
+            Draw draw = new Draw("bob", "draw", "text", 1, 2, 1, 2, color).withTextData("hi");
+            assertEquals("bob", WireCodec.peekUsername(BinaryDrawCodec.encode(draw)));
+            assertEquals("bob", WireCodec.peekUsername(WireCodec.encode(draw, WireCodec.JSON)));
+        }
+        Draw draw = new Draw("zoë", "draw", "line", 1, 2, 3, 4, Color.RED);
+        assertEquals("zoë", WireCodec.peekUsername(BinaryDrawCodec.encode(draw)));
+        // Left to the JSON parser
+        assertNull(WireCodec.peekUsername(WireCodec.encode(draw, WireCodec.JSON)));
+        assertNull(WireCodec.peekUsername(WireCodec.encode(draw.withUsername("a\"b"), WireCodec.JSON)));
+    }
+
+    @Test
+    void usernameOfMalformedPayloadIsNotRead() throws IOException {
+        byte[] payload = BinaryDrawCodec.encode(new Draw("bob", "draw", "line", 1, 2, 3, 4, new Color(0x123456)));
+        // Cut inside the color, the length or the username
+        for (int length = 0; length < 10; length++){
+            assertNull(WireCodec.peekUsername(Arrays.copyOf(payload, length)), "length " + length);
+        }
+        // Username longer than the payload
+        byte[] tooLong = payload.clone();
+        tooLong[6] = 100;
+        assertNull(WireCodec.peekUsername(tooLong));
+        assertNull(WireCodec.peekUsername("{\"username\":\"bob".getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    @Test
+    void stampedPayloadCarriesSequence() throws IOException, ParseException {
+        Draw draw = new Draw("bob", "draw", "pen", 0, 0, 0, 0, new Color(0x123456))
+                .withPoints(new int[] {1, 2, 3, 4});
+        long sequence = (1L << 40) + 5;
+        for (String codec : new String[] {WireCodec.BINARY, WireCodec.JSON}){
+            byte[] payload = WireCodec.encode(draw, codec);
+            byte[] stamped = WireCodec.stamp(payload, sequence);
+            JSONObject decoded = WireCodec.decode(stamped, new JSONParser());
+            assertEquals(sequence, ((Number) decoded.get(WireCodec.SEQUENCE)).longValue(), codec);
+            assertNull(WireCodec.decode(payload, new JSONParser()).get(WireCodec.SEQUENCE), codec);
+            assertRoundTrip(draw, WireCodec.decodeDraw(stamped, new JSONParser()));
+            assertEquals("bob", WireCodec.peekUsername(stamped));
+            assertEquals("draw", WireCodec.peekCategory(stamped));
+        }
+        assertEquals(-1, BinaryDrawCodec.peekSequence(BinaryDrawCodec.encode(draw)));
+        // Messages other than draw objects are stamped as JSON
+        Chat clear = new Chat("boss", "manager", "new", "", "all");
+        JSONObject decoded = WireCodec.decode(WireCodec.stamp(WireCodec.encode(clear, WireCodec.BINARY), 7), new JSONParser());
+        assertEquals(7L, decoded.get(WireCodec.SEQUENCE));
+        assertEquals("new", new Chat(decoded).category);
+    }
+
+    @Test
+    void malformedPayloadsFail() throws IOException {
+        byte[] pen = BinaryDrawCodec.encode(new Draw("a", "draw", "pen", 0, 0, 0, 0, Color.RED)
+                .withPoints(new int[] {1, 2, 3, 4, 5, 6}));
+        // Cut inside the points
+        assertThrows(IOException.class, () -> BinaryDrawCodec.decode(Arrays.copyOf(pen, pen.length - 3)));
+        // Unknown draw type
+        byte[] unknown = pen.clone();
+        unknown[1] = 42;
+        assertThrows(IOException.class, () -> BinaryDrawCodec.decode(unknown));
+        // Not a binary payload
+        assertThrows(IOException.class, () -> BinaryDrawCodec.decode(new byte[] {'{', '}'}));
+    }
+
+    private static void assertRoundTrip(Draw draw) throws IOException {
+        assertRoundTrip(draw, BinaryDrawCodec.decode(BinaryDrawCodec.encode(draw)));
+    }
+
+    private static void assertRoundTrip(Draw draw, Draw decoded){
+        assertEquals(draw.username, decoded.username);
+        assertEquals(draw.category, decoded.category);
+        assertEquals(draw.drawType, decoded.drawType);
+        assertEquals(draw.x1, decoded.x1);
+        assertEquals(draw.y1, decoded.y1);
+        assertEquals(draw.x2, decoded.x2);
+        assertEquals(draw.y2, decoded.y2);
+        assertEquals(draw.rgb, decoded.rgb);
+        assertEquals(draw.textData, decoded.textData);
+        assertArrayEquals(points(draw), points(decoded));
+    }
+
+    private static int[] points(Draw draw){
+        int[] points = new int[2 * draw.getPointCount()];
+        for (int i = 0; i < draw.getPointCount(); i++){
+            points[2 * i] = draw.getPointX(i);
+            points[2 * i + 1] = draw.getPointY(i);
+        }
+        return points;
+    }
+
+    private static byte[] writeVarInt(int value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryDrawCodec.writeVarInt(new DataOutputStream(bytes), value);
+        return bytes.toByteArray();
+    }
+
+}
@@ -0,0 +1,107 @@
+package message;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ *
+ * Tests of the deflate stream of one connection: each payload is flushed on its own,
+ * and later payloads get smaller from what was sent before.
+ *
+ * @author liching
+ *
+ */
+class CompressionTest {
+
+    private static final byte[] MESSAGE = WireCodec.encodeText(
+            "{\"userAccess\":\"user\",\"recipient\":\"all\",\"category\":\"chat\",\"chatMessage\":\"hello\",\"username\":\"alice\"}");
+
+    @Test
+    void payloadsRoundTripInOrder() throws IOException {
+        Compression sender = new Compression(1 << 20);
+        Compression receiver = new Compression(1 << 20);
+        Random random = new Random(1);
+        for (int i = 0; i < 100; i++){
+            byte[] payload = new byte[random.nextInt(20000)];
+            // Half random, half repeated, so some compress well and some do not
+            for (int j = 0; j < payload.length; j++){
+                payload[j] = (byte) (j % 2 == 0 ? random.nextInt() : 'x');
+            }
+            assertArrayEquals(payload, receiver.decompress(sender.compress(payload)));
+        }
+    }
+
+    @Test
+    void eachPayloadIsFlushed() throws IOException {
+        Compression sender = new Compression(1 << 20);
+        byte[] compressed = sender.compress(MESSAGE);
+
+        // A sync flush ends with an empty stored block: 00 00 ff ff
+        int end = compressed.length;
+        assertEquals(0x00, compressed[end - 4] & 0xff);
+        assertEquals(0x00, compressed[end - 3] & 0xff);
+        assertEquals(0xff, compressed[end - 2] & 0xff);
+        assertEquals(0xff, compressed[end - 1] & 0xff);
+
+        // The first payload can be inflated alone, without anything sent after it
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            byte[] output = new byte[MESSAGE.length];
+            assertEquals(MESSAGE.length, inflater.inflate(output));
+            assertArrayEquals(MESSAGE, output);
+        } catch (DataFormatException e){
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    @Test
+    void laterPayloadsUseWhatWasSentBefore() throws IOException {
+        Compression sender = new Compression(1 << 20);
+        int first = sender.compress(MESSAGE).length;
+        int second = sender.compress(MESSAGE).length;
+        assertTrue(second < first / 2, "second " + second + " bytes, first " + first);
+
+        // Each connection has its own stream, a new one starts from nothing
+        assertEquals(first, new Compression(1 << 20).compress(MESSAGE).length);
+    }
+
+    @Test
+    void payloadAboveMaximumIsRejected() throws IOException {
+        Compression sender = new Compression(1 << 20);
+        Compression receiver = new Compression(1000);
+        assertThrows(IOException.class, () -> receiver.decompress(sender.compress(new byte[1001])));
+    }
+
+    @Test
+    void malformedPayloadIsRejected(){
+        Compression receiver = new Compression(1 << 20);
+        assertThrows(IOException.class, () -> receiver.decompress(new byte[] {(byte) 0xff, 1, 2, 3, 4}));
+    }
+
+    @Test
+    void countsBytesAndEnds() throws IOException {
+        Compression compression = new Compression(1 << 20);
+        assertFalse(compression.isUsed());
+        compression.decompress(compression.compress(MESSAGE));
+        assertTrue(compression.isUsed());
+        assertTrue(compression.getRatioOut() > 1.0);
+        assertEquals(compression.getRatioOut(), compression.getRatioIn(), 1e-9);
+
+        compression.end();
+        assertThrows(IOException.class, () -> compression.compress(MESSAGE));
+    }
+
+}
@@ -0,0 +1,92 @@
+package message;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.junit.jupiter.api.Test;
+
+import java.awt.Color;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ *
+ * Tests of Draw as an immutable value and of its JSON form.
+ *
+ * @author liching
+ *
+ */
+class DrawTest {
+
+    @Test
+    void pointsAreCopied(){
+        int[] points = {1, 2, 3, 4};
+        Draw draw = new Draw("a", "draw", "pen", 0, 0, 0, 0, Color.RED).withPoints(points);
+        points[0] = 100;
+        assertEquals(1, draw.getPointX(0));
+        assertEquals(2, draw.getPointCount());
+    }
+
+    @Test
+    void oddPointArrayDropsLastValue(){
+        Draw draw = new Draw("a", "draw", "pen", 0, 0, 0, 0, Color.RED).withPoints(new int[] {1, 2, 3});
+        assertEquals(1, draw.getPointCount());
+    }
+
+    @Test
+    void copiesChangeOneAttribute(){
+        Draw draw = new Draw("alice", "draw", "text", 1, 2, 3, 4, new Color(0x102030)).withTextData("hi");
+        Draw renamed = draw.withUsername("bob");
+        assertNotSame(draw, renamed);
+        assertEquals("alice", draw.username);
+        assertEquals("bob", renamed.username);
+        assertEquals("hi", renamed.textData);
+        assertEquals(draw.rgb, renamed.rgb);
+        assertEquals(draw.x2, renamed.x2);
+    }
+
+    @Test
+    void stringsAreInterned(){
+        Draw first = new Draw(new String("alice"), new String("draw"), new String("line"), 0, 0, 0, 0, Color.RED);
+        Draw second = new Draw(new String("alice"), new String("draw"), new String("line"), 0, 0, 0, 0, Color.RED);
+        assertSame(first.username, second.username);
+        assertSame(first.drawType, second.drawType);
+    }
+
+    @Test
+    void colorKeepsRgbOnly(){
+        Draw draw = new Draw("a", "draw", "line", 0, 0, 0, 0, new Color(0x12, 0x34, 0x56, 0x78));
+        assertEquals(0x123456, draw.rgb);
+        assertEquals("#123456", draw.getColorHex());
+        assertEquals("#000001", new Draw("a", "draw", "line", 0, 0, 0, 0, new Color(1)).getColorHex());
+    }
+
+    @Test
+    void jsonRoundTrip() throws ParseException {
+        Draw draw = new Draw("alice", "draw", "pen", 1, 2, 3, 4, new Color(0xabcdef))
+                .withPoints(new int[] {5, 6, 7, 8});
+        Draw decoded = JsonDrawCodec.decode((JSONObject) new JSONParser().parse(draw.toString()));
+        assertEquals(draw.toString(), decoded.toString());
+        assertEquals(0xabcdef, decoded.rgb);
+        assertEquals(8, decoded.getPointY(1));
+    }
+
+    @Test
+    void jsonMissingOrWrongAttributesAreMalformed() throws ParseException {
+        JSONParser parser = new JSONParser();
+        JSONObject missing = (JSONObject) parser.parse("{\"category\":\"draw\",\"drawType\":\"line\",\"username\":\"a\"}");
+        assertThrows(ParseException.class, () -> JsonDrawCodec.decode(missing));
+
+        JSONObject wrongType = JsonDrawCodec.encode(new Draw("a", "draw", "line", 0, 0, 0, 0, Color.RED));
+        wrongType.put("x1", "zero");
+        assertThrows(ParseException.class, () -> JsonDrawCodec.decode(wrongType));
+
+        JSONObject badColor = JsonDrawCodec.encode(new Draw("a", "draw", "line", 0, 0, 0, 0, Color.RED));
+        badColor.put("color", "red");
+        assertThrows(ParseException.class, () -> JsonDrawCodec.decode(badColor));
+    }
+
+}
@@ -0,0 +1,168 @@
+package message;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ *
+ * Tests of utf and len32 framing, written to streams and channels and read back in pieces.
+ *
+ * @author liching
+ *
+ */
+class FramingTest {
+
+    @Test
+    void utfMatchesWriteUtf() throws IOException {
+        byte[] payload = WireCodec.encodeText("{\"category\":\"chat\"}");
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Framing.write(output, payload, Framing.UTF, 16);
+
+        byte[] written = output.toByteArray();
+        assertEquals(payload.length + 2, written.length);
+        // Same as DataOutputStream.writeUTF, whatever maxFrameSize is
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(written));
+        assertEquals("{\"category\":\"chat\"}", input.readUTF());
+    }
+
+    @Test
+    void utfRejectsLongPayloads(){
+        byte[] payload = new byte[Framing.MAX_UTF_PAYLOAD + 1];
+        assertFalse(Framing.fits(payload, Framing.UTF));
+        assertTrue(Framing.fits(payload, Framing.LENGTH32));
+        assertThrows(IOException.class, () -> Framing.write(new ByteArrayOutputStream(), payload, Framing.UTF, 1024));
+        assertThrows(IOException.class, () -> Framing.toBuffers(payload, Framing.UTF, 1024));
+    }
+
+    @Test
+    void len32SplitsIntoChunksWithContinuationBit() throws IOException {
+        byte[] payload = randomBytes(25);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Framing.write(output, payload, Framing.LENGTH32, 10);
+
+        ByteBuffer written = ByteBuffer.wrap(output.toByteArray());
+        // 10 + 10 + 5 bytes, the highest bit of the header set on all but the last chunk
+        assertEquals(0x8000000A, written.getInt(0));
+        assertEquals(0x8000000A, written.getInt(14));
+        assertEquals(5, written.getInt(28));
+        assertEquals(3 * 4 + 25, written.capacity());
+
+        assertArrayEquals(payload, readStream(output.toByteArray(), Framing.LENGTH32, 1 << 20));
+    }
+
+    @Test
+    void len32SingleChunkAndEmptyPayload() throws IOException {
+        for (byte[] payload : new byte[][] {randomBytes(10), new byte[0]}){
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            Framing.write(output, payload, Framing.LENGTH32, 10);
+            assertEquals(4 + payload.length, output.size());
+            assertEquals(payload.length, ByteBuffer.wrap(output.toByteArray()).getInt(0));
+            assertArrayEquals(payload, readStream(output.toByteArray(), Framing.LENGTH32, 1 << 20));
+        }
+    }
+
+    @Test
+    void buffersMatchStream() throws IOException {
+        byte[] payload = randomBytes(1000);
+        for (String framing : new String[] {Framing.UTF, Framing.LENGTH32}){
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            Framing.write(output, payload, framing, 64);
+            assertArrayEquals(output.toByteArray(), concat(Framing.toBuffers(payload, framing, 64)));
+        }
+    }
+
+    @Test
+    void feedAssemblesPayloadsArrivingInPieces() throws IOException {
+        List<byte[]> payloads = List.of(randomBytes(1), randomBytes(100), randomBytes(3000), new byte[0]);
+        for (String framing : new String[] {Framing.UTF, Framing.LENGTH32}){
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            for (byte[] payload : payloads){
+                Framing.write(output, payload, framing, 256);
+            }
+            byte[] stream = output.toByteArray();
+
+            // Every split of the stream into reads of a few bytes gives the same payloads
+            for (int step : new int[] {1, 3, 7, 256, stream.length}){
+                Framing reader = new Framing(1 << 20);
+                reader.setFraming(framing);
+                List<byte[]> received = new ArrayList<>();
+                for (int offset = 0; offset < stream.length; offset += step){
+                    reader.feed(ByteBuffer.wrap(stream, offset, Math.min(step, stream.length - offset)), received::add);
+                }
+                assertEquals(payloads.size(), received.size());
+                for (int i = 0; i < payloads.size(); i++){
+                    assertArrayEquals(payloads.get(i), received.get(i));
+                }
+            }
+        }
+    }
+
+    @Test
+    void framingChangeAppliesToNextPayload() throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Framing.write(output, randomBytes(5), Framing.UTF, 16);
+        Framing.write(output, randomBytes(40), Framing.LENGTH32, 16);
+
+        Framing reader = new Framing(1 << 20);
+        List<byte[]> received = new ArrayList<>();
+        reader.feed(ByteBuffer.wrap(output.toByteArray()), payload -> {
+            received.add(payload);
+            reader.setFraming(Framing.LENGTH32);
+        });
+        assertEquals(5, received.get(0).length);
+        assertEquals(40, received.get(1).length);
+    }
+
+    @Test
+    void messagesAboveMaximumAreRejected() throws IOException {
+        ByteArrayOutputStream oneChunk = new ByteArrayOutputStream();
+        Framing.write(oneChunk, randomBytes(100), Framing.LENGTH32, 1000);
+        assertThrows(IOException.class, () -> readStream(oneChunk.toByteArray(), Framing.LENGTH32, 99));
+
+        // Chunks below the maximum that add up to more than it
+        ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+        Framing.write(chunks, randomBytes(100), Framing.LENGTH32, 10);
+        assertThrows(IOException.class, () -> readStream(chunks.toByteArray(), Framing.LENGTH32, 99));
+
+        Framing reader = new Framing(99);
+        reader.setFraming(Framing.LENGTH32);
+        assertThrows(IOException.class, () -> reader.feed(ByteBuffer.wrap(chunks.toByteArray()), payload -> { }));
+    }
+
+    private static byte[] readStream(byte[] stream, String framing, int maxMessageSize) throws IOException {
+        Framing reader = new Framing(maxMessageSize);
+        reader.setFraming(framing);
+        return reader.read(new DataInputStream(new ByteArrayInputStream(stream)));
+    }
+
+    private static byte[] concat(ByteBuffer[] buffers){
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        for (ByteBuffer buffer : buffers){
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            output.write(bytes, 0, bytes.length);
+        }
+        return output.toByteArray();
+    }
+
+    private static byte[] randomBytes(int length){
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+}
@@ -0,0 +1,86 @@
+package server;
+
+import message.Draw;
+import org.json.simple.parser.JSONParser;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ *
+ * Tests of checkpoint files: written whole under their name, read back as written, damage detected.
+ *
+ * @author liching
+ *
+ */
+class CheckpointTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void roundTrip() throws IOException {
+        List<Draw> draws = new ArrayList<>();
+        for (int i = 0; i < 1000; i++){
+            draws.add(new Draw("alice", "draw", "line", i, -i, i * 2, 5, new Color(i * 1000)));
+        }
+        draws.add(new Draw("alice", "draw", "pen", 0, 0, 0, 0, Color.RED).withPoints(new int[] {1, 2, 3, 4}));
+        draws.add(new Draw("alice", "draw", "text", 7, 8, 7, 8, Color.BLUE).withTextData("hello"));
+        Path path = directory.resolve("1.checkpoint");
+        Checkpoint.write(path, 1234, draws);
+
+        List<Draw> state = new ArrayList<>();
+        assertEquals(1234, Checkpoint.read(path, state, new JSONParser()));
+        assertEquals(draws.size(), state.size());
+        for (int i = 0; i < draws.size(); i++){
+            assertEquals(draws.get(i).toString(), state.get(i).toString());
+        }
+        // Written under a temporary name first
+        assertFalse(Files.exists(directory.resolve("1.checkpoint.tmp")));
+    }
+
+    @Test
+    void emptyState() throws IOException {
+        Path path = directory.resolve("1.checkpoint");
+        Checkpoint.write(path, 7, List.of());
+        List<Draw> state = new ArrayList<>();
+        assertEquals(7, Checkpoint.read(path, state, new JSONParser()));
+        assertEquals(0, state.size());
+    }
+
+    @Test
+    void damageIsDetected() throws IOException {
+        Path path = directory.resolve("1.checkpoint");
+        Checkpoint.write(path, 1, List.of(new Draw("alice", "draw", "line", 1, 2, 3, 4, Color.RED)));
+        byte[] bytes = Files.readAllBytes(path);
+
+        for (int i = 0; i < bytes.length; i++){
+            byte[] damaged = bytes.clone();
+            damaged[i] ^= 0x01;
+            Files.write(path, damaged);
+            assertThrows(IOException.class, () -> Checkpoint.read(path, new ArrayList<>(), new JSONParser()), "byte " + i);
+        }
+
+        Files.write(path, new byte[10]);
+        assertThrows(IOException.class, () -> Checkpoint.read(path, new ArrayList<>(), new JSONParser()));
+    }
+
+    @Test
+    void replacesExistingFile() throws IOException {
+        Path path = directory.resolve("1.checkpoint");
+        Checkpoint.write(path, 1, List.of(new Draw("alice", "draw", "line", 1, 2, 3, 4, Color.RED)));
+        Checkpoint.write(path, 2, List.of());
+        assertEquals(2, Checkpoint.read(path, new ArrayList<>(), new JSONParser()));
+    }
+
+}
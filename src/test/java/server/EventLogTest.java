@@ -0,0 +1,288 @@
+package server;
+
+import message.Draw;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ *
+ * Tests of the event log of a board: records and their checksums, replay, segments, a torn tail
+ * and damage before it, and the checkpoints kept.
+ *
+ * @author liching
+ *
+ */
+class EventLogTest {
+
+    @TempDir
+    Path directory;
+
+    private ServerConfig config;
+    private ScheduledExecutorService syncExecutor;
+    private List<String> messages;
+
+    @BeforeEach
+    void setUp(){
+        config = new ServerConfig();
+        config.logSegmentSize = 4096;
+        syncExecutor = Executors.newSingleThreadScheduledExecutor();
+        messages = new ArrayList<>();
+    }
+
+    @AfterEach
+    void tearDown(){
+        syncExecutor.shutdownNow();
+    }
+
+    @Test
+    void replayGivesStateAfterLastNew() throws IOException {
+        EventLog log = open(new ArrayList<>());
+        log.appendDraw(draw(1));
+        log.appendDraw(draw(2));
+        log.appendNew();
+        log.appendDraw(draw(3));
+        log.appendDraw(draw(4));
+        log.close();
+
+        List<Draw> state = new ArrayList<>();
+        open(state).close();
+        assertEquals(List.of(3, 4), xs(state));
+    }
+
+    @Test
+    void recordsHaveLengthChecksumAndSequence() throws IOException {
+        EventLog log = open(new ArrayList<>());
+        log.appendDraw(draw(1));
+        log.appendNew();
+        log.close();
+
+        ByteBuffer segment = ByteBuffer.wrap(Files.readAllBytes(segments().get(0)));
+        List<Integer> offsets = recordOffsets(segment);
+        assertEquals(2, offsets.size());
+        for (int i = 0; i < offsets.size(); i++){
+            int position = offsets.get(i);
+            int length = segment.getInt(position);
+            CRC32C checksum = new CRC32C();
+            checksum.update(segment.array(), position + LogSegment.HEADER_SIZE, length);
+            assertEquals((int) checksum.getValue(), segment.getInt(position + 4));
+            assertEquals(i + 1, segment.getLong(position + LogSegment.HEADER_SIZE));
+        }
+        assertEquals(EventLog.DRAW, segment.get(offsets.get(0) + LogSegment.HEADER_SIZE + 8));
+        assertEquals(EventLog.NEW, segment.get(offsets.get(1) + LogSegment.HEADER_SIZE + 8));
+        assertEquals(LogSegment.BODY_HEADER_SIZE, segment.getInt(offsets.get(1)));
+    }
+
+    @Test
+    void tornTailIsCutAndAppendsGoOnAfterIt() throws IOException {
+        EventLog log = open(new ArrayList<>());
+        for (int i = 1; i <= 3; i++){
+            log.appendDraw(draw(i));
+        }
+        log.close();
+
+        // Last record only partly written before a crash
+        Path path = segments().get(0);
+        byte[] bytes = Files.readAllBytes(path);
+        int last = recordOffsets(ByteBuffer.wrap(bytes)).get(2);
+        bytes[last + LogSegment.HEADER_SIZE + LogSegment.BODY_HEADER_SIZE + 2] ^= 0x55;
+        Files.write(path, bytes);
+
+        List<Draw> state = new ArrayList<>();
+        log = open(state);
+        assertEquals(List.of(1, 2), xs(state));
+        assertTrue(messages.stream().anyMatch(message -> message.contains("damaged record")), messages.toString());
+
+        // The next operation takes the place of the damaged one
+        log.appendDraw(draw(4));
+        log.close();
+        state = new ArrayList<>();
+        open(state).close();
+        assertEquals(List.of(1, 2, 4), xs(state));
+    }
+
+    @Test
+    void recordLengthBeyondSegmentIsCut() throws IOException {
+        EventLog log = open(new ArrayList<>());
+        log.appendDraw(draw(1));
+        log.appendDraw(draw(2));
+        log.close();
+
+        Path path = segments().get(0);
+        byte[] bytes = Files.readAllBytes(path);
+        ByteBuffer.wrap(bytes).putInt(recordOffsets(ByteBuffer.wrap(bytes)).get(1), bytes.length);
+        Files.write(path, bytes);
+
+        List<Draw> state = new ArrayList<>();
+        open(state).close();
+        assertEquals(List.of(1), xs(state));
+    }
+
+    @Test
+    void operationsSpanSegments() throws IOException {
+        config.logSegmentSize = 256;
+        EventLog log = open(new ArrayList<>());
+        for (int i = 1; i <= 100; i++){
+            log.appendDraw(draw(i));
+        }
+        // Larger than a segment, gets one of its own
+        Draw text = draw(101).withTextData("x".repeat(1000));
+        log.appendDraw(text);
+        log.appendDraw(draw(102));
+        log.close();
+        assertTrue(segments().size() > 10, segments().toString());
+
+        List<Draw> state = new ArrayList<>();
+        open(state).close();
+        assertEquals(102, state.size());
+        for (int i = 0; i < state.size(); i++){
+            assertEquals(i + 1, state.get(i).x1);
+        }
+        assertEquals(text.textData, state.get(100).textData);
+    }
+
+    @Test
+    void damagedRecordBeforeLastSegmentFailsReplay() throws IOException {
+        config.logSegmentSize = 256;
+        EventLog log = open(new ArrayList<>());
+        for (int i = 1; i <= 30; i++){
+            log.appendDraw(draw(i));
+        }
+        log.close();
+        assertTrue(segments().size() > 2);
+
+        // The operations after it are still there, but replaying them would leave a hole
+        Path path = segments().get(0);
+        byte[] original = Files.readAllBytes(path);
+        byte[] bytes = original.clone();
+        bytes[recordOffsets(ByteBuffer.wrap(bytes)).get(1) + LogSegment.HEADER_SIZE + 3] ^= 0x55;
+        Files.write(path, bytes);
+        assertThrows(IOException.class, () -> open(new ArrayList<>()));
+
+        // Same with a segment missing
+        Files.write(path, original);
+        Files.delete(segments().get(1));
+        assertThrows(IOException.class, () -> open(new ArrayList<>()));
+    }
+
+    @Test
+    void checkpointKeepsThePreviousOneAndItsSegments() throws IOException {
+        config.logSegmentSize = 256;
+        List<Draw> written = new ArrayList<>();
+        EventLog log = open(new ArrayList<>());
+        append(log, written, 1, 20);
+        int segmentsBefore = segments().size();
+        log.checkpoint(new ArrayList<>(written));
+        // Nothing removed before there is a checkpoint to fall back to
+        assertEquals(1, checkpoints().size());
+        assertEquals(segmentsBefore, segments().size());
+        assertEquals(1, firstSequence(segments().get(0)));
+
+        append(log, written, 21, 40);
+        log.checkpoint(new ArrayList<>(written));
+        assertEquals(2, checkpoints().size());
+        // Segments before the previous checkpoint are removed, the ones after it are kept
+        long first = firstSequence(segments().get(0));
+        assertTrue(first > 1 && first <= 21, segments().toString());
+
+        append(log, written, 41, 50);
+        log.checkpoint(new ArrayList<>(written));
+        // Only the newest two are kept
+        assertEquals(2, checkpoints().size());
+        append(log, written, 51, 55);
+        log.close();
+
+        List<Draw> state = new ArrayList<>();
+        open(state).close();
+        assertEquals(xs(written), xs(state));
+
+        // A damaged newest checkpoint falls back to the previous one and the operations after it
+        Path newest = checkpoints().get(1);
+        byte[] bytes = Files.readAllBytes(newest);
+        bytes[bytes.length / 2] ^= 0x55;
+        Files.write(newest, bytes);
+        state = new ArrayList<>();
+        open(state).close();
+        assertEquals(xs(written), xs(state));
+        assertTrue(messages.stream().anyMatch(message -> message.contains("cannot be read")), messages.toString());
+    }
+
+    @Test
+    void boardIdsAreEscaped(){
+        assertEquals("board-1_a", EventLog.boardDirectory(directory, "board-1_a").getFileName().toString());
+        assertEquals("%2e%2e%2fa%20b", EventLog.boardDirectory(directory, "../a b").getFileName().toString());
+    }
+
+    private EventLog open(List<Draw> state) throws IOException {
+        EventLog log = new EventLog(directory, config, messages::add, syncExecutor, Runnable::run);
+        log.replay(state);
+        return log;
+    }
+
+    private List<Path> segments() throws IOException {
+        return files(".log");
+    }
+
+    private List<Path> checkpoints() throws IOException {
+        return files(".checkpoint");
+    }
+
+    private List<Path> files(String suffix) throws IOException {
+        try (Stream<Path> paths = Files.list(directory)){
+            return paths.filter(path -> path.toString().endsWith(suffix)).sorted().toList();
+        }
+    }
+
+    private static long firstSequence(Path segment){
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - ".log".length()));
+    }
+
+    private static void append(EventLog log, List<Draw> written, int from, int to){
+        for (int i = from; i <= to; i++){
+            log.appendDraw(draw(i));
+            written.add(draw(i));
+        }
+    }
+
+    // Start of each record, up to the end marker
+    private static List<Integer> recordOffsets(ByteBuffer segment){
+        List<Integer> offsets = new ArrayList<>();
+        int position = 0;
+        while (position + LogSegment.HEADER_SIZE <= segment.capacity() && segment.getInt(position) != 0){
+            offsets.add(position);
+            position += LogSegment.HEADER_SIZE + segment.getInt(position);
+        }
+        return offsets;
+    }
+
+    private static Draw draw(int x){
+        return new Draw("alice", "draw", "text", x, 0, x, 0, Color.RED).withTextData("hello");
+    }
+
+    private static List<Integer> xs(List<Draw> state){
+        List<Integer> xs = new ArrayList<>();
+        for (Draw draw : state){
+            xs.add(draw.x1);
+        }
+        return xs;
+    }
+
+}
@@ -0,0 +1,127 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ *
+ * Tests of the ring drawings received by a board wait in: claim and publish by many producers,
+ * slots taken in sequence order, and a full ring.
+ *
+ * @author liching
+ *
+ */
+class RingBufferTest {
+
+    private static class Slot {
+        private int producer;
+        private int value;
+    }
+
+    @Test
+    void slotsAreTakenInClaimOrder(){
+        RingBuffer<Slot> ring = new RingBuffer<>(4, Slot::new);
+        assertTrue(ring.isEmpty());
+        long first = ring.claim();
+        long second = ring.claim();
+        assertEquals(first + 1, second);
+
+        // Published out of order, the second waits for the first
+        ring.get(second).value = 2;
+        ring.publish(second);
+        assertNull(ring.peek());
+        assertTrue(ring.isEmpty());
+        ring.get(first).value = 1;
+        ring.publish(first);
+
+        assertFalse(ring.isEmpty());
+        assertEquals(1, ring.peek().value);
+        ring.release();
+        assertEquals(2, ring.peek().value);
+        ring.release();
+        assertNull(ring.peek());
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    void fullRingRefusesClaimsUntilReleased(){
+        // Rounded up to a power of two
+        RingBuffer<Slot> ring = new RingBuffer<>(3, Slot::new);
+        for (int i = 0; i < 4; i++){
+            long sequence = ring.claim();
+            assertEquals(i, sequence);
+            ring.publish(sequence);
+        }
+        assertEquals(-1, ring.claim());
+        assertTrue(ring.getStats().contains("full 1 times"), ring.getStats());
+
+        Slot oldest = ring.peek();
+        ring.release();
+        long sequence = ring.claim();
+        assertEquals(4, sequence);
+        assertEquals(-1, ring.claim());
+        // Slots are reused
+        assertSame(oldest, ring.get(sequence));
+    }
+
+    @Test
+    void manyProducersKeepTheirOrder() throws InterruptedException {
+        int producers = 4;
+        int values = 200_000;
+        RingBuffer<Slot> ring = new RingBuffer<>(64, Slot::new);
+        AtomicReference<String> failure = new AtomicReference<>();
+
+        Thread consumer = new Thread(() -> {
+            int[] next = new int[producers];
+            for (int taken = 0; taken < producers * values; ){
+                Slot slot = ring.peek();
+                if (slot == null){
+                    Thread.yield();
+                    continue;
+                }
+                if (slot.value != next[slot.producer]){
+                    failure.compareAndSet(null, "producer " + slot.producer + " value " + slot.value
+                            + " instead of " + next[slot.producer]);
+                }
+                next[slot.producer] = slot.value + 1;
+                ring.release();
+                taken++;
+            }
+        });
+        consumer.start();
+
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++){
+            int producer = p;
+            threads[p] = new Thread(() -> {
+                for (int value = 0; value < values; value++){
+                    long sequence;
+                    while ((sequence = ring.claim()) < 0){
+                        Thread.yield();
+                    }
+                    Slot slot = ring.get(sequence);
+                    slot.producer = producer;
+                    slot.value = value;
+                    ring.publish(sequence);
+                }
+            });
+            threads[p].start();
+        }
+        for (Thread thread : threads){
+            thread.join();
+        }
+        consumer.join(30_000);
+
+        assertFalse(consumer.isAlive(), "consumer did not get every value");
+        assertNull(failure.get());
+        assertTrue(ring.isEmpty());
+    }
+
+}